@@ -0,0 +1,487 @@
+package com.pitayazhu.novelBot;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packed storage of many books in one file, written alongside the text files.
+ * Every chapter is compressed on its own and appended to the pack file of its save
+ * directory, and an append-only index records where each chapter went. A book only
+ * becomes visible once its layout is recorded at the end, so a book that failed half
+ * way is never read, and an updated book keeps the chapters it already had and only
+ * appends the new ones. A chapter written again replaces the earlier one in the index.
+ * The Reader maps the pack into memory and finds any chapter through the index in
+ * constant time, without reading the rest of the book.
+ * Usage: BookArchive directory [title [chapter]]
+ * @author pitaya
+ */
+class BookArchive {
+
+    static final String DATA_FILE = "books.pack";
+    static final String INDEX_FILE = "books.pack.index";
+
+    private static final byte[] MAGIC = "NBPACK1\n".getBytes(StandardCharsets.US_ASCII);
+    // the largest compressed chapter, so a chapter never reaches past the overlap of two mapped segments
+    private static final int MAX_CHAPTER_BYTES = 16 * 1024 * 1024;
+    // the pack is mapped in segments of this size, each overlapping the next by the largest chapter
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private static final String BOOK = "BOOK";
+    private static final String CHAPTER = "CHAPTER";
+    private static final String DONE = "DONE";
+
+    private static final Map<String, BookArchive> archives = new HashMap<>();
+
+    // each thread compresses its chapters with its own deflater, outside the lock of the archive
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final FileChannel data;
+    private final Writer index;
+    // the last book id started for each book url
+    private final Map<String, Integer> book_ids = new HashMap<>();
+    private int next_id = 0;
+
+    private BookArchive(File directory) throws IOException {
+        File index_file = new File(directory, INDEX_FILE);
+        if (index_file.exists()) {
+            replay(index_file, new Replay() {
+                @Override
+                public void book(int id, String url, String title) {
+                    book_ids.put(url, id);
+                    next_id = Math.max(next_id, id + 1);
+                }
+            });
+        }
+        data = new RandomAccessFile(new File(directory, DATA_FILE), "rw").getChannel();
+        if (data.size() == 0) {
+            data.write(ByteBuffer.wrap(MAGIC));
+        }
+        data.position(data.size());
+        index = new OutputStreamWriter(new FileOutputStream(index_file, true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the archive of a save directory, opening it on first use
+     * @param directory the save directory
+     * @return          the archive
+     * @throws IOException
+     */
+    static BookArchive of(String directory) throws IOException {
+        synchronized (archives) {
+            String key = new File(directory).getCanonicalPath();
+            BookArchive archive = archives.get(key);
+            if (archive == null) {
+                archive = new BookArchive(new File(key));
+                archives.put(key, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Start a book from the beginning, hiding any earlier copy once it is finished
+     * @param book_url  the link of the book
+     * @param title     the title of the book
+     * @return          the id of the book in the archive
+     * @throws IOException
+     */
+    synchronized int startBook(String book_url, String title) throws IOException {
+        int id = next_id++;
+        book_ids.put(book_url, id);
+        append(BOOK, String.valueOf(id), book_url, title);
+        return id;
+    }
+
+    /**
+     * Continue the last copy of a book, keeping its chapters
+     * @param book_url  the link of the book
+     * @param title     the title of the book
+     * @return          the id of the book in the archive
+     * @throws IOException
+     */
+    synchronized int continueBook(String book_url, String title) throws IOException {
+        Integer id = book_ids.get(book_url);
+        return id != null ? id : startBook(book_url, title);
+    }
+
+    /**
+     * Add a chapter to a book
+     * @param id        the id of the book
+     * @param volume    the volume of the chapter
+     * @param chapter   the chapter in its volume
+     * @param text      the text of the chapter, encoded as UTF-8
+     * @throws IOException
+     */
+    void putChapter(int id, int volume, int chapter, byte[] text) throws IOException {
+        byte[] compressed = compress(text);
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        synchronized (this) {
+            long offset = data.size();
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                data.write(buffer, offset + buffer.position());
+            }
+            append(CHAPTER, String.valueOf(id), String.valueOf(volume), String.valueOf(chapter),
+                    String.valueOf(offset), String.valueOf(compressed.length), String.valueOf(text.length),
+                    String.valueOf(crc.getValue()));
+        }
+    }
+
+    /**
+     * Record the layout of a finished book, which makes it visible to readers
+     * @param id                the id of the book
+     * @param chapter_counts    the number of chapters of each volume
+     * @throws IOException
+     */
+    synchronized void finishBook(int id, int[] chapter_counts) throws IOException {
+        StringBuilder counts = new StringBuilder();
+        for (int count : chapter_counts) {
+            if (counts.length() > 0) {
+                counts.append(',');
+            }
+            counts.append(count);
+        }
+        append(DONE, String.valueOf(id), counts.toString());
+    }
+
+    private static byte[] compress(byte[] text) throws IOException {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(text);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, text.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        if (length > MAX_CHAPTER_BYTES) {
+            throw new IOException("Chapter too large for the archive: " + length + " bytes");
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void append(String... fields) throws IOException {
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) {
+                record.append('\t');
+            }
+            record.append(fields[i].replace('\t', ' ').replace('\n', ' '));
+        }
+        record.append('\n');
+        index.write(record.toString());
+        index.flush();
+    }
+
+    /**
+     * Receiver of the records of an index file
+     */
+    private static abstract class Replay {
+        void book(int id, String url, String title) {
+        }
+
+        void chapter(int id, int volume, int chapter, long offset, int length, int raw_length, int crc) {
+        }
+
+        void done(int id, int[] chapter_counts) {
+        }
+    }
+
+    private static void replay(File index_file, Replay replay) throws IOException {
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(index_file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    switch (fields[0]) {
+                        case BOOK:
+                            replay.book(Integer.parseInt(fields[1]), fields[2], fields[3]);
+                            break;
+                        case CHAPTER:
+                            replay.chapter(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                                    Integer.parseInt(fields[3]), Long.parseLong(fields[4]),
+                                    Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                                    (int) Long.parseLong(fields[7]));
+                            break;
+                        case DONE:
+                            String[] counts = fields[2].isEmpty() ? new String[0] : fields[2].split(",");
+                            int[] chapter_counts = new int[counts.length];
+                            for (int i = 0; i < counts.length; ++i) {
+                                chapter_counts[i] = Integer.parseInt(counts[i]);
+                            }
+                            replay.done(Integer.parseInt(fields[1]), chapter_counts);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown archive record: " + fields[0]);
+                    }
+                } catch (RuntimeException re) {
+                    // a line cut short by a crash, the books before it are still good
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only view of an archive, for looking up single chapters
+     */
+    static class Reader implements Closeable {
+
+        /**
+         * Where the chapters of one finished book are
+         */
+        private static class Book {
+            final String url;
+            // the first chapter of each volume, counted over the whole book
+            final int[] volume_starts;
+            final long[] offsets;
+            final int[] lengths;
+            final int[] raw_lengths;
+            final int[] crcs;
+
+            Book(String url, int[] chapter_counts) {
+                this.url = url;
+                volume_starts = new int[chapter_counts.length + 1];
+                for (int i = 0; i < chapter_counts.length; ++i) {
+                    volume_starts[i + 1] = volume_starts[i] + chapter_counts[i];
+                }
+                int total = volume_starts[chapter_counts.length];
+                offsets = new long[total];
+                Arrays.fill(offsets, -1);
+                lengths = new int[total];
+                raw_lengths = new int[total];
+                crcs = new int[total];
+            }
+        }
+
+        private final FileChannel channel;
+        private final MappedByteBuffer[] segments;
+        private final Map<String, Book> books = new LinkedHashMap<>();
+
+        /**
+         * Open the archive of a save directory
+         * @param directory the save directory
+         * @throws IOException
+         */
+        Reader(File directory) throws IOException {
+            channel = new RandomAccessFile(new File(directory, DATA_FILE), "r").getChannel();
+            final long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; ++i) {
+                long start = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_BYTES + MAX_CHAPTER_BYTES, size - start));
+            }
+
+            final Map<Integer, String[]> started = new HashMap<>();
+            final Map<Integer, Map<Long, long[]>> chapters = new HashMap<>();
+            replay(new File(directory, INDEX_FILE), new Replay() {
+                @Override
+                void book(int id, String url, String title) {
+                    started.put(id, new String[]{url, title});
+                    chapters.put(id, new HashMap<Long, long[]>());
+                }
+
+                @Override
+                void chapter(int id, int volume, int chapter, long offset, int length, int raw_length, int crc) {
+                    Map<Long, long[]> book_chapters = chapters.get(id);
+                    // a chapter past the end of the pack was lost in a crash
+                    if (book_chapters != null && offset + length <= size) {
+                        book_chapters.put(((long) volume << 32) | chapter,
+                                new long[]{offset, length, raw_length, crc});
+                    }
+                }
+
+                @Override
+                void done(int id, int[] chapter_counts) {
+                    String[] names = started.get(id);
+                    if (names == null) {
+                        return;
+                    }
+                    Book book = new Book(names[0], chapter_counts);
+                    Map<Long, long[]> book_chapters = chapters.get(id);
+                    for (int volume = 0; volume < chapter_counts.length; ++volume) {
+                        for (int chapter = 0; chapter < chapter_counts[volume]; ++chapter) {
+                            long[] entry = book_chapters.get(((long) volume << 32) | chapter);
+                            if (entry != null) {
+                                int n = book.volume_starts[volume] + chapter;
+                                book.offsets[n] = entry[0];
+                                book.lengths[n] = (int) entry[1];
+                                book.raw_lengths[n] = (int) entry[2];
+                                book.crcs[n] = (int) entry[3];
+                            }
+                        }
+                    }
+                    // the latest finished copy of a title wins
+                    books.remove(names[1]);
+                    books.put(names[1], book);
+                }
+            });
+        }
+
+        /**
+         * Get the titles of the finished books
+         * @return  the titles, in the order the books were finished
+         */
+        List<String> titles() {
+            return new ArrayList<>(books.keySet());
+        }
+
+        /**
+         * Get the link of a book
+         * @param title the title of the book
+         * @return      the link, or null if the book is not in the archive
+         */
+        String urlOf(String title) {
+            Book book = books.get(title);
+            return book == null ? null : book.url;
+        }
+
+        /**
+         * Count the chapters of a book
+         * @param title the title of the book
+         * @return      the number of chapters over all volumes, or -1 if the book is not in the archive
+         */
+        int chapterCount(String title) {
+            Book book = books.get(title);
+            return book == null ? -1 : book.offsets.length;
+        }
+
+        /**
+         * Count the volumes of a book
+         * @param title the title of the book
+         * @return      the number of volumes, or -1 if the book is not in the archive
+         */
+        int volumeCount(String title) {
+            Book book = books.get(title);
+            return book == null ? -1 : book.volume_starts.length - 1;
+        }
+
+        /**
+         * Read a chapter by its position in its volume
+         * @param title     the title of the book
+         * @param volume    the volume, from 0
+         * @param chapter   the chapter in the volume, from 0
+         * @return          the text of the chapter, or null if it is not in the archive
+         * @throws IOException
+         */
+        String chapter(String title, int volume, int chapter) throws IOException {
+            Book book = books.get(title);
+            if (book == null || volume < 0 || volume >= book.volume_starts.length - 1 || chapter < 0 ||
+                    book.volume_starts[volume] + chapter >= book.volume_starts[volume + 1]) {
+                return null;
+            }
+            return read(book, book.volume_starts[volume] + chapter);
+        }
+
+        /**
+         * Read a chapter by its position in the whole book
+         * @param title     the title of the book
+         * @param chapter   the chapter, from 0, counted over all volumes
+         * @return          the text of the chapter, or null if it is not in the archive
+         * @throws IOException
+         */
+        String chapter(String title, int chapter) throws IOException {
+            Book book = books.get(title);
+            if (book == null || chapter < 0 || chapter >= book.offsets.length) {
+                return null;
+            }
+            return read(book, chapter);
+        }
+
+        private String read(Book book, int n) throws IOException {
+            long offset = book.offsets[n];
+            if (offset < 0) {
+                return null;
+            }
+            ByteBuffer compressed = segments[(int) (offset / SEGMENT_BYTES)].duplicate();
+            compressed.position((int) (offset % SEGMENT_BYTES));
+            compressed.limit(compressed.position() + book.lengths[n]);
+
+            byte[] text = new byte[book.raw_lengths[n]];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                int length = 0;
+                while (length < text.length && !inflater.finished()) {
+                    int count = inflater.inflate(text, length, text.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += count;
+                }
+                if (length != text.length) {
+                    throw new IOException("Chapter " + n + " of " + book.url + " is cut short in the archive");
+                }
+            } catch (DataFormatException dfe) {
+                throw new IOException("Chapter " + n + " of " + book.url + " is damaged in the archive", dfe);
+            } finally {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(text);
+            if ((int) crc.getValue() != book.crcs[n]) {
+                throw new IOException("Chapter " + n + " of " + book.url + " fails its checksum in the archive");
+            }
+            return new String(text, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: BookArchive directory [title [chapter]]");
+            return;
+        }
+        try (Reader reader = new Reader(new File(args[0]))) {
+            if (args.length == 1) {
+                for (String title : reader.titles()) {
+                    System.out.println(title + "\t" + reader.chapterCount(title) + " chapters\t" +
+                            reader.urlOf(title));
+                }
+            } else if (args.length == 2) {
+                System.out.println(reader.urlOf(args[1]) + ": " + reader.volumeCount(args[1]) + " volumes, " +
+                        reader.chapterCount(args[1]) + " chapters");
+            } else {
+                String text = reader.chapter(args[1], Integer.parseInt(args[2]) - 1);
+                System.out.print(text == null ? "Chapter not found." + BookWriter.LINE_SEPARATOR : text);
+            }
+        }
+    }
+}
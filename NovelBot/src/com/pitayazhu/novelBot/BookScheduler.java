@@ -0,0 +1,227 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.nodes.Document;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads several books of a category at the same time.
+ * The books only share the budget the crawler already has: their chapters all go
+ * through the same chapter pipeline and request scheduler, so more books at once
+ * keep the fetchers busy while one book waits on its catalog or the end of a volume,
+ * without sending more requests to the site than before.
+ * Waiting books are started in the order chosen: as listed, or smallest or largest
+ * first by number of chapters. To know their size, books first go through the pool
+ * once to fetch their catalog, ahead of every book waiting to start, and are then
+ * queued again by size. A book that fails is counted and left behind, and the others carry on.
+ * @author pitaya
+ */
+class BookScheduler {
+
+    /**
+     * The order waiting books are started in
+     */
+    enum Order {
+        LISTED, SMALLEST_FIRST, LARGEST_FIRST;
+
+        /**
+         * Find an order by its name in a system property
+         * @param name  "listed", "smallest" or "largest"
+         * @return      the order
+         */
+        static Order of(String name) {
+            switch (name.toLowerCase()) {
+                case "smallest":
+                    return SMALLEST_FIRST;
+                case "largest":
+                    return LARGEST_FIRST;
+                case "listed":
+                    return LISTED;
+                default:
+                    throw new IllegalArgumentException("Unknown book order: " + name);
+            }
+        }
+    }
+
+    private final Order order;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // books submitted and not started yet, guarded by this
+    private int waiting = 0;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger saved = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Create a scheduler
+     * @param books the number of books downloaded at the same time
+     * @param order the order waiting books are started in
+     */
+    BookScheduler(int books, Order order) {
+        if (books < 1) {
+            throw new IllegalArgumentException("Books must be positive: " + books);
+        }
+        this.order = order;
+        executor = new ThreadPoolExecutor(books, books, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "book-downloader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a book to be saved. If books are ordered by size, its catalog is fetched
+     * on the pool first, unless the book was saved already and will not need it.
+     * @param book_url          the link of the book
+     * @param save_directory    the directory to save the file
+     * @return                  whether the book was saved, never completed exceptionally
+     */
+    Future<Boolean> submit(String book_url, String save_directory) {
+        boolean sized = order != Order.LISTED && !NovelBot.journal.isBookFinished(book_url);
+        BookTask task = new BookTask(book_url, save_directory, sized);
+        synchronized (this) {
+            waiting++;
+        }
+        execute(task);
+        return task.result;
+    }
+
+    /**
+     * Wait until few enough books are waiting, so the category is not read far ahead of the downloads
+     * @param count the most books that may be waiting
+     * @throws InterruptedException
+     */
+    synchronized void awaitWaitingAtMost(int count) throws InterruptedException {
+        while (waiting > count) {
+            wait();
+        }
+    }
+
+    /**
+     * Get the counts of books so far
+     * @return  the numbers of books waiting, running, saved and failed
+     */
+    String stats() {
+        int waiting_now;
+        synchronized (this) {
+            waiting_now = waiting;
+        }
+        return waiting_now + " waiting, " + running.get() + " running, " +
+                saved.get() + " saved, " + failed.get() + " failed";
+    }
+
+    private void execute(BookTask task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            // the scheduler was shut down before the book could start
+            started();
+            failed.incrementAndGet();
+            task.result.complete(false);
+        }
+    }
+
+    private synchronized void started() {
+        waiting--;
+        notifyAll();
+    }
+
+    /**
+     * Stop the download threads once every queued book is done
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A book waiting to be saved, ordered by its priority
+     */
+    private class BookTask implements Runnable, Comparable<BookTask> {
+
+        private final String book_url;
+        private Document catalog_page;
+        private final String save_directory;
+        // whether the catalog is still to be fetched to know the size of the book
+        private boolean needs_catalog;
+        private volatile long priority;
+        private final int position = sequence.getAndIncrement();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        BookTask(String book_url, String save_directory, boolean needs_catalog) {
+            this.book_url = book_url;
+            this.save_directory = save_directory;
+            this.needs_catalog = needs_catalog;
+            // fetching a catalog goes before every book waiting to start
+            priority = needs_catalog ? Long.MIN_VALUE : order == Order.LISTED ? 0 : Long.MAX_VALUE;
+        }
+
+        /**
+         * Fetch the catalog and queue the book again by its size
+         */
+        private void fetchCatalog() {
+            try {
+                catalog_page = NovelBot.fetchCatalog(book_url);
+            } catch (Exception e) {
+                catalog_page = null;
+            }
+            needs_catalog = false;
+            // books without a catalog are started after the others, since their size is unknown
+            int chapters = catalog_page == null ? -1 : NovelBot.chapterCount(catalog_page);
+            if (chapters < 0) {
+                priority = Long.MAX_VALUE;
+            } else {
+                priority = order == Order.SMALLEST_FIRST ? chapters : -chapters;
+            }
+            execute(this);
+        }
+
+        @Override
+        public int compareTo(BookTask other) {
+            if (priority != other.priority) {
+                return Long.compare(priority, other.priority);
+            }
+            return Integer.compare(position, other.position);
+        }
+
+        @Override
+        public void run() {
+            if (needs_catalog) {
+                fetchCatalog();
+                return;
+            }
+            started();
+            running.incrementAndGet();
+            boolean book_saved = false;
+            try {
+                if (catalog_page == null) {
+                    book_saved = NovelBot.saveBook(book_url, save_directory, NovelBot.TOTAL_RETRY_COUNT);
+                } else {
+                    Document page = catalog_page;
+                    // the catalog is not needed once the book has started
+                    catalog_page = null;
+                    book_saved = NovelBot.saveBook(book_url, page, save_directory);
+                }
+            } catch (Exception e) {
+                System.out.println("Error: Book " + book_url + " failed, carrying on. Message: " + e);
+            } finally {
+                running.decrementAndGet();
+                (book_saved ? saved : failed).incrementAndGet();
+                result.complete(book_saved);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.pitayazhu.novelBot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the file of one book through a large buffer straight to a FileChannel.
+ * The book is written to a part file next to it, which is only renamed over the
+ * book file once the book is complete, so a failed download never leaves a
+ * truncated book in place and an update keeps the old copy until the new one is done.
+ * A book file ending in ".gz" is compressed on the fly. Text is only written out when
+ * the buffer is full or at a checkpoint, which for a compressed book also ends a gzip
+ * member; members can simply follow each other in one file, so the part file can be
+ * cut back to any checkpoint and continued. Between checkpoints, a plain book can be
+ * cut at any mark, while a compressed one cannot be cut inside its member.
+ * The writer is used by one thread and does no locking.
+ * @author pitaya
+ */
+class BookWriter extends OutputStream {
+
+    static final String PART_SUFFIX = ".part";
+    static final String GZIP_SUFFIX = ".gz";
+    static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final File file;
+    private final File part_file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // null if the book is not compressed
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] deflated;
+    private boolean in_member = false;
+    private int member_length = 0;
+    private boolean closed = false;
+
+    private BookWriter(String file_name, long offset) throws IOException {
+        this.file = new File(file_name);
+        this.part_file = partOf(file_name);
+        // opened through java.io, which copes with titles the platform encoding of paths cannot map
+        this.channel = new RandomAccessFile(part_file, "rw").getChannel();
+        channel.truncate(offset);
+        channel.position(offset);
+        if (file_name.endsWith(GZIP_SUFFIX)) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflated = new byte[64 * 1024];
+        } else {
+            deflater = null;
+            deflated = null;
+        }
+    }
+
+    /**
+     * Get the part file a book is written to until it is complete
+     * @param file_name the file of the book
+     * @return          the part file
+     */
+    static File partOf(String file_name) {
+        return new File(file_name + PART_SUFFIX);
+    }
+
+    /**
+     * Start writing a book from the beginning
+     * @param file_name the file of the book
+     * @return          the writer
+     * @throws IOException
+     */
+    static BookWriter create(String file_name) throws IOException {
+        return new BookWriter(file_name, 0);
+    }
+
+    /**
+     * Continue writing a part file, cutting off whatever was written after a recorded step
+     * @param file_name the file of the book
+     * @param offset    the length of the part file at the recorded step
+     * @return          the writer
+     * @throws IOException
+     */
+    static BookWriter resume(String file_name, long offset) throws IOException {
+        return new BookWriter(file_name, offset);
+    }
+
+    /**
+     * Continue a complete book from a recorded step, leaving the book file as it is until the new one is done
+     * @param file_name the file of the book
+     * @param offset    the length of the book file to keep
+     * @return          the writer
+     * @throws IOException
+     */
+    static BookWriter reopen(String file_name, long offset) throws IOException {
+        BookWriter writer = new BookWriter(file_name, 0);
+        try (FileChannel source = new FileInputStream(file_name).getChannel()) {
+            long copied = 0;
+            while (copied < offset) {
+                long count = source.transferTo(copied, offset - copied, writer.channel);
+                if (count <= 0) {
+                    throw new IOException("Book file is shorter than " + offset + " bytes: " + file_name);
+                }
+                copied += count;
+            }
+            writer.channel.position(offset);
+        } catch (IOException ioe) {
+            writer.close();
+            throw ioe;
+        }
+        return writer;
+    }
+
+    /**
+     * Write text
+     * @param text  the text, encoded as UTF-8
+     * @throws IOException
+     */
+    void print(CharSequence text) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a line of text
+     * @param line  the line, encoded as UTF-8
+     * @throws IOException
+     */
+    void println(String line) throws IOException {
+        print(line + LINE_SEPARATOR);
+    }
+
+    /**
+     * Write an empty line
+     * @throws IOException
+     */
+    void println() throws IOException {
+        print(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (deflater == null) {
+            put(bytes, offset, length);
+            return;
+        }
+        if (!in_member) {
+            put(GZIP_HEADER, 0, GZIP_HEADER.length);
+            in_member = true;
+        }
+        crc.update(bytes, offset, length);
+        member_length += length;
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput()) {
+            put(deflated, 0, deflater.deflate(deflated));
+        }
+    }
+
+    /**
+     * Get the offset the file can be cut back to after what was written so far, without writing
+     * anything out; the file only reaches it once the buffer is drained, which written() tells
+     * @return  the length of the file at this point, or -1 inside a gzip member, which cannot be cut
+     * @throws IOException
+     */
+    long mark() throws IOException {
+        if (in_member) {
+            return -1;
+        }
+        return channel.position() + buffer.position();
+    }
+
+    /**
+     * Get how far the file is written out; a mark up to here is in the file even if the process is killed
+     * @return  the length of the file written out
+     * @throws IOException
+     */
+    long written() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * End the current gzip member and write out everything so far, so that the file can be cut back to this point
+     * @return  the length of the file
+     * @throws IOException
+     */
+    long checkpoint() throws IOException {
+        if (in_member) {
+            endMember();
+        }
+        drain();
+        return channel.position();
+    }
+
+    /**
+     * Finish the book: write out everything, and put the part file in place of the book file
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        checkpoint();
+        channel.force(false);
+        close();
+        // a rename replaces the old book at once; where it cannot replace a file, the move does
+        if (!part_file.renameTo(file)) {
+            Files.move(part_file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Stop writing, leaving an unfinished book in its part file so it can be resumed
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+        } finally {
+            channel.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void endMember() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            put(deflated, 0, deflater.deflate(deflated));
+        }
+        long value = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; ++i) {
+            trailer[i] = (byte) (value >>> (8 * i));
+            trailer[4 + i] = (byte) (member_length >>> (8 * i));
+        }
+        put(trailer, 0, trailer.length);
+        deflater.reset();
+        crc.reset();
+        member_length = 0;
+        in_member = false;
+    }
+
+    private void put(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,310 @@
+package com.pitayazhu.novelBot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Local index of the books listed on the site, mapping book titles to catalog links.
+ * The index is filled while category pages are crawled and kept in a tab separated
+ * file, so finding a book by name does not need to crawl the whole site again.
+ * Titles are looked up exactly, by prefix, or by edit distance for close matches.
+ * Every book keeps the time it was last seen, so a single old entry can be checked
+ * against the site and renewed or dropped without crawling everything again.
+ * @author pitaya
+ */
+class CatalogIndex {
+
+    /**
+     * A book listed in the index
+     */
+    static class Entry {
+        final String title;
+        final String url;
+        final String category;
+        final long updated;
+
+        Entry(String title, String url, String category, long updated) {
+            this.title = title;
+            this.url = url;
+            this.category = category;
+            this.updated = updated;
+        }
+    }
+
+    // the first line of the file, followed by the time of the last full crawl
+    private static final String HEADER = "#refreshed";
+    // the index is crawled again when it is older than this
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File file;
+    private long refreshed = 0;
+    private final Map<String, Entry> by_url = new HashMap<>();
+    private final TreeMap<String, List<Entry>> by_title = new TreeMap<>();
+
+    private CatalogIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load an index file, or create an empty index if it does not exist
+     * @param file  the index file
+     * @return      the index
+     * @throws IOException
+     */
+    static CatalogIndex load(File file) throws IOException {
+        CatalogIndex index = new CatalogIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals(HEADER)) {
+                    index.refreshed = Long.parseLong(fields[1]);
+                } else if (fields.length == 4) {
+                    index.put(new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3])));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write the index back to its file, replacing the old one at once
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            out.write(HEADER + '\t' + refreshed + '\n');
+            for (Entry entry : by_url.values()) {
+                out.write(clean(entry.title) + '\t' + clean(entry.url) + '\t' + clean(entry.category) + '\t' +
+                        entry.updated + '\n');
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Check if the index needs a new crawl
+     * @return  whether the last full crawl is too old
+     */
+    synchronized boolean isStale() {
+        return System.currentTimeMillis() - refreshed > MAX_AGE_MILLIS;
+    }
+
+    /**
+     * Check if a book was last seen too long ago to be trusted without checking its catalog
+     * @param entry the book
+     * @return      whether the entry is too old
+     */
+    synchronized boolean isStale(Entry entry) {
+        return System.currentTimeMillis() - entry.updated > MAX_AGE_MILLIS;
+    }
+
+    /**
+     * Drop a book that is no longer on the site
+     * @param entry the book
+     */
+    synchronized void remove(Entry entry) {
+        if (by_url.get(entry.url) != entry) {
+            return;
+        }
+        by_url.remove(entry.url);
+        List<Entry> entries = by_title.get(normalize(entry.title));
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            by_title.remove(normalize(entry.title));
+        }
+    }
+
+    /**
+     * Mark the index as just crawled over every category
+     */
+    synchronized void markRefreshed() {
+        refreshed = System.currentTimeMillis();
+    }
+
+    /**
+     * Add or update a book seen on a category page
+     * @param title     the title of the book
+     * @param url       the link of the book
+     * @param category  the title of the category
+     */
+    synchronized void put(String title, String url, String category) {
+        put(new Entry(title, url, category, System.currentTimeMillis()));
+    }
+
+    /**
+     * Find the book with exactly the given title
+     * @param title the title of the book
+     * @return      the book, or null if not indexed
+     */
+    synchronized Entry findExact(String title) {
+        List<Entry> entries = by_title.get(normalize(title));
+        if (entries == null) {
+            return null;
+        }
+        // prefer the title written exactly the same way
+        for (Entry entry : entries) {
+            if (entry.title.equals(title)) {
+                return entry;
+            }
+        }
+        return entries.get(0);
+    }
+
+    /**
+     * Find the books with titles close to the given one, best matches first.
+     * Titles starting with the name come first, then titles containing it,
+     * then titles within a small edit distance.
+     * @param name  the name to look for
+     * @param limit the most books to return
+     * @return      the books found
+     */
+    synchronized List<Entry> findSimilar(String name, int limit) {
+        final String key = normalize(name);
+        final Map<Entry, Integer> ranks = new HashMap<>();
+        if (key.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // prefix matches come straight from the sorted titles
+        SortedMap<String, List<Entry>> prefixed = by_title.subMap(key, key + Character.MAX_VALUE);
+        for (List<Entry> entries : prefixed.values()) {
+            for (Entry entry : entries) {
+                ranks.put(entry, normalize(entry.title).length() - key.length());
+            }
+        }
+
+        int max_distance = Math.max(1, key.length() / 3);
+        for (Map.Entry<String, List<Entry>> titled : by_title.entrySet()) {
+            String title = titled.getKey();
+            int rank;
+            if (title.startsWith(key)) {
+                continue;
+            } else if (title.contains(key)) {
+                rank = 1000 + title.length() - key.length();
+            } else {
+                int distance = editDistance(key, title, max_distance);
+                if (distance > max_distance) {
+                    continue;
+                }
+                rank = 2000 + distance;
+            }
+            for (Entry entry : titled.getValue()) {
+                ranks.put(entry, rank);
+            }
+        }
+
+        List<Entry> found = new ArrayList<>(ranks.keySet());
+        Collections.sort(found, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int by_rank = Integer.compare(ranks.get(a), ranks.get(b));
+                return by_rank != 0 ? by_rank : a.title.compareTo(b.title);
+            }
+        });
+        return found.size() > limit ? found.subList(0, limit) : found;
+    }
+
+    private void put(Entry entry) {
+        Entry old = by_url.put(entry.url, entry);
+        if (old != null) {
+            List<Entry> entries = by_title.get(normalize(old.title));
+            entries.remove(old);
+            if (entries.isEmpty()) {
+                by_title.remove(normalize(old.title));
+            }
+        }
+        String key = normalize(entry.title);
+        List<Entry> entries = by_title.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            by_title.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Fold a title into the form used for matching: full width characters are
+     * turned into half width ones, letters into lower case, and spaces and
+     * punctuation are dropped
+     * @param title the title to fold
+     * @return      the folded title
+     */
+    static String normalize(String title) {
+        StringBuilder key = new StringBuilder(title.length());
+        for (int i = 0; i < title.length(); ++i) {
+            char c = title.charAt(i);
+            if (c == '　') {
+                continue;
+            }
+            if (c >= '！' && c <= '～') {
+                c = (char) (c - 0xFEE0);
+            }
+            if (Character.isLetterOrDigit(c)) {
+                key.append(Character.toLowerCase(c));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Levenshtein distance between two strings, giving up above a limit
+     * @param a     the first string
+     * @param b     the second string
+     * @param limit the largest distance of interest
+     * @return      the distance, or limit + 1 if it is larger than limit
+     */
+    private static int editDistance(String a, String b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) {
+            return limit + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); ++j) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); ++i) {
+            current[0] = i;
+            int row_min = current[0];
+            for (int j = 1; j <= b.length(); ++j) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                row_min = Math.min(row_min, current[j]);
+            }
+            if (row_min > limit) {
+                return limit + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    private static String clean(String field) {
+        return field.replace('\t', ' ').replace('\n', ' ');
+    }
+}
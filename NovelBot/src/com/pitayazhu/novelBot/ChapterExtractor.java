@@ -0,0 +1,329 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.Collector;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lean path from a downloaded chapter page to the text written to its book.
+ * Instead of decoding and parsing the whole page, the raw bytes are scanned for the
+ * first element with the content class, and only that region is decoded and parsed.
+ * Selectors are compiled once, and the text of paragraphs is cleaned straight into the
+ * output buffer. A page whose region cannot be found this way, like a ban page or markup
+ * the scan does not expect, is left to the full parse, and so is a page that names a
+ * class the chapter is read from before the region, where the full parse could pick
+ * another element. On the pages of the site both give the same text, but the region is
+ * parsed on its own, so markup the full parser would rebuild around it, like elements
+ * left open before it, can still make them differ.
+ * @author pitaya
+ */
+class ChapterExtractor {
+
+    static final Evaluator CONTENT = QueryParser.parse(".content");
+    static final Evaluator CHAPTER_TITLE = QueryParser.parse(".book-content > h1");
+    static final Evaluator MAIN_CONTENT = QueryParser.parse(".neirong");
+    static final Evaluator PARAGRAPH = QueryParser.parse("p");
+
+    // the class of the element that holds the title and the paragraphs of a chapter
+    private static final byte[] REGION_CLASS = "content".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLASS_ATTRIBUTE = "class".getBytes(StandardCharsets.US_ASCII);
+    // the classes the chapter is read from, which the full parse could find before the region
+    private static final byte[][] READ_CLASSES = {
+            "book-content".getBytes(StandardCharsets.US_ASCII), "neirong".getBytes(StandardCharsets.US_ASCII)};
+    // a page declares its charset in its first bytes
+    private static final int SNIFF_BYTES = 5 * 1024;
+    private static final Pattern META_CHARSET =
+            Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?([-\\w]+)", Pattern.CASE_INSENSITIVE);
+    // charsets in which a '<' byte and the ASCII letters after it are always markup, never part of another character
+    private static final Set<String> SCANNABLE_CHARSETS = new HashSet<>(Arrays.asList(
+            "UTF-8", "GBK", "GB2312", "GB18030", "BIG5", "US-ASCII", "ISO-8859-1", "WINDOWS-1252"));
+
+    private ChapterExtractor() {
+    }
+
+    /**
+     * Render a chapter from the region of its page that holds it
+     * @param page  the downloaded chapter page
+     * @return      the text of the chapter, or null if the region was not found and the page needs a full parse
+     */
+    static StringBuilder extract(HttpTransport.Page page) {
+        Charset charset = charsetOf(page);
+        if (charset == null || !SCANNABLE_CHARSETS.contains(charset.name().toUpperCase(Locale.ROOT))) {
+            return null;
+        }
+        byte[] body = page.body;
+        int start = regionStart(body);
+        if (start < 0) {
+            return null;
+        }
+        for (byte[] read_class : READ_CLASSES) {
+            if (indexOf(body, read_class, 0, start) >= 0) {
+                return null;
+            }
+        }
+        int name_end = start + 1;
+        while (name_end < body.length && isNameByte(body[name_end])) {
+            name_end++;
+        }
+        if (name_end == start + 1) {
+            return null;
+        }
+        int end = endOfElement(body, start, Arrays.copyOfRange(body, start + 1, name_end));
+
+        Document region = Parser.parseBodyFragment(new String(body, start, end - start, charset), page.url);
+        Element chapter_title = Collector.findFirst(CHAPTER_TITLE, region);
+        Element main_content = Collector.findFirst(MAIN_CONTENT, region);
+        if (chapter_title == null || main_content == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder(Math.max(256, (end - start) / 2));
+        render(chapter_title, main_content, text);
+        return text;
+    }
+
+    /**
+     * Render a chapter from its parsed page
+     * @param chapter_page  the parsed chapter page, with content
+     * @param text          the text to add the chapter to
+     */
+    static void render(Document chapter_page, StringBuilder text) {
+        render(Collector.findFirst(CHAPTER_TITLE, chapter_page), Collector.findFirst(MAIN_CONTENT, chapter_page),
+                text);
+    }
+
+    private static void render(Element chapter_title, Element main_content, StringBuilder text) {
+        text.append(chapter_title.text()).append(BookWriter.LINE_SEPARATOR);
+        Elements paragraphs = main_content.select(PARAGRAPH);
+        if (paragraphs.size() == 0) {
+            appendParagraph(main_content, text);
+        } else {
+            for (Element paragraph : paragraphs) {
+                appendParagraph(paragraph, text);
+            }
+        }
+        text.append(BookWriter.LINE_SEPARATOR);
+    }
+
+    /**
+     * Add the text nodes of an element to a text, one indented line each.
+     * Same as the whitespace-normalized text of each node with full-width spaces
+     * turned into plain ones and trimmed, but written in place.
+     * @param paragraph the element
+     * @param text      the text to add to
+     */
+    static void appendParagraph(Element paragraph, StringBuilder text) {
+        for (Node child : paragraph.childNodes()) {
+            if (!(child instanceof TextNode)) {
+                continue;
+            }
+            text.append("　　");
+            int start = text.length();
+            appendNormalized(((TextNode) child).getWholeText(), text);
+            int end = text.length();
+            for (int i = start; i < end; ++i) {
+                if (text.charAt(i) == '　') {
+                    text.setCharAt(i, ' ');
+                }
+            }
+            while (end > start && text.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            text.setLength(end);
+            int first = start;
+            while (first < end && text.charAt(first) <= ' ') {
+                first++;
+            }
+            if (first > start) {
+                text.delete(start, first);
+            }
+            text.append(BookWriter.LINE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Add a string with every run of whitespace turned into one space and invisible characters dropped,
+     * as Jsoup normalizes the text of a node
+     */
+    private static void appendNormalized(String string, StringBuilder text) {
+        boolean last_was_white = false;
+        for (int i = 0; i < string.length(); ) {
+            int c = string.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == 160) {
+                if (!last_was_white) {
+                    text.append(' ');
+                    last_was_white = true;
+                }
+            } else if (c != 8203 && c != 173) {
+                // not a zero width space or a soft hyphen
+                text.appendCodePoint(c);
+                last_was_white = false;
+            }
+        }
+    }
+
+    /**
+     * Find the charset of a page the way Jsoup does: from the response, a byte order mark or a meta tag
+     * @param page  the page
+     * @return      the charset, or null if it is not supported here
+     */
+    private static Charset charsetOf(HttpTransport.Page page) {
+        String name = page.charset;
+        if (name == null) {
+            byte[] body = page.body;
+            if (body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb &&
+                    (body[2] & 0xff) == 0xbf) {
+                // the mark would end up in the text, the full parse drops it
+                return null;
+            }
+            Matcher matcher = META_CHARSET.matcher(
+                    new String(body, 0, Math.min(body.length, SNIFF_BYTES), StandardCharsets.ISO_8859_1));
+            name = matcher.find() ? matcher.group(1) : "UTF-8";
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the first tag with the content class among the classes of its class attribute,
+     * quoted either way or not at all, in any case as Jsoup matches classes
+     * @param body  the page
+     * @return      the position of the '<' of the tag, or -1 if there is none
+     */
+    private static int regionStart(byte[] body) {
+        for (int at = 1; at < body.length; ++at) {
+            // an attribute name follows a space, which leaves out names like data-class
+            if (!isSpace(body[at - 1]) || !nameAt(body, at, CLASS_ATTRIBUTE)) {
+                continue;
+            }
+            int i = skipSpaces(body, at + CLASS_ATTRIBUTE.length);
+            if (i >= body.length || body[i] != '=') {
+                continue;
+            }
+            i = skipSpaces(body, i + 1);
+            byte quote = i < body.length && (body[i] == '"' || body[i] == '\'') ? body[i++] : 0;
+            int value_end = i;
+            while (value_end < body.length && (quote != 0 ? body[value_end] != quote :
+                    !isSpace(body[value_end]) && body[value_end] != '>')) {
+                value_end++;
+            }
+            if (!hasClass(body, i, value_end, REGION_CLASS)) {
+                continue;
+            }
+            // the attribute must be inside a tag, not in the text of the page
+            int start = at;
+            while (start > 0 && body[start] != '<' && body[start] != '>') {
+                start--;
+            }
+            if (body[start] == '<') {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasClass(byte[] body, int start, int end, byte[] name) {
+        int i = start;
+        while (i < end) {
+            while (i < end && isSpace(body[i])) {
+                i++;
+            }
+            int name_start = i;
+            while (i < end && !isSpace(body[i])) {
+                i++;
+            }
+            if (i - name_start == name.length && regionMatches(body, name_start, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find where an element ends by counting the elements of the same tag opened and closed after it
+     * @param body  the page
+     * @param start the position of the '<' of the element
+     * @param tag   the name of the element
+     * @return      the position after its end tag, or the end of the page if it is never closed
+     */
+    private static int endOfElement(byte[] body, int start, byte[] tag) {
+        int depth = 0;
+        for (int i = start; i < body.length; ++i) {
+            if (body[i] != '<') {
+                continue;
+            }
+            boolean closing = i + 1 < body.length && body[i + 1] == '/';
+            int name_start = closing ? i + 2 : i + 1;
+            if (!nameAt(body, name_start, tag)) {
+                continue;
+            }
+            depth += closing ? -1 : 1;
+            if (depth == 0) {
+                int close = indexOf(body, new byte[]{'>'}, name_start, body.length);
+                return close < 0 ? body.length : close + 1;
+            }
+        }
+        return body.length;
+    }
+
+    private static boolean nameAt(byte[] body, int position, byte[] tag) {
+        if (position + tag.length >= body.length) {
+            return false;
+        }
+        return regionMatches(body, position, tag) && !isNameByte(body[position + tag.length]);
+    }
+
+    private static boolean regionMatches(byte[] body, int position, byte[] name) {
+        for (int i = 0; i < name.length; ++i) {
+            if (Character.toLowerCase(body[position + i]) != Character.toLowerCase(name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static int skipSpaces(byte[] body, int position) {
+        while (position < body.length && isSpace(body[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Find a name in a range of the page, in any case
+     */
+    private static int indexOf(byte[] body, byte[] pattern, int from, int to) {
+        for (int i = from; i <= to - pattern.length; ++i) {
+            if (regionMatches(body, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
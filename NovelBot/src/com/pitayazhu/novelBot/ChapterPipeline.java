@@ -0,0 +1,411 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads chapters in three stages connected by bounded queues, handing them back in catalog order.
+ * Fetchers only wait on the network and hand the raw pages to parsers, which build
+ * the DOM and render the chapter text, so downloading and parsing overlap instead of
+ * taking turns. The writer is the thread saving the book: it takes the rendered
+ * chapters strictly in catalog order from a reorder window.
+ * Each list of chapters has at most a window of them in the pipeline and the queue in
+ * front of the parsers blocks when full, so memory stays bounded when one stage falls behind.
+ * A chapter that failed to download, or whose page turned out to have no content, goes
+ * back to the fetch queue, which hands it out again only once the backoff of the shared
+ * retry policy is over. No thread sleeps out a backoff, and parsers never touch the network.
+ * @author pitaya
+ */
+class ChapterPipeline {
+
+    // how many chapters of a list may be in the pipeline ahead of the one being written, per fetcher
+    private static final int WINDOW_PER_FETCHER = 2;
+
+    /**
+     * Counters of one stage
+     */
+    static class Stage {
+        final String name;
+        final int threads;
+        private final BlockingQueue<Chapter> queue;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong busy_nanos = new AtomicLong();
+        private final AtomicLong max_depth = new AtomicLong();
+        // time each chapter spent in the stage, or null if it is not reported
+        private final LatencyHistogram times;
+
+        private Stage(String name, int threads, BlockingQueue<Chapter> queue, LatencyHistogram times) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(name + " threads must be positive: " + threads);
+            }
+            this.name = name;
+            this.threads = threads;
+            this.times = times;
+            this.queue = queue;
+        }
+
+        private void put(Chapter chapter) throws InterruptedException {
+            queue.put(chapter);
+            long depth = queue.size();
+            long max;
+            while (depth > (max = max_depth.get()) && !max_depth.compareAndSet(max, depth)) {
+                // another thread raised it first
+            }
+        }
+
+        private void done(long start) {
+            long nanos = System.nanoTime() - start;
+            processed.incrementAndGet();
+            busy_nanos.addAndGet(nanos);
+            if (times != null) {
+                times.record(nanos);
+            }
+        }
+
+        /**
+         * Get the chapters waiting for this stage
+         * @return  the depth of the queue in front of the stage
+         */
+        int depth() {
+            return queue == null ? 0 : queue.size();
+        }
+
+        @Override
+        public String toString() {
+            long count = processed.get();
+            return String.format("%-6s %2d thread(s), queue %3d/%-3s (max %3d), %6d done, %8.2f ms each",
+                    name, threads, depth(), queue == null || queue.remainingCapacity() == Integer.MAX_VALUE ? "-" :
+                            String.valueOf(depth() + queue.remainingCapacity()),
+                    max_depth.get(), count, count == 0 ? 0 : busy_nanos.get() / 1e6 / count);
+        }
+    }
+
+    private final Stage fetch_stage;
+    private final Stage parse_stage;
+    private final Stage write_stage;
+    private final int window;
+    private final CrawlMetrics metrics;
+
+    /**
+     * Create a pipeline and start its fetcher and parser threads
+     * @param fetch_threads the number of chapters downloaded at the same time
+     * @param parse_threads the number of chapters parsed at the same time
+     * @param queue_depth   the most chapters waiting in front of the parsers, the fetchers have the windows as their bound
+     * @param metrics       the metrics the parse and write times, chapters and retries are counted in
+     */
+    ChapterPipeline(int fetch_threads, int parse_threads, int queue_depth, CrawlMetrics metrics) {
+        if (queue_depth < 1) {
+            throw new IllegalArgumentException("Queue depth must be positive: " + queue_depth);
+        }
+        this.metrics = metrics;
+        // the time of a successful request is already counted by the request scheduler
+        // ordered by when each chapter may be fetched, so retries wait out their backoff in the queue
+        fetch_stage = new Stage("fetch", fetch_threads, new DelayQueue<Chapter>(), null);
+        parse_stage = new Stage("parse", parse_threads, new ArrayBlockingQueue<Chapter>(queue_depth), metrics.parse_time);
+        // the writer has no queue, it waits on the reorder window instead
+        write_stage = new Stage("write", 1, null, metrics.write_time);
+        window = fetch_threads * WINDOW_PER_FETCHER;
+
+        for (int i = 0; i < fetch_threads; ++i) {
+            startWorker("chapter-fetcher-" + (i + 1), new Runnable() {
+                @Override
+                public void run() {
+                    fetchLoop();
+                }
+            });
+        }
+        for (int i = 0; i < parse_threads; ++i) {
+            startWorker("chapter-parser-" + (i + 1), new Runnable() {
+                @Override
+                public void run() {
+                    parseLoop();
+                }
+            });
+        }
+    }
+
+    /**
+     * Start downloading a list of chapters
+     * @param chapter_urls  the links of the chapters in catalog order
+     * @return              the queue to take the saved chapters from
+     * @throws IOException
+     */
+    Chapters fetch(List<String> chapter_urls) throws IOException {
+        return new Chapters(chapter_urls);
+    }
+
+    /**
+     * Get the counters of the fetch, parse and write stages
+     * @return  one line for each stage
+     */
+    String stats() {
+        return fetch_stage + "\n" + parse_stage + "\n" + write_stage;
+    }
+
+    /**
+     * One chapter on its way through the pipeline
+     */
+    private static class Chapter implements Delayed {
+        final Chapters list;
+        final String url;
+        final RetryPolicy.Retries retries = NovelBot.retry_policy.start("Chapter", NovelBot.TOTAL_RETRY_COUNT, true);
+        HttpTransport.Page page;
+        // the rendered chapter, encoded as UTF-8
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        // when the chapter may be fetched, in System.nanoTime
+        volatile long not_before = System.nanoTime();
+        // whether the next fetch must go to the site, since a page already failed
+        volatile boolean skip_cache = false;
+
+        Chapter(Chapters list, String url) {
+            this.list = list;
+            this.url = url;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(not_before - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(not_before, ((Chapter) other).not_before);
+        }
+    }
+
+    /**
+     * Reorder window of one list of chapters, taken strictly in catalog order
+     */
+    class Chapters {
+
+        private final List<String> chapter_urls;
+        private final ArrayDeque<Chapter> pending = new ArrayDeque<>();
+        private int next_submit = 0;
+        private volatile boolean cancelled = false;
+
+        private Chapters(List<String> chapter_urls) throws IOException {
+            this.chapter_urls = chapter_urls;
+            fill();
+        }
+
+        /**
+         * Wait for the next chapter in catalog order and write it out
+         * @param writer    the writer of the book
+         * @return          the text written, encoded as UTF-8
+         * @throws IOException
+         */
+        byte[] writeNext(BookWriter writer) throws IOException {
+            Chapter head = pending.poll();
+            if (head == null) {
+                throw new IllegalStateException("No more chapters to write.");
+            }
+            long start = System.nanoTime();
+            byte[] text;
+            try {
+                text = head.result.get();
+                writer.write(text);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new InterruptedIOException("Interrupted while waiting for chapter.");
+            } catch (ExecutionException ee) {
+                cancel();
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+            write_stage.done(start);
+            metrics.chapters.increment();
+            fill();
+            return text;
+        }
+
+        /**
+         * Stop all chapters not yet written
+         */
+        void cancel() {
+            cancelled = true;
+            for (Chapter chapter : pending) {
+                chapter.result.cancel(false);
+            }
+            pending.clear();
+            next_submit = chapter_urls.size();
+        }
+
+        private void fill() throws IOException {
+            while (pending.size() < window && next_submit < chapter_urls.size()) {
+                Chapter chapter = new Chapter(this, chapter_urls.get(next_submit++));
+                pending.add(chapter);
+                try {
+                    fetch_stage.put(chapter);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new InterruptedIOException("Interrupted while queueing chapter.");
+                }
+            }
+        }
+    }
+
+    private void fetchLoop() {
+        while (true) {
+            Chapter chapter;
+            try {
+                chapter = fetch_stage.queue.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (chapter.list.cancelled) {
+                chapter.result.completeExceptionally(new CancellationException());
+                continue;
+            }
+            try {
+                try {
+                    chapter.page = chapter.skip_cache ? NovelBot.download(chapter.url) :
+                            NovelBot.downloadChapter(chapter.url);
+                } catch (IOException ioe) {
+                    fetch_stage.done(start);
+                    retryLater(chapter, ioe);
+                    continue;
+                }
+                fetch_stage.done(start);
+                parse_stage.put(chapter);
+            } catch (IOException | RuntimeException e) {
+                chapter.result.completeExceptionally(e);
+            } catch (InterruptedException ie) {
+                chapter.result.completeExceptionally(new InterruptedIOException("Interrupted while queueing chapter."));
+                return;
+            }
+        }
+    }
+
+    private void parseLoop() {
+        while (true) {
+            Chapter chapter;
+            try {
+                chapter = parse_stage.queue.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (chapter.list.cancelled) {
+                chapter.result.completeExceptionally(new CancellationException());
+                continue;
+            }
+            try {
+                StringBuilder text;
+                try {
+                    text = render(chapter);
+                } catch (IOException ioe) {
+                    parse_stage.done(start);
+                    if (chapter.page.cached) {
+                        // no request was made, so it is not a failure of the site: drop the page and fetch it
+                        NovelBot.dropChapter(chapter.url);
+                        chapter.page = null;
+                        chapter.skip_cache = true;
+                        fetch_stage.queue.add(chapter);
+                    } else {
+                        retryLater(chapter, ioe);
+                    }
+                    continue;
+                }
+                // the raw page is not needed any more
+                chapter.page = null;
+                complete(chapter, text);
+                parse_stage.done(start);
+            } catch (IOException | RuntimeException e) {
+                chapter.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Send a failed chapter back to the fetchers once its backoff is over,
+     * or hand it to the writer as missing if the retry policy gives it up
+     * @param chapter   the chapter
+     * @param failure   the exception the chapter failed with
+     * @throws IOException  if the thread was interrupted
+     */
+    private void retryLater(Chapter chapter, IOException failure) throws IOException {
+        chapter.page = null;
+        chapter.skip_cache = true;
+        long delay = chapter.retries.next(chapter.url, failure);
+        if (delay < 0) {
+            complete(chapter, null);
+            return;
+        }
+        chapter.not_before = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        // the fetch queue is unbounded, so this never blocks a parser behind the fetchers
+        fetch_stage.queue.add(chapter);
+    }
+
+    /**
+     * Render the page of a chapter.
+     * Only the region holding the chapter is parsed, unless it cannot be found, which is
+     * what a page without content looks like, so then the whole page is parsed to check.
+     * @param chapter   the chapter, with its page downloaded
+     * @return          the text of the chapter
+     * @throws IOException  if the page has no content
+     */
+    private static StringBuilder render(Chapter chapter) throws IOException {
+        StringBuilder text = ChapterExtractor.extract(chapter.page);
+        if (text == null) {
+            Document chapter_page = chapter.page.parse();
+            if (!NovelBot.hasContent(chapter_page)) {
+                // a page without content is usually the site pushing back
+                throw new RetryPolicy.UnusablePageException(RetryPolicy.isBlocked(chapter_page) ?
+                        RetryPolicy.ErrorClass.THROTTLED : RetryPolicy.ErrorClass.NO_CONTENT,
+                        "No content in " + chapter.url);
+            }
+            text = new StringBuilder();
+            NovelBot.saveChapter(chapter_page, text);
+        }
+        if (!chapter.page.cached) {
+            NovelBot.request_scheduler.reportSuccess(chapter.url);
+        }
+        NovelBot.keepChapter(chapter.url, chapter.page);
+        return text;
+    }
+
+    /**
+     * Hand a rendered chapter to the writer
+     * @param chapter   the chapter
+     * @param text      the text of the chapter, or null if it could not be read
+     */
+    private static void complete(Chapter chapter, StringBuilder text) {
+        if (text == null) {
+            text = new StringBuilder();
+            NovelBot.saveMissingChapter(text);
+        }
+        // encoded here in one go, so the writer only copies bytes
+        chapter.result.complete(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void startWorker(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        // never keep the program alive only for idle workers
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,130 @@
+package com.pitayazhu.novelBot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * Measures the crawler against a local stand-in of the book site, so that changes to
+ * concurrency or retries can be compared without visiting the real site.
+ * Every run saves one book, or one whole category, into a temporary directory and
+ * reports chapters per second, bytes per second and the fetch latency percentiles.
+ * The crawler is configured by its usual system properties, e.g. -Dnovelbot.rate=50.
+ * Usage: CrawlBenchmark [book|category] [-runs n] [-latency ms] [-jitter ms] [-error_rate share]
+ *        [-ban_rate requests per second] [-ban_millis ms] [-pages n] [-books n] [-volumes n]
+ *        [-chapters n] [-paragraphs n] [-verbose]
+ * @author pitaya
+ */
+public class CrawlBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        boolean category = args.length > 0 && args[0].equals("category");
+        int runs = Integer.parseInt(option(args, "-runs", "3"));
+        boolean verbose = false;
+        for (String arg : args) {
+            verbose |= arg.equals("-verbose");
+        }
+
+        StandInSite.Settings settings = new StandInSite.Settings();
+        settings.latency_millis = Long.parseLong(option(args, "-latency", String.valueOf(settings.latency_millis)));
+        settings.jitter_millis = Long.parseLong(option(args, "-jitter", String.valueOf(settings.jitter_millis)));
+        settings.error_rate = Double.parseDouble(option(args, "-error_rate", String.valueOf(settings.error_rate)));
+        settings.ban_rate = Double.parseDouble(option(args, "-ban_rate", String.valueOf(settings.ban_rate)));
+        settings.ban_millis = Long.parseLong(option(args, "-ban_millis", String.valueOf(settings.ban_millis)));
+        settings.pages_per_category = Integer.parseInt(option(args, "-pages",
+                String.valueOf(settings.pages_per_category)));
+        settings.books_per_page = Integer.parseInt(option(args, "-books", String.valueOf(settings.books_per_page)));
+        settings.volumes = Integer.parseInt(option(args, "-volumes", String.valueOf(settings.volumes)));
+        settings.chapters_per_volume = Integer.parseInt(option(args, "-chapters",
+                String.valueOf(settings.chapters_per_volume)));
+        settings.paragraphs_per_chapter = Integer.parseInt(option(args, "-paragraphs",
+                String.valueOf(settings.paragraphs_per_chapter)));
+
+        StandInSite site = new StandInSite(settings);
+        site.start();
+        // must be set before NovelBot is first used, since its base url is read once
+        System.setProperty("novelbot.base_url", site.baseUrl());
+        // every run downloads everything, unless a cache is asked for
+        if (System.getProperty("novelbot.cache_dir") == null) {
+            System.setProperty("novelbot.cache_dir", "none");
+        }
+
+        String target = category ? NovelBot.BASE_URL + "c0/1.html" : NovelBot.BASE_URL + "b0/";
+        System.out.println("Benchmarking " + (category ? "saveCategory" : "saveBook") + " on " + target +
+                ", parallelism " + NovelBot.PARALLELISM + ", rate " + NovelBot.MAX_RATE +
+                ", in flight " + NovelBot.MAX_IN_FLIGHT);
+        System.out.printf("%4s %10s %9s %10s %10s %10s %10s %9s %6s%n",
+                "run", "seconds", "chapters", "chapters/s", "KB/s", "p50 ms", "p99 ms", "failures", "bans");
+
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        try {
+            for (int run = 1; run <= runs; ++run) {
+                File directory = Files.createTempDirectory("novelbot-benchmark").toFile();
+                NovelBot.journal = new CrawlJournal();
+                NovelBot.request_scheduler.latencies().reset();
+                site.reset();
+
+                // the crawler reports its progress on the console, which would drown the results
+                if (!verbose) {
+                    System.setOut(discard);
+                }
+                long start = System.nanoTime();
+                try {
+                    if (category) {
+                        NovelBot.saveCategory(target, directory.getPath(), NovelBot.TOTAL_RETRY_COUNT);
+                    } else {
+                        NovelBot.saveBook(target, directory.getPath(), NovelBot.TOTAL_RETRY_COUNT);
+                    }
+                } finally {
+                    System.setOut(console);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                LatencyHistogram latencies = NovelBot.request_scheduler.latencies();
+                System.out.printf("%4d %10.2f %9d %10.1f %10.1f %10.1f %10.1f %9d %6d%n", run, seconds,
+                        site.chapters(), site.chapters() / seconds, site.bytes() / seconds / 1024,
+                        latencies.percentile(0.50) / 1e6, latencies.percentile(0.99) / 1e6,
+                        site.failures(), site.bans());
+                delete(directory);
+            }
+            System.out.println();
+            System.out.println("Pipeline stages over all runs (parse threads " + NovelBot.PARSE_THREADS +
+                    ", queue depth " + NovelBot.QUEUE_DEPTH + "):");
+            System.out.println(NovelBot.chapter_pipeline.stats());
+        } finally {
+            site.stop();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.out.println("Warning: cannot delete " + file);
+        }
+    }
+
+    private static String option(String[] args, String name, String default_value) {
+        for (int i = 0; i + 1 < args.length; ++i) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return default_value;
+    }
+}
@@ -0,0 +1,215 @@
+package com.pitayazhu.novelBot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent crawl frontier: the books found in category pages that are still to be
+ * downloaded, and the urls the crawl has already done, kept across runs and categories.
+ * A book enters the frontier only once, however many categories or pages list it, so
+ * it is never downloaded twice, and one left unfinished by an interrupted run is handed
+ * out again by the next crawl of the same category. Finished books and written chapters
+ * are recorded as visited. Both sets are UrlSets, so the frontier can hold tens of
+ * millions of chapter urls in a small, fixed amount of heap; the queue itself is an
+ * append-only file read from a recorded head.
+ * The sets are memory-mapped, so what is added survives the process being killed as
+ * soon as it is added; flush and close force it to the disk as well, which is done
+ * when a category is finished and when the program exits.
+ * @author pitaya
+ */
+class CrawlFrontier {
+
+    private static final String QUEUED_FILE = "queued";
+    private static final String VISITED_FILE = "visited";
+    private static final String QUEUE_FILE = "frontier.log";
+    private static final String HEAD_FILE = "frontier.head";
+
+    private final File directory;
+    // every url that was ever put in the queue
+    private final UrlSet queued;
+    private final UrlSet visited;
+    private final Writer queue;
+    private boolean closed = false;
+
+    /**
+     * Create a frontier that is not kept anywhere and lets every url through
+     */
+    CrawlFrontier() {
+        directory = null;
+        queued = null;
+        visited = null;
+        queue = null;
+    }
+
+    /**
+     * Open a frontier directory, creating it if it does not exist
+     * @param directory     the directory of the frontier
+     * @param expected_urls the number of urls the sets are sized for
+     * @throws IOException
+     */
+    CrawlFrontier(File directory, long expected_urls) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+        this.directory = directory;
+        queued = new UrlSet(new File(directory, QUEUED_FILE).getPath(), expected_urls / 16);
+        visited = new UrlSet(new File(directory, VISITED_FILE).getPath(), expected_urls);
+        queue = new OutputStreamWriter(new FileOutputStream(new File(directory, QUEUE_FILE), true),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Put a book in the queue, unless it was queued or visited before
+     * @param url               the link of the book
+     * @param category_url      the url of the category the book was found in
+     * @param save_directory    the directory the book is saved in
+     * @return                  whether the book is new and should be downloaded
+     * @throws IOException
+     */
+    synchronized boolean offer(String url, String category_url, String save_directory) throws IOException {
+        if (queued == null) {
+            return true;
+        }
+        if (visited.contains(url) || !queued.add(url)) {
+            return false;
+        }
+        queue.write(url + "\t" + category_url + "\t" + save_directory + "\n");
+        queue.flush();
+        return true;
+    }
+
+    /**
+     * Get the books of a category queued before that are not visited yet, and move the
+     * head of the queue past the books at its front that are all visited
+     * @param category_url  the url of the category
+     * @return              the link and save directory of each book
+     * @throws IOException
+     */
+    synchronized List<Map.Entry<String, String>> pending(String category_url) throws IOException {
+        List<Map.Entry<String, String>> books = new ArrayList<>();
+        if (queued == null) {
+            return books;
+        }
+        queue.flush();
+        long head = readHead();
+        long new_head = head;
+        long position = head;
+        // whether an unvisited book of any category was passed, which the head must not move past
+        boolean head_blocked = false;
+        FileInputStream in = new FileInputStream(new File(directory, QUEUE_FILE));
+        // the head always ends a line, so reading starts right after it
+        in.getChannel().position(head);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 3) {
+                    // a line cut short by a crash
+                    break;
+                }
+                if (!visited.contains(fields[0])) {
+                    head_blocked = true;
+                    if (fields[1].equals(category_url)) {
+                        books.add(new AbstractMap.SimpleEntry<>(fields[0], fields[2]));
+                    }
+                } else if (!head_blocked) {
+                    new_head = position;
+                }
+            }
+        }
+        if (new_head != head) {
+            writeHead(new_head);
+        }
+        return books;
+    }
+
+    /**
+     * Check whether an url was visited
+     * @param url   the url
+     * @return      whether it was recorded as done
+     * @throws IOException
+     */
+    boolean isVisited(String url) throws IOException {
+        return visited != null && visited.contains(url);
+    }
+
+    /**
+     * Record an url as done
+     * @param url   the url of a finished book or a written chapter
+     * @throws IOException
+     */
+    void visit(String url) throws IOException {
+        if (visited != null) {
+            visited.add(url);
+        }
+    }
+
+    /**
+     * Write the frontier out to disk
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        if (queued != null && !closed) {
+            queue.flush();
+            queued.flush();
+            visited.flush();
+        }
+    }
+
+    /**
+     * Write the frontier out to disk and close its files
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        if (queued == null || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.close();
+        } finally {
+            try {
+                queued.close();
+            } finally {
+                visited.close();
+            }
+        }
+    }
+
+    private long readHead() throws IOException {
+        File head_file = new File(directory, HEAD_FILE);
+        if (!head_file.exists()) {
+            return 0;
+        }
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(head_file), StandardCharsets.UTF_8))) {
+            String line = br.readLine();
+            return line == null || line.isEmpty() ? 0 : Long.parseLong(line.trim());
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    private void writeHead(long head) throws IOException {
+        File temp = new File(directory, HEAD_FILE + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            out.write(head + "\n");
+        }
+        File head_file = new File(directory, HEAD_FILE);
+        if (!temp.renameTo(head_file)) {
+            throw new IOException("Cannot replace " + head_file);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.pitayazhu.novelBot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of finished crawl work, used to resume an interrupted download.
+ * Every line is one record of tab separated fields. The journal is replayed on
+ * start so that finished pages and books can be skipped, and a partly written
+ * book can be cut back to its last finished chapter and continued from there.
+ * The layout of every saved book is kept as well, so a book can later be updated
+ * by cutting it back to where its catalog changed and appending only what is new.
+ * @author pitaya
+ */
+class CrawlJournal {
+
+    private static final String CATEGORY = "CATEGORY";
+    private static final String CATEGORY_DONE = "CATEGORY_DONE";
+    private static final String PAGE = "PAGE";
+    private static final String BOOK_START = "BOOK_START";
+    private static final String HEADER = "HEADER";
+    private static final String TITLE = "TITLE";
+    private static final String CHAPTER = "CHAPTER";
+    private static final String VOLUME = "VOLUME";
+    private static final String BOOK = "BOOK";
+    private static final String REOPEN = "REOPEN";
+
+    /**
+     * Where to continue writing a partly saved book
+     */
+    static class BookProgress {
+        final String file_name;
+        // the length of the file when the last finished step was recorded
+        long offset = 0;
+        // the volume to continue with
+        int volume = 0;
+        // the chapter to continue with, or -1 if the volume title is not written yet
+        int chapter = -1;
+        boolean header_saved = false;
+
+        BookProgress(String file_name) {
+            this.file_name = file_name;
+        }
+    }
+
+    /**
+     * Where every volume of a saved book ends in its file
+     */
+    static class SavedBook {
+        final String file_name;
+        // the length of the file after the book header
+        long header_offset = -1;
+        // for every volume: the chapters saved, the offset before its trailer and the offset after it
+        private final List<long[]> volumes = new ArrayList<>();
+
+        SavedBook(String file_name) {
+            this.file_name = file_name;
+        }
+
+        int volumeCount() {
+            return volumes.size();
+        }
+
+        int chapterCount(int volume) {
+            return (int) volumes.get(volume)[0];
+        }
+
+        /**
+         * Get the length the file should have
+         * @return  the offset after the last volume, or -1 if it is not known
+         */
+        long length() {
+            return volumes.isEmpty() ? header_offset : volumes.get(volumes.size() - 1)[2];
+        }
+
+        private long[] volume(int volume) {
+            while (volumes.size() <= volume) {
+                volumes.add(new long[]{0, -1, -1});
+            }
+            return volumes.get(volume);
+        }
+    }
+
+    private final boolean resuming;
+    private final Writer out;
+
+    private final Map<String, String> unfinished_categories = new LinkedHashMap<>();
+    private final Map<String, String> finished_pages = new HashMap<>();
+    private final Map<String, BookProgress> unfinished_books = new LinkedHashMap<>();
+    private final Set<String> finished_books = new HashSet<>();
+    private final Map<String, SavedBook> saved_books = new LinkedHashMap<>();
+    // the book each file is claimed by, whether recorded in the journal or claimed since
+    private final Map<String, String> file_books = new HashMap<>();
+
+    /**
+     * Create a journal that is not written anywhere and never resumes
+     */
+    CrawlJournal() {
+        resuming = false;
+        out = null;
+    }
+
+    /**
+     * Open a journal file, replaying its records if it exists
+     * @param file      the journal file
+     * @param resuming  whether finished work should be skipped
+     * @throws IOException
+     */
+    CrawlJournal(File file, boolean resuming) throws IOException {
+        this.resuming = resuming;
+        if (file.exists()) {
+            replay(file);
+        }
+        out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the most recently started category that was not finished
+     * @return  the url and save directory of the category, or null if none
+     */
+    synchronized Map.Entry<String, String> lastUnfinishedCategory() {
+        Map.Entry<String, String> last = null;
+        for (Map.Entry<String, String> entry : unfinished_categories.entrySet()) {
+            last = entry;
+        }
+        return last;
+    }
+
+    /**
+     * Get the most recently started book that was not finished
+     * @return  the url and file name of the book, or null if none
+     */
+    synchronized Map.Entry<String, String> lastUnfinishedBook() {
+        Map.Entry<String, String> last = null;
+        for (Map.Entry<String, BookProgress> entry : unfinished_books.entrySet()) {
+            last = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().file_name);
+        }
+        return last;
+    }
+
+    /**
+     * Get the progress of a book that should be continued
+     * @param book_url  the link of the book
+     * @return          the progress, or null if the book should be saved from the beginning
+     */
+    synchronized BookProgress progressOf(String book_url) {
+        if (!resuming) {
+            return null;
+        }
+        BookProgress progress = unfinished_books.get(book_url);
+        return progress != null && progress.header_saved ? progress : null;
+    }
+
+    /**
+     * Get the layout of a book that was saved to the end, whether or not the journal is resuming
+     * @param book_url  the link of the book
+     * @return          the layout, or null if the book was never saved to the end
+     */
+    synchronized SavedBook savedBook(String book_url) {
+        return finished_books.contains(book_url) ? saved_books.get(book_url) : null;
+    }
+
+    /**
+     * Get every book that was saved to the end
+     * @return  the links of the books, in the order they were first saved
+     */
+    synchronized List<String> savedBookUrls() {
+        List<String> book_urls = new ArrayList<>();
+        for (String book_url : saved_books.keySet()) {
+            if (finished_books.contains(book_url)) {
+                book_urls.add(book_url);
+            }
+        }
+        return book_urls;
+    }
+
+    synchronized boolean isBookFinished(String book_url) {
+        return resuming && finished_books.contains(book_url);
+    }
+
+    /**
+     * Get the next page of a category page that was fully saved
+     * @param page_url  the link of the page
+     * @return          the link of the next page, "" for the last page, or null if the page is not finished
+     */
+    synchronized String nextOfFinishedPage(String page_url) {
+        return resuming ? finished_pages.get(page_url) : null;
+    }
+
+    synchronized void startCategory(String category_url, String save_directory) throws IOException {
+        unfinished_categories.remove(category_url);
+        unfinished_categories.put(category_url, save_directory);
+        append(CATEGORY, category_url, save_directory);
+    }
+
+    synchronized void finishCategory(String category_url) throws IOException {
+        unfinished_categories.remove(category_url);
+        append(CATEGORY_DONE, category_url);
+    }
+
+    synchronized void finishPage(String page_url, String next_page_url) throws IOException {
+        String next = next_page_url == null ? "" : next_page_url;
+        finished_pages.put(page_url, next);
+        append(PAGE, page_url, next);
+    }
+
+    /**
+     * Choose the file a book is saved to and claim it for the book. A book keeps the file the
+     * journal has for it; any other book gets the file named after its title, unless another
+     * book has claimed that one, as a book of the same title does, in which case it gets the
+     * alternative. Claiming at once keeps two books started together off the same file.
+     * @param book_url      the link of the book
+     * @param file_name     the file named after the title of the book
+     * @param alternative   the file to use if another book has the first one
+     * @return              the file to save the book to
+     */
+    synchronized String claimFile(String book_url, String file_name, String alternative) {
+        SavedBook saved = saved_books.get(book_url);
+        if (saved != null && (saved.file_name.equals(file_name) || saved.file_name.equals(alternative))) {
+            return saved.file_name;
+        }
+        String owner = file_books.get(file_name);
+        String claimed = owner == null || owner.equals(book_url) ? file_name : alternative;
+        file_books.put(claimed, book_url);
+        return claimed;
+    }
+
+    synchronized void startBook(String book_url, String file_name) throws IOException {
+        file_books.put(file_name, book_url);
+        finished_books.remove(book_url);
+        unfinished_books.remove(book_url);
+        unfinished_books.put(book_url, new BookProgress(file_name));
+        saved_books.put(book_url, new SavedBook(file_name));
+        append(BOOK_START, book_url, file_name);
+    }
+
+    /**
+     * Continue a saved book from a volume, forgetting everything saved after that point
+     * @param book_url  the link of the book
+     * @param volume    the volume to continue with
+     * @param chapter   the chapters of the volume to keep, or -1 to write the volume again from its title
+     * @return          the progress to continue writing from
+     * @throws IOException
+     */
+    synchronized BookProgress reopenBook(String book_url, int volume, int chapter) throws IOException {
+        SavedBook saved = saved_books.get(book_url);
+        if (saved == null) {
+            throw new IllegalStateException("Book was never saved: " + book_url);
+        }
+        long offset;
+        if (chapter >= 0) {
+            offset = saved.volume(volume)[1];
+        } else {
+            offset = volume == 0 ? saved.header_offset : saved.volume(volume - 1)[2];
+        }
+        if (offset < 0) {
+            throw new IllegalStateException("Volume " + volume + " of " + book_url + " has no recorded offset");
+        }
+        reopen(book_url, volume, chapter, offset);
+        append(REOPEN, book_url, String.valueOf(volume), String.valueOf(chapter), String.valueOf(offset));
+        return unfinished_books.get(book_url);
+    }
+
+    synchronized void saveHeader(String book_url, long offset) throws IOException {
+        apply(HEADER, book_url, -1, -1, offset);
+        append(HEADER, book_url, String.valueOf(offset));
+    }
+
+    synchronized void saveVolumeTitle(String book_url, int volume, long offset) throws IOException {
+        apply(TITLE, book_url, volume, -1, offset);
+        append(TITLE, book_url, String.valueOf(volume), String.valueOf(offset));
+    }
+
+    synchronized void saveChapter(String book_url, int volume, int chapter, long offset) throws IOException {
+        apply(CHAPTER, book_url, volume, chapter, offset);
+        append(CHAPTER, book_url, String.valueOf(volume), String.valueOf(chapter), String.valueOf(offset));
+    }
+
+    synchronized void saveVolume(String book_url, int volume, long offset) throws IOException {
+        apply(VOLUME, book_url, volume, -1, offset);
+        append(VOLUME, book_url, String.valueOf(volume), String.valueOf(offset));
+    }
+
+    synchronized void finishBook(String book_url) throws IOException {
+        unfinished_books.remove(book_url);
+        finished_books.add(book_url);
+        append(BOOK, book_url);
+    }
+
+    private void reopen(String book_url, int volume, int chapter, long offset) {
+        SavedBook saved = saved_books.get(book_url);
+        finished_books.remove(book_url);
+        while (saved.volumes.size() > volume + (chapter >= 0 ? 1 : 0)) {
+            saved.volumes.remove(saved.volumes.size() - 1);
+        }
+        if (chapter >= 0) {
+            long[] reopened = saved.volume(volume);
+            reopened[0] = chapter;
+            reopened[2] = -1;
+        }
+
+        BookProgress progress = new BookProgress(saved.file_name);
+        progress.offset = offset;
+        progress.volume = volume;
+        progress.chapter = chapter;
+        progress.header_saved = true;
+        unfinished_books.remove(book_url);
+        unfinished_books.put(book_url, progress);
+    }
+
+    private void apply(String type, String book_url, int volume, int chapter, long offset) {
+        SavedBook saved = saved_books.get(book_url);
+        if (saved != null) {
+            switch (type) {
+                case HEADER:
+                    saved.header_offset = offset;
+                    saved.volumes.clear();
+                    break;
+                case TITLE:
+                    saved.volume(volume)[0] = 0;
+                    saved.volume(volume)[1] = offset;
+                    break;
+                case CHAPTER:
+                    saved.volume(volume)[0] = chapter + 1;
+                    saved.volume(volume)[1] = offset;
+                    break;
+                case VOLUME:
+                    saved.volume(volume)[2] = offset;
+                    break;
+            }
+        }
+
+        BookProgress progress = unfinished_books.get(book_url);
+        if (progress == null) {
+            return;
+        }
+        progress.offset = offset;
+        progress.header_saved = true;
+        switch (type) {
+            case HEADER:
+                progress.volume = 0;
+                progress.chapter = -1;
+                break;
+            case TITLE:
+                progress.volume = volume;
+                progress.chapter = 0;
+                break;
+            case CHAPTER:
+                progress.volume = volume;
+                progress.chapter = chapter + 1;
+                break;
+            case VOLUME:
+                progress.volume = volume + 1;
+                progress.chapter = -1;
+                break;
+        }
+    }
+
+    private void append(String... fields) throws IOException {
+        if (out == null) {
+            return;
+        }
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) {
+                record.append('\t');
+            }
+            record.append(fields[i].replace('\t', ' ').replace('\n', ' '));
+        }
+        record.append('\n');
+        out.write(record.toString());
+        out.flush();
+    }
+
+    private void replay(File file) throws IOException {
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = br.read()) != -1) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                // a line without its newline was cut short by a crash and is ignored below
+                try {
+                    replayRecord(line.toString().split("\t", -1));
+                } catch (RuntimeException re) {
+                    // a damaged record, nothing after it can be trusted
+                    break;
+                }
+                line.setLength(0);
+            }
+        }
+    }
+
+    private void replayRecord(String[] fields) {
+        switch (fields[0]) {
+            case CATEGORY:
+                unfinished_categories.remove(fields[1]);
+                unfinished_categories.put(fields[1], fields[2]);
+                break;
+            case CATEGORY_DONE:
+                unfinished_categories.remove(fields[1]);
+                break;
+            case PAGE:
+                finished_pages.put(fields[1], fields[2]);
+                break;
+            case BOOK_START:
+                file_books.put(fields[2], fields[1]);
+                finished_books.remove(fields[1]);
+                unfinished_books.remove(fields[1]);
+                unfinished_books.put(fields[1], new BookProgress(fields[2]));
+                saved_books.put(fields[1], new SavedBook(fields[2]));
+                break;
+            case HEADER:
+                apply(HEADER, fields[1], -1, -1, Long.parseLong(fields[2]));
+                break;
+            case TITLE:
+                apply(TITLE, fields[1], Integer.parseInt(fields[2]), -1, Long.parseLong(fields[3]));
+                break;
+            case CHAPTER:
+                apply(CHAPTER, fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                        Long.parseLong(fields[4]));
+                break;
+            case VOLUME:
+                apply(VOLUME, fields[1], Integer.parseInt(fields[2]), -1, Long.parseLong(fields[3]));
+                break;
+            case BOOK:
+                unfinished_books.remove(fields[1]);
+                finished_books.add(fields[1]);
+                break;
+            case REOPEN:
+                if (saved_books.containsKey(fields[1])) {
+                    reopen(fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                            Long.parseLong(fields[4]));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal record: " + fields[0]);
+        }
+    }
+}
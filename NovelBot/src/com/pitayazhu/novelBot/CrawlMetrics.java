@@ -0,0 +1,283 @@
+package com.pitayazhu.novelBot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of a crawl, to tune the concurrency and see when the site starts throttling.
+ * Counters are LongAdders and timings are LatencyHistograms, so recording from the
+ * fetcher and parser threads never blocks them. The same numbers are shown three
+ * ways: as an MXBean for JMX clients, as a file in the Prometheus text format that
+ * is rewritten periodically, e.g. for the node exporter's textfile collector, and as
+ * the short summary on the console progress line.
+ * @author pitaya
+ */
+class CrawlMetrics implements CrawlMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.pitayazhu.novelBot:type=CrawlMetrics";
+
+    // requests sent to the site, including those answered 304 Not Modified
+    final LongAdder requests = new LongAdder();
+    // response bytes as received, before decompression
+    final LongAdder bytes = new LongAdder();
+    final LongAdder not_modified = new LongAdder();
+    // chapters taken from the page cache without a request
+    final LongAdder cache_hits = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    // pages downloaded again after a timeout or a page without content
+    final LongAdder retries = new LongAdder();
+    final LongAdder chapters = new LongAdder();
+    final LongAdder books = new LongAdder();
+
+    // time to parse and render a chapter, including any download again of a page without content
+    final LatencyHistogram parse_time = new LatencyHistogram();
+    // time the writer waits for a chapter and writes it out
+    final LatencyHistogram write_time = new LatencyHistogram();
+
+    private final RequestScheduler request_scheduler;
+    private final String site_url;
+    private final long start = System.nanoTime();
+
+    /**
+     * Create the metrics of a crawl
+     * @param request_scheduler the scheduler whose latencies, failures and rate are reported
+     * @param site_url          any url of the site, to report its current rate
+     */
+    CrawlMetrics(RequestScheduler request_scheduler, String site_url) {
+        this.request_scheduler = request_scheduler;
+        this.site_url = site_url;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException jme) {
+            System.out.println("Warning: Cannot register metrics with JMX. Message: " + jme.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite a metrics file in the Prometheus text format periodically, until the program exits
+     * @param file              the file to write
+     * @param period_seconds    the time between two writes
+     */
+    void exportTo(final File file, long period_seconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file);
+                } catch (IOException ioe) {
+                    System.out.println("Warning: Cannot write metrics. Message: " + ioe.getMessage());
+                }
+            }
+        }, period_seconds, period_seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write the metrics to a file in the Prometheus text format, replacing it at once
+     * @param file  the file to write
+     * @throws IOException
+     */
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            out.write(toPrometheus());
+        }
+        // a scraper never sees half a file
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the metrics in the Prometheus text format
+     * @return  one sample per line, with help and type lines
+     */
+    String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "novelbot_requests_total", "Requests sent to the site.", getRequests());
+        counter(text, "novelbot_bytes_total", "Response bytes received, before decompression.",
+                getBytesDownloaded());
+        counter(text, "novelbot_not_modified_total", "Requests answered 304 Not Modified.", getNotModified());
+        counter(text, "novelbot_cache_hits_total", "Chapters taken from the page cache without a request.",
+                getCacheHits());
+        counter(text, "novelbot_timeouts_total", "Requests that timed out.", getTimeouts());
+        counter(text, "novelbot_failures_total", "Requests that failed or answered without content.",
+                getFailures());
+        counter(text, "novelbot_retries_total", "Pages downloaded again after a failure.", getRetries());
+        counter(text, "novelbot_slowdowns_total", "Times the site looked throttled and the rate was cut.",
+                getSlowdowns());
+        counter(text, "novelbot_breaker_trips_total", "Times the circuit breaker of the site opened.",
+                getBreakerTrips());
+        counter(text, "novelbot_chapters_total", "Chapters written.", getChaptersSaved());
+        counter(text, "novelbot_books_total", "Books saved to the end.", getBooksSaved());
+        gauge(text, "novelbot_request_rate", "Requests per second currently allowed to the site.",
+                getRequestRate());
+        summary(text, "novelbot_fetch_seconds", "Time taken by successful requests.",
+                request_scheduler.latencies());
+        summary(text, "novelbot_parse_seconds", "Time to parse and render a chapter.", parse_time);
+        summary(text, "novelbot_write_seconds", "Time the writer waits for a chapter and writes it.",
+                write_time);
+        return text.toString();
+    }
+
+    /**
+     * Get a short summary for the console progress line
+     * @return  the throughput, retries and current rate
+     */
+    String progressLine() {
+        return String.format(Locale.ROOT, "%.1f chapters/s, %.1f KB/s, %d retries, %d slowdowns, rate %.2f/s",
+                getChaptersPerSecond(), bytes.sum() / secondsSinceStart() / 1024, getRetries(), getSlowdowns(),
+                getRequestRate());
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getNotModified() {
+        return not_modified.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache_hits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return request_scheduler.failures();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getSlowdowns() {
+        return request_scheduler.slowdowns();
+    }
+
+    @Override
+    public long getBreakerTrips() {
+        return request_scheduler.breakerTrips();
+    }
+
+    @Override
+    public long getChaptersSaved() {
+        return chapters.sum();
+    }
+
+    @Override
+    public long getBooksSaved() {
+        return books.sum();
+    }
+
+    @Override
+    public double getRequestRate() {
+        return request_scheduler.rateOf(site_url);
+    }
+
+    @Override
+    public double getChaptersPerSecond() {
+        return chapters.sum() / secondsSinceStart();
+    }
+
+    @Override
+    public double getFetchP50Millis() {
+        return request_scheduler.latencies().percentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getFetchP99Millis() {
+        return request_scheduler.latencies().percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getParseP50Millis() {
+        return parse_time.percentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getParseP99Millis() {
+        return parse_time.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getWriteP50Millis() {
+        return write_time.percentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getWriteP99Millis() {
+        return write_time.percentile(0.99) / 1e6;
+    }
+
+    private double secondsSinceStart() {
+        return Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        header(text, name, help, "summary");
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile) / 1e9).append('\n');
+        }
+        text.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+        text.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,46 @@
+package com.pitayazhu.novelBot;
+
+/**
+ * Management interface of the crawl metrics, as shown in JConsole or any JMX client
+ * @author pitaya
+ */
+public interface CrawlMetricsMXBean {
+
+    long getRequests();
+
+    long getBytesDownloaded();
+
+    long getNotModified();
+
+    long getCacheHits();
+
+    long getTimeouts();
+
+    long getFailures();
+
+    long getRetries();
+
+    long getSlowdowns();
+
+    long getBreakerTrips();
+
+    long getChaptersSaved();
+
+    long getBooksSaved();
+
+    double getRequestRate();
+
+    double getChaptersPerSecond();
+
+    double getFetchP50Millis();
+
+    double getFetchP99Millis();
+
+    double getParseP50Millis();
+
+    double getParseP99Millis();
+
+    double getWriteP50Millis();
+
+    double getWriteP99Millis();
+}
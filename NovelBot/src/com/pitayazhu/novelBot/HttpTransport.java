@@ -0,0 +1,257 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shared transport for every page downloaded from the book site.
+ * One HttpClient keeps its connections alive and reuses them, over HTTP/2 where the
+ * site offers it, and asks for compressed responses. Pages are downloaded as raw
+ * bytes and parsed separately, so the time spent parsing does not hold a request slot.
+ * Pages can be read through a PageCache: pages that never change are taken from it
+ * without asking the site, and pages kept with their ETag or Last-Modified validators
+ * are only downloaded again if the site says they changed. Nothing is cached as it
+ * arrives: the caller stores a page once it has checked that the page is usable, so a
+ * ban or captcha page is never served from the cache.
+ * Failures are reported the way Jsoup reports them: a timeout is a SocketTimeoutException
+ * and an error status is an HttpStatusException.
+ * @author pitaya
+ */
+class HttpTransport {
+
+    /**
+     * A downloaded page, not parsed yet
+     */
+    static class Page {
+        final String url;
+        final byte[] body;
+        // the charset given by the response headers, or null to detect it from the page
+        final String charset;
+        final String etag;
+        final String last_modified;
+        // whether the page was read from the cache instead of downloaded
+        final boolean cached;
+
+        Page(String url, byte[] body, String charset, String etag, String last_modified, boolean cached) {
+            this.url = url;
+            this.body = body;
+            this.charset = charset;
+            this.etag = etag;
+            this.last_modified = last_modified;
+            this.cached = cached;
+        }
+
+        /**
+         * Parse the page with Jsoup
+         * @return  the parsed document, with links resolved against the url of the page
+         * @throws IOException
+         */
+        Document parse() throws IOException {
+            try {
+                return Jsoup.parse(new ByteArrayInputStream(body), charset, url);
+            } catch (UncheckedIOException | IllegalArgumentException e) {
+                // an unknown charset or a body Jsoup cannot read
+                throw new RetryPolicy.UnusablePageException(RetryPolicy.ErrorClass.PARSE_ERROR,
+                        "Cannot parse " + url, e);
+            }
+        }
+    }
+
+    private final HttpClient client;
+    private final String user_agent;
+    private final Duration timeout;
+    // pages kept on disk, or null to keep nothing
+    private final PageCache cache;
+    private final CrawlMetrics metrics;
+
+    /**
+     * Create a transport
+     * @param user_agent        the User-Agent header sent with every request
+     * @param timeout_millis    the time allowed for connecting and for each whole response
+     * @param cache             the cache to read through, or null
+     * @param metrics           the metrics requests, bytes and timeouts are counted in
+     */
+    HttpTransport(String user_agent, int timeout_millis, PageCache cache, CrawlMetrics metrics) {
+        this.user_agent = user_agent;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.timeout = Duration.ofMillis(timeout_millis);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Take a page from the cache without asking the site, for pages that never change
+     * @param url   the link of the page
+     * @return      the cached page, or null if it is not cached
+     * @throws IOException
+     */
+    Page cached(String url) throws IOException {
+        return cache == null ? null : cache.get(url);
+    }
+
+    /**
+     * Keep a page in the cache, for pages known to be good that never change
+     * @param url   the link the page was requested with
+     * @param page  the page
+     * @throws IOException
+     */
+    void store(String url, Page page) throws IOException {
+        if (cache != null && !page.cached) {
+            cache.put(url, page);
+        }
+    }
+
+    /**
+     * Keep a page that was checked to be usable with its validators, so that it is
+     * only downloaded again if the site says it changed
+     * @param url   the link the page was requested with
+     * @param page  the page
+     * @throws IOException
+     */
+    void storeValidated(String url, Page page) throws IOException {
+        if (page.etag != null || page.last_modified != null) {
+            store(url, page);
+        }
+    }
+
+    /**
+     * Close the cache, writing out what it keeps in memory
+     * @throws IOException
+     */
+    void close() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Drop a page from the cache, e.g. a cached page that turned out not to be usable
+     * @param url   the link of the page
+     * @throws IOException
+     */
+    void evict(String url) throws IOException {
+        if (cache != null) {
+            cache.remove(url);
+        }
+    }
+
+    /**
+     * Download a page. If it is cached with validators, it is only downloaded again
+     * if the site says it changed. The page is not cached, see store and storeValidated.
+     * @param url   the link of the page
+     * @return      the page
+     * @throws IOException
+     */
+    Page get(String url) throws IOException {
+        String[] validators = cache == null ? null : cache.validatorsOf(url);
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeout)
+                .header("User-Agent", user_agent)
+                .header("Accept-Encoding", "gzip, deflate");
+        if (validators != null) {
+            if (validators[0] != null) {
+                request.header("If-None-Match", validators[0]);
+            }
+            if (validators[1] != null) {
+                request.header("If-Modified-Since", validators[1]);
+            }
+        }
+
+        HttpResponse<byte[]> response;
+        metrics.requests.increment();
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (HttpTimeoutException hte) {
+            metrics.timeouts.increment();
+            SocketTimeoutException ste = new SocketTimeoutException("Read timed out: " + url);
+            ste.initCause(hte);
+            throw ste;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        }
+
+        metrics.bytes.add(response.body().length);
+        int status = response.statusCode();
+        if (status == 304 && validators != null) {
+            metrics.not_modified.increment();
+            Page cached = cache.get(url);
+            if (cached != null) {
+                return cached;
+            }
+            // the body was dropped in the meantime, ask again without validators
+            cache.remove(url);
+            return get(url);
+        }
+        if (status < 200 || status >= 300) {
+            throw new HttpStatusException("HTTP error fetching URL", status, url);
+        }
+
+        String final_url = response.uri().toString();
+        return new Page(final_url, decode(response),
+                charsetOf(response.headers().firstValue("Content-Type").orElse(null)),
+                response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null), false);
+    }
+
+    /**
+     * Undo the content encoding of a response
+     * @param response  the response
+     * @return          the body as sent before compression
+     * @throws IOException
+     */
+    private static byte[] decode(HttpResponse<byte[]> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity").trim();
+        InputStream decoded;
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+            decoded = new GZIPInputStream(new ByteArrayInputStream(response.body()));
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            decoded = new InflaterInputStream(new ByteArrayInputStream(response.body()));
+        } else {
+            return response.body();
+        }
+        try (InputStream is = decoded) {
+            return is.readAllBytes();
+        }
+    }
+
+    /**
+     * Find the charset in a Content-Type header
+     * @param content_type  the header, or null
+     * @return              the charset, or null if it is not given
+     */
+    private static String charsetOf(String content_type) {
+        if (content_type == null) {
+            return null;
+        }
+        for (String parameter : content_type.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, "charset=".length())) {
+                String charset = parameter.substring("charset=".length()).replace("\"", "").trim();
+                return charset.isEmpty() ? null : charset;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+package com.pitayazhu.novelBot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies that can be recorded from many threads without locking.
+ * Values are counted in buckets of logarithmic width, 16 buckets for every power
+ * of two, so percentiles are exact to within about 6% whatever the range.
+ * @author pitaya
+ */
+class LatencyHistogram {
+
+    // buckets for every power of two, as a number of bits
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // enough buckets for any positive long
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Count one value
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        sum.add(Math.max(0, nanos));
+    }
+
+    /**
+     * Get the total of the values counted
+     * @return  the sum in nanoseconds
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the number of values counted
+     * @return  the number of values
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the value below which a fraction of the counted values are
+     * @param fraction  the fraction, e.g. 0.99 for the 99th percentile
+     * @return          the value in nanoseconds, or 0 if nothing was counted
+     */
+    long percentile(double fraction) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // the middle of the bucket
+                return (lowestOf(i) + lowestOf(i + 1)) / 2;
+            }
+        }
+        return lowestOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Forget every value counted so far
+     */
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub_bucket;
+    }
+
+    private static long lowestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub_bucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub_bucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
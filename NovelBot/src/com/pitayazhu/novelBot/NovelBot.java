@@ -1,25 +1,97 @@
 package com.pitayazhu.novelBot;
 
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.*;
+import org.jsoup.select.Collector;
 import org.jsoup.select.Elements;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.net.SocketTimeoutException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class NovelBot {
 
     static final int TOTAL_RETRY_COUNT = 5;
     static final int CATEGORY_NUMS = 10;
-    static final String BASE_URL = "http://www.tianyashuku.com/";
+    // the site to download from, e.g. -Dnovelbot.base_url=http://localhost:8080/ for a local stand-in
+    static final String BASE_URL = System.getProperty("novelbot.base_url", "http://www.tianyashuku.com/");
     static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_1) " +
             "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/45.0.2454.99 Safari/537.36";
     static final int TIMEOUT = 1000;
     static final String DEFAULT_DIR = "./books";
+    static final String JOURNAL_FILE = "journal.log";
+    static final String INDEX_FILE = "catalog_index.tsv";
+    // the most similar titles suggested when a book is not found
+    static final int SUGGESTION_COUNT = 5;
+    // number of chapters downloaded at the same time, e.g. -Dnovelbot.parallelism=8
+    static final int PARALLELISM = Integer.getInteger("novelbot.parallelism", 4);
+    // highest number of requests per second sent to the site, e.g. -Dnovelbot.rate=2
+    static final double MAX_RATE = Double.parseDouble(System.getProperty("novelbot.rate", "4"));
+    // most requests waiting for the site at the same time
+    static final int MAX_IN_FLIGHT = Integer.getInteger("novelbot.max_in_flight", PARALLELISM);
+    // number of chapters parsed at the same time, e.g. -Dnovelbot.parse_threads=2
+    static final int PARSE_THREADS = Integer.getInteger("novelbot.parse_threads",
+            Runtime.getRuntime().availableProcessors());
+    // most chapters waiting in front of each stage of the download pipeline
+    static final int QUEUE_DEPTH = Integer.getInteger("novelbot.queue_depth", PARALLELISM * 2);
+    // where downloaded pages are cached, or "none", e.g. -Dnovelbot.cache_dir=/tmp/novelbot_cache
+    static final String CACHE_DIR = System.getProperty("novelbot.cache_dir", DEFAULT_DIR + "/.cache");
+    // most megabytes of compressed pages kept in the cache
+    static final long CACHE_MEGABYTES = Long.getLong("novelbot.cache_mb", 512);
+    // days a cached page is kept without being used
+    static final long CACHE_DAYS = Long.getLong("novelbot.cache_days", 30);
+    // number of books of a category downloaded at the same time, e.g. -Dnovelbot.books=1
+    static final int BOOK_PARALLELISM = Integer.getInteger("novelbot.books", 3);
+    // order the books of a category are started in: listed, smallest or largest, e.g. -Dnovelbot.book_order=smallest
+    static final BookScheduler.Order BOOK_ORDER =
+            BookScheduler.Order.of(System.getProperty("novelbot.book_order", "listed"));
+    // whether books are saved gzipped as .txt.gz, e.g. -Dnovelbot.gzip=true
+    static final boolean GZIP_BOOKS = Boolean.getBoolean("novelbot.gzip");
+    // whether books are also packed into books.pack of their directory for reading single chapters,
+    // e.g. -Dnovelbot.archive=true
+    static final boolean ARCHIVE_BOOKS = Boolean.getBoolean("novelbot.archive");
+    // where the crawl frontier and the visited urls are kept across runs, or "none"
+    static final String FRONTIER_DIR = System.getProperty("novelbot.frontier_dir", DEFAULT_DIR + "/.frontier");
+    // number of urls the visited set is sized for, e.g. -Dnovelbot.frontier_urls=50000000
+    static final long FRONTIER_URLS = Long.getLong("novelbot.frontier_urls", 20000000);
+    // file the metrics are written to in the Prometheus text format, or "none"
+    static final String METRICS_FILE = System.getProperty("novelbot.metrics_file", DEFAULT_DIR + "/metrics.prom");
+    // seconds between two writes of the metrics file
+    static final long METRICS_PERIOD = Long.getLong("novelbot.metrics_seconds", 10);
+
+    static final RequestScheduler request_scheduler = new RequestScheduler(MAX_RATE, MAX_IN_FLIGHT);
+
+    // counters and timings of the whole crawl
+    static final CrawlMetrics metrics = new CrawlMetrics(request_scheduler, BASE_URL);
+
+    // decides which failed pages are downloaded again, and when
+    static final RetryPolicy retry_policy = new RetryPolicy(request_scheduler, metrics);
+
+    // keeps connections to the site open between requests
+    private static final HttpTransport transport = new HttpTransport(USER_AGENT, TIMEOUT, openCache(), metrics);
+
+    static final ChapterPipeline chapter_pipeline =
+            new ChapterPipeline(PARALLELISM, PARSE_THREADS, QUEUE_DEPTH, metrics);
+
+    // records finished work so an interrupted download can be resumed
+    static CrawlJournal journal = new CrawlJournal();
+
+    // books still to download and urls already done, shared by every category and run
+    static CrawlFrontier frontier = new CrawlFrontier();
+
+    // whether the chapter progress line is printed, off while several books are saved at once
+    private static volatile boolean show_chapter_progress = true;
 
     enum MODE {SEARCH, DOWNLOAD};
 
@@ -43,20 +115,54 @@ public class NovelBot {
         System.out.println("(1) Download Book by Name");
         System.out.println("(2) Download Book by Link");
         System.out.println("(3) Download All Books in a Category (May Result in IP Ban)");
+        System.out.println("(4) Resume Unfinished Download");
+        System.out.println("(5) Update Saved Books with New Chapters");
         System.out.println("(0) Cancel Download and Exit");
 
-        System.out.print("Please Select (0-3): ");
+        System.out.print("Please Select (0-5): ");
         int choice = in.nextInt();
         in.nextLine();
+        if (choice != 0) {
+            journal = new CrawlJournal(new File(DEFAULT_DIR, JOURNAL_FILE), choice == 4);
+            frontier = openFrontier();
+            Runtime.getRuntime().addShutdownHook(new Thread(NovelBot::closeFrontier, "frontier-close"));
+            Runtime.getRuntime().addShutdownHook(new Thread(NovelBot::closeCache, "cache-close"));
+            metrics.register();
+            if (!METRICS_FILE.equals("none")) {
+                metrics.exportTo(new File(METRICS_FILE), METRICS_PERIOD);
+            }
+        }
         switch (choice) {
             case 0:
                 return;
             case 1:
                 System.out.print("Please input the name of the book: ");
                 book_name = in.nextLine();
-                book_url = searchSite(book_name, TOTAL_RETRY_COUNT);
+                CatalogIndex index = CatalogIndex.load(new File(DEFAULT_DIR, INDEX_FILE));
+                CatalogIndex.Entry entry = index.findExact(book_name);
+                if (entry != null && index.isStale(entry)) {
+                    entry = refreshEntry(index, entry);
+                    index.save();
+                }
+                if (entry != null) {
+                    System.out.println("Book found in index, category: " + entry.category);
+                    book_url = entry.url;
+                } else if (index.isStale()) {
+                    // only crawl the site when the index may be missing new books
+                    book_url = searchSite(book_name, index, TOTAL_RETRY_COUNT);
+                    index.save();
+                } else {
+                    book_url = null;
+                }
                 if (book_url == null) {
                     System.out.println("Book not found.");
+                    List<CatalogIndex.Entry> similar_books = index.findSimilar(book_name, SUGGESTION_COUNT);
+                    if (!similar_books.isEmpty()) {
+                        System.out.println("Similar books:");
+                        for (CatalogIndex.Entry similar_book : similar_books) {
+                            System.out.println("  " + similar_book.title + " (" + similar_book.url + ")");
+                        }
+                    }
                 } else {
                     System.out.println("Book link: " + book_url);
                     saveBook(book_url, DEFAULT_DIR, TOTAL_RETRY_COUNT);
@@ -71,7 +177,39 @@ public class NovelBot {
                 System.out.print("Please input the URI of the category homepage: ");
                 String category_uri = in.nextLine();
                 category_url = BASE_URL + category_uri;
-                saveCategory(category_url, DEFAULT_DIR, TOTAL_RETRY_COUNT);
+                journal.startCategory(category_url, DEFAULT_DIR);
+                if (saveCategory(category_url, DEFAULT_DIR, TOTAL_RETRY_COUNT)) {
+                    journal.finishCategory(category_url);
+                }
+                break;
+            case 4:
+                Map.Entry<String, String> category = journal.lastUnfinishedCategory();
+                Map.Entry<String, String> book = journal.lastUnfinishedBook();
+                if (category != null) {
+                    System.out.println("Resuming category: " + category.getKey());
+                    if (saveCategory(category.getKey(), category.getValue(), TOTAL_RETRY_COUNT)) {
+                        journal.finishCategory(category.getKey());
+                    }
+                } else if (book != null) {
+                    System.out.println("Resuming book: " + book.getKey());
+                    saveBook(book.getKey(), new File(book.getValue()).getParent(), TOTAL_RETRY_COUNT);
+                } else {
+                    System.out.println("Nothing to resume.");
+                }
+                break;
+            case 5:
+                System.out.print("Please input the URI of the book, or leave empty to update every saved book: ");
+                String update_uri = in.nextLine().trim();
+                List<String> book_urls = update_uri.isEmpty() ?
+                        journal.savedBookUrls() : Collections.singletonList(BASE_URL + update_uri);
+                if (book_urls.isEmpty()) {
+                    System.out.println("No saved books to update.");
+                }
+                for (String update_url : book_urls) {
+                    CrawlJournal.SavedBook saved = journal.savedBook(update_url);
+                    String directory = saved == null ? DEFAULT_DIR : new File(saved.file_name).getParent();
+                    updateBook(update_url, directory, TOTAL_RETRY_COUNT);
+                }
                 break;
             default:
                 System.out.println("Invalid input.");
@@ -79,56 +217,84 @@ public class NovelBot {
     }
 
     /**
-     * Method to search for a certain book in the whole site by book name
+     * Check a book last seen long ago against the site, renewing it in the index if its
+     * catalog can still be read and dropping it otherwise
+     * @param index the index
+     * @param entry the old entry
+     * @return      the renewed entry, or null if the book is gone
+     * @throws IOException
+     */
+    private static CatalogIndex.Entry refreshEntry(CatalogIndex index, CatalogIndex.Entry entry) throws IOException {
+        Document catalog_page = fetchWithRetries(entry.url, "Catalog", TOTAL_RETRY_COUNT, false);
+        if (catalog_page == null) {
+            index.remove(entry);
+            return null;
+        }
+        index.put(entry.title, entry.url, entry.category);
+        return index.findExact(entry.title);
+    }
+
+    /**
+     * Method to search for a certain book in the whole site by book name,
+     * adding every book seen on the way to the index
      * @param target_book_name  the name of the target book
+     * @param index             the index to refresh
      * @param retry_count       the number of retries remaining
      * @return                  the link of the book
      * @throws IOException
      */
     private static String searchSite(String target_book_name,
+                                     CatalogIndex index,
                                      int retry_count) throws IOException {
-        try {
-            Document home_page = Jsoup.connect(BASE_URL).userAgent(USER_AGENT).timeout(TIMEOUT).get();
+        Document home_page = fetchWithRetries(BASE_URL, "Homepage", retry_count, false);
+        if (home_page == null) {
+            return null;
+        }
 
-            Elements subpage_links = home_page.select(".book-list > div.box > div.box-title > h2 > a");
-            // the last a few links in homepage are entrances to each categories
-            List<Element> category_links = subpage_links.subList(subpage_links.size() - CATEGORY_NUMS,
-                    subpage_links.size());
+        Elements subpage_links = home_page.select(".book-list > div.box > div.box-title > h2 > a");
+        // the last a few links in homepage are entrances to each categories
+        List<Element> category_links = subpage_links.subList(subpage_links.size() - CATEGORY_NUMS,
+                subpage_links.size());
 
-            // search each category for the book
-            for (Element category_link : category_links) {
-                String category_url = category_link.attr("abs:href");
-                String result = searchCategory(category_url, target_book_name, TOTAL_RETRY_COUNT);
-                System.out.println();
-                if (result != null) {
-                    System.out.println("Book found in category: " + category_link.text());
-                    return result;
-                }
-            }
-        } catch (SocketTimeoutException ste) {
-            if (retry_count == 0) {
-                System.out.println("Error: Homepage reading failed.");
-            } else {
-                System.out.println("Error: Homepage reading time out, " + retry_count + " more retry(s)...");
-                return searchSite(target_book_name, retry_count - 1);
+        // search each category for the book
+        for (Element category_link : category_links) {
+            String category_url = category_link.attr("abs:href");
+            String result = searchCategory(category_url, target_book_name, index, TOTAL_RETRY_COUNT);
+            System.out.println();
+            if (result != null) {
+                System.out.println("Book found in category: " + category_link.text());
+                return result;
             }
         }
+        // every category was crawled to the end
+        index.markRefreshed();
         return null;
     }
 
     /**
-     * Search a category for a certain book by name
+     * Search a category for a certain book by name, going through its pages one by one
      * @param category_url      the link of the category
      * @param target_book_name  the name of the target book
-     * @param retry_count       the number of retries remaining
+     * @param index             the index to add the books seen to
+     * @param retry_count       the number of retries remaining for each page
      * @return                  the link of the book
      * @throws IOException
      */
     private static String searchCategory(String category_url,
                                          String target_book_name,
+                                         CatalogIndex index,
                                          int retry_count) throws IOException {
-        try {
-            Document category_page = Jsoup.connect(category_url).userAgent(USER_AGENT).timeout(TIMEOUT).get();
+        String page_url = category_url;
+        Set<String> pages_seen = new HashSet<>();
+        while (page_url != null) {
+            if (!pages_seen.add(page_url)) {
+                // the pages lead back to one already searched
+                return null;
+            }
+            Document category_page = fetchWithRetries(page_url, "Category", retry_count, true);
+            if (category_page == null) {
+                return null;
+            }
 
             String category_title = category_page.select(".catalog > h1").first().text();
 
@@ -140,98 +306,199 @@ public class NovelBot {
                     ", page " + (pages.indexOf(current_page) + 1) + " out of " + pages.size());
 
             // search current page
+            String found_url = null;
             Elements category_books = category_page.select(".mulu-list > ul > li");
             for (Element category_book : category_books) {
                 Element book_link = category_book.select("a").first();
                 String book_name = book_link.text();
-                if (book_name.equals(target_book_name)) {
-                    return book_link.attr("abs:href");
+                index.put(book_name, book_link.attr("abs:href"), category_title);
+                if (found_url == null && book_name.equals(target_book_name)) {
+                    found_url = book_link.attr("abs:href");
                 }
             }
+            if (found_url != null) {
+                return found_url;
+            }
 
             // search in the next page if the page exist
             Element next_page = current_page.nextElementSibling();
-            if (next_page != null) {
-                String next_page_url = next_page.attr("abs:value");
-                String result = searchCategory(next_page_url, target_book_name, TOTAL_RETRY_COUNT);
-                if (result != null) {
-                    return result;
-                }
-            }
-
-        } catch (SocketTimeoutException ste) {
-            if (retry_count == 0) {
-                System.out.println("Error: Category reading failed.");
-            } else {
-                if (retry_count == TOTAL_RETRY_COUNT) {
-                    System.out.println();
-                }
-                System.out.println("Error: Category reading time out, " + retry_count + " more retry(s)...");
-                return searchCategory(category_url, target_book_name, retry_count - 1);
-            }
+            page_url = next_page == null ? null : next_page.attr("abs:value");
         }
 
         return null;
     }
 
     /**
-     * Save all books in a category to text files
+     * Save all books in a category to text files, going through its pages one by one.
+     * The books are handed to a book scheduler, which saves several of them at once,
+     * and a page is recorded as finished once all of its books are saved.
      * @param category_url      the url of the category
      * @param save_directory    the root directory to save
-     * @param retry_count       the numbers of retries remaining
+     * @param retry_count       the numbers of retries remaining for each page
+     * @return                  whether every book of the category was saved
      * @throws IOException
      */
-    private static void saveCategory(String category_url, String save_directory, int retry_count) throws IOException {
+    static boolean saveCategory(String category_url, String save_directory, int retry_count)
+            throws IOException {
+        boolean category_saved = true;
+        BookScheduler book_scheduler = new BookScheduler(BOOK_PARALLELISM, BOOK_ORDER);
+        // pages whose books are not all done yet
+        List<PageBooks> unfinished_pages = new ArrayList<>();
+        show_chapter_progress = BOOK_PARALLELISM == 1;
         try {
-            Document category_page = Jsoup.connect(category_url).userAgent(USER_AGENT).timeout(TIMEOUT).get();
-
-            String category_title = category_page.select(".catalog > h1").first().text();
+            // books queued by an earlier run and never finished come first
+            List<Map.Entry<String, String>> left_books = frontier.pending(category_url);
+            if (!left_books.isEmpty()) {
+                System.out.println("Resuming " + left_books.size() + " book(s) left in the frontier.");
+                PageBooks left_page = new PageBooks(null, null);
+                for (Map.Entry<String, String> left_book : left_books) {
+                    left_page.books.add(book_scheduler.submit(left_book.getKey(), left_book.getValue()));
+                }
+                unfinished_pages.add(left_page);
+            }
 
-            // find page information
-            Elements pages = category_page.select("select[name=select] option");
-            Element current_page = pages.select("option[selected]").first();
+            String page_url = category_url;
+            Set<String> pages_seen = new HashSet<>();
+            while (page_url != null) {
+                if (!pages_seen.add(page_url)) {
+                    System.out.println("Warning: Category pages lead back to " + page_url + ", stopping.");
+                    break;
+                }
 
-            System.out.println("Saving category: " + category_title +
-                    ", page " + (pages.indexOf(current_page) + 1) + " out of " + pages.size());
-            System.out.println();
+                // skip pages whose books were all saved in an earlier run
+                String finished_next_page = journal.nextOfFinishedPage(page_url);
+                if (finished_next_page != null) {
+                    page_url = finished_next_page.isEmpty() ? null : finished_next_page;
+                    continue;
+                }
 
-            // create save directory if not exit
-            String category_directory = save_directory + "/" + category_title;
-            File new_directory = new File(category_directory);
-            if (!new_directory.exists()) {
-                try {
-                    new_directory.mkdirs();
-                } catch (SecurityException se) {
-                    System.out.println("Error: Cannot create directory. Message: " + se.getMessage());
-                    return;
+                Document category_page = fetchWithRetries(page_url, "Category", retry_count, false);
+                if (category_page == null) {
+                    category_saved = false;
+                    break;
                 }
-            }
 
-            // search for books in page
-            Elements category_books = category_page.select(".mulu-list > ul > li");
-            for (Element category_book : category_books) {
-                Element book_link = category_book.select("a").first();
-                String book_url = book_link.attr("abs:href");
-                saveBook(book_url, category_directory, TOTAL_RETRY_COUNT);
+                String category_title = category_page.select(".catalog > h1").first().text();
+
+                // find page information
+                Elements pages = category_page.select("select[name=select] option");
+                Element current_page = pages.select("option[selected]").first();
+
+                System.out.println("Saving category: " + category_title +
+                        ", page " + (pages.indexOf(current_page) + 1) + " out of " + pages.size());
                 System.out.println();
-            }
 
-            // search for the next page if it exists
-            Element next_page = current_page.nextElementSibling();
-            if (next_page != null) {
-                String next_page_url = next_page.attr("abs:value");
-                System.out.println(next_page_url);
-                saveCategory(next_page_url, save_directory, TOTAL_RETRY_COUNT);
+                // create save directory if not exit
+                String category_directory = save_directory + "/" + category_title;
+                File new_directory = new File(category_directory);
+                if (!new_directory.exists()) {
+                    try {
+                        new_directory.mkdirs();
+                    } catch (SecurityException se) {
+                        System.out.println("Error: Cannot create directory. Message: " + se.getMessage());
+                        category_saved = false;
+                        break;
+                    }
+                }
+
+                // search for the next page if it exists
+                Element next_page = current_page.nextElementSibling();
+                String next_page_url = next_page == null ? null : next_page.attr("abs:value");
+
+                // queue the books in page
+                PageBooks page_books = new PageBooks(page_url, next_page_url);
+                Elements category_books = category_page.select(".mulu-list > ul > li");
+                int known_books = 0;
+                for (Element category_book : category_books) {
+                    Element book_link = category_book.select("a").first();
+                    String book_url = book_link.attr("abs:href");
+                    if (!frontier.offer(book_url, category_url, category_directory)) {
+                        // listed on another page or in another category, and saved or queued there
+                        known_books++;
+                        continue;
+                    }
+                    page_books.books.add(book_scheduler.submit(book_url, category_directory));
+                }
+                unfinished_pages.add(page_books);
+                if (known_books > 0) {
+                    System.out.println("Skipped " + known_books + " book(s) already saved or queued.");
+                }
+
+                category_saved &= finishPages(unfinished_pages, false);
+                System.out.println("Books: " + book_scheduler.stats());
+                if (next_page_url != null) {
+                    System.out.println(next_page_url);
+                }
+                // read the next page only when the books queued so far are nearly all started
+                book_scheduler.awaitWaitingAtMost(BOOK_PARALLELISM);
+                page_url = next_page_url;
             }
+            category_saved &= finishPages(unfinished_pages, true);
+            System.out.println("Books: " + book_scheduler.stats());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving category.");
+        } finally {
+            book_scheduler.shutdown();
+            show_chapter_progress = true;
+            frontier.flush();
+        }
+        return category_saved;
+    }
 
-        } catch (SocketTimeoutException ste) {
-            if (retry_count == 0) {
-                System.out.println("Error: Category reading failed.");
-            } else {
-                System.out.println("Error: Category reading time out, " + retry_count + " more retry(s)...");
-                saveCategory(category_url, save_directory, retry_count - 1);
+    /**
+     * The books queued from one page of a category
+     */
+    private static class PageBooks {
+        // null for the books left in the frontier by an earlier run
+        final String page_url;
+        final String next_page_url;
+        final List<Future<Boolean>> books = new ArrayList<>();
+
+        PageBooks(String page_url, String next_page_url) {
+            this.page_url = page_url;
+            this.next_page_url = next_page_url;
+        }
+    }
+
+    /**
+     * Record the pages whose books are all done, and forget them
+     * @param unfinished_pages  the pages whose books were queued
+     * @param wait              whether to wait for the books still running
+     * @return                  whether every book of the pages done was saved
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static boolean finishPages(List<PageBooks> unfinished_pages, boolean wait)
+            throws IOException, InterruptedException {
+        boolean pages_saved = true;
+        Iterator<PageBooks> iterator = unfinished_pages.iterator();
+        while (iterator.hasNext()) {
+            PageBooks page_books = iterator.next();
+            boolean page_saved = true;
+            boolean page_done = true;
+            for (Future<Boolean> book : page_books.books) {
+                if (!wait && !book.isDone()) {
+                    page_done = false;
+                    break;
+                }
+                try {
+                    page_saved &= book.get();
+                } catch (ExecutionException ee) {
+                    // books are never completed exceptionally, their failures are counted as not saved
+                    page_saved = false;
+                }
+            }
+            if (!page_done) {
+                continue;
             }
+            if (page_saved && page_books.page_url != null) {
+                journal.finishPage(page_books.page_url, page_books.next_page_url);
+            }
+            pages_saved &= page_saved;
+            iterator.remove();
         }
+        return pages_saved;
     }
 
     /**
@@ -239,120 +506,500 @@ public class NovelBot {
      * @param book_url          the link to the url
      * @param save_directory    the directory to save the file
      * @param retry_count       the number of retries remaining
+     * @return                  whether the book was saved
      * @throws IOException
      */
-    private static void saveBook(String book_url, String save_directory, int retry_count) throws IOException {
+    static boolean saveBook(String book_url, String save_directory, int retry_count) throws IOException {
+        if (journal.isBookFinished(book_url)) {
+            System.out.println("Skipping saved book: " + book_url);
+            return true;
+        }
+
+        Document catalog_page = fetchWithRetries(book_url, "Catalog", retry_count, false);
+        if (catalog_page == null) {
+            return false;
+        }
+        return saveBook(book_url, catalog_page, save_directory);
+    }
+
+    /**
+     * Save a book whose catalog is already fetched to a text file
+     * @param book_url          the link to the url
+     * @param catalog_page      the catalog page of the book
+     * @param save_directory    the directory to save the file
+     * @return                  whether the book was saved
+     * @throws IOException
+     */
+    static boolean saveBook(String book_url, Document catalog_page, String save_directory) throws IOException {
+        if (journal.isBookFinished(book_url)) {
+            System.out.println("Skipping saved book: " + book_url);
+            return true;
+        }
+
+        String book_title = bookTitle(catalog_page);
+        System.out.println("Saving book: " + book_title);
+
+        String file_name = bookFile(book_url, save_directory, book_title);
+        CrawlJournal.BookProgress progress = journal.progressOf(book_url);
+        if (progress != null && progress.file_name.equals(file_name) &&
+                BookWriter.partOf(file_name).length() >= progress.offset) {
+            System.out.println("Resuming from: Volume " + (progress.volume + 1) + ", " +
+                    "Chapter " + (Math.max(progress.chapter, 0) + 1));
+        } else {
+            progress = null;
+        }
+        return writeBook(book_url, catalog_page, file_name, progress, false);
+    }
+
+    /**
+     * Bring a saved book up to date with its catalog, downloading only the chapters added since.
+     * The book is cut back to the first volume that changed: a volume that only grew is
+     * reopened before its trailer, anything else is written again from the volume title.
+     * A book the journal has no record of is saved from the beginning.
+     * @param book_url          the link to the url
+     * @param save_directory    the directory the book is saved in
+     * @param retry_count       the number of retries remaining
+     * @return                  whether the book is up to date
+     * @throws IOException
+     */
+    static boolean updateBook(String book_url, String save_directory, int retry_count) throws IOException {
+        Document catalog_page = fetchWithRetries(book_url, "Catalog", retry_count, false);
+        if (catalog_page == null) {
+            return false;
+        }
+        String book_title = bookTitle(catalog_page);
+        String file_name = bookFile(book_url, save_directory, book_title);
+
+        CrawlJournal.SavedBook saved = journal.savedBook(book_url);
+        if (saved == null || !saved.file_name.equals(file_name) || saved.length() < 0 ||
+                new File(file_name).length() != saved.length()) {
+            // the file is unknown or was changed by hand, so nothing in it can be kept
+            System.out.println("No saved copy to update, saving book: " + book_title);
+            return writeBook(book_url, catalog_page, file_name, null, false);
+        }
+
+        // find the first volume that differs from the saved copy
+        Elements volume_chapters = catalog_page.select(".mulu-list");
+        int volume = 0;
+        while (volume < saved.volumeCount() && volume < volume_chapters.size() &&
+                volume_chapters.eq(volume).select("ul > li > a").size() == saved.chapterCount(volume) &&
+                sameChapters(volume_chapters.eq(volume).select("ul > li > a"), saved.chapterCount(volume))) {
+            volume++;
+        }
+        if (volume == saved.volumeCount() && volume == volume_chapters.size()) {
+            System.out.println("Up to date: " + book_title);
+            return true;
+        }
+
+        int chapter = -1;
+        if (volume < saved.volumeCount() && volume < volume_chapters.size() &&
+                volume_chapters.eq(volume).select("ul > li > a").size() > saved.chapterCount(volume) &&
+                sameChapters(volume_chapters.eq(volume).select("ul > li > a"), saved.chapterCount(volume))) {
+            // only new chapters at the end of the volume, its trailer is reopened
+            chapter = saved.chapterCount(volume);
+        }
+        System.out.println("Updating book: " + book_title);
+        CrawlJournal.BookProgress progress;
         try {
-            Document catalog_page = Jsoup.connect(book_url).userAgent(USER_AGENT).timeout(TIMEOUT).get();
+            progress = journal.reopenBook(book_url, volume, chapter);
+        } catch (IllegalStateException ise) {
+            // the journal lacks the offset of an empty volume, so the volume is written again
+            progress = journal.reopenBook(book_url, volume, -1);
+        }
+        return writeBook(book_url, catalog_page, file_name, progress, true);
+    }
+
+    /**
+     * Write a book to its part file, continuing from a recorded step if given,
+     * and put it in place of the book file once it is complete
+     * @param book_url      the link to the url
+     * @param catalog_page  the catalog page of the book
+     * @param file_name     the file to save the book to
+     * @param progress      where to continue writing, or null to write the whole file
+     * @param reopen        whether to continue from the complete book file instead of the part file
+     * @return              whether the book was saved
+     * @throws IOException
+     */
+    private static boolean writeBook(String book_url, Document catalog_page, String file_name,
+                                     CrawlJournal.BookProgress progress, boolean reopen) throws IOException {
+        BookWriter writer;
+        int first_volume = 0, first_chapter = -1;
 
-            // get book name and description
-            String book_title = catalog_page.select(".catalog > h1").first().text();
-            Element book_description = catalog_page.select(".zuojia-summary-content > div").first();
+        if (progress != null) {
+            // cut off whatever was written after the last recorded step and continue from there
+            writer = reopen ? BookWriter.reopen(file_name, progress.offset) :
+                    BookWriter.resume(file_name, progress.offset);
+            first_volume = progress.volume;
+            first_chapter = progress.chapter;
+        } else {
+            writer = BookWriter.create(file_name);
+        }
 
-            System.out.println("Saving book: " + book_title);
+        // the archive keeps the chapters of an earlier copy and only gets those written now
+        BookArchive archive = null;
+        int archive_id = 0;
+        if (ARCHIVE_BOOKS) {
+            archive = BookArchive.of(new File(file_name).getParent());
+            archive_id = progress == null ? archive.startBook(book_url, bookTitle(catalog_page)) :
+                    archive.continueBook(book_url, bookTitle(catalog_page));
+        }
 
-            String file_name = save_directory + '/' + book_title + ".txt";
-            PrintStream writer = new PrintStream(file_name, "UTF-8");
+        // get volume list
+        Elements volume_titles = catalog_page.select(".mulu-title");
+        Elements volume_chapters = catalog_page.select(".mulu-list");
 
-            writer.println("书名：" + book_title);
-            writer.println("内容简介：");
-            Elements description_paragraphs = book_description.select("p");
-            if (description_paragraphs.size() > 0) {
-                for (Element paragraph : description_paragraphs) {
-                    saveParagraph(paragraph, writer);
+        try {
+            if (progress == null) {
+                journal.startBook(book_url, file_name);
+
+                Element book_description = catalog_page.select(".zuojia-summary-content > div").first();
+                StringBuilder header = new StringBuilder();
+                header.append("书名：").append(bookTitle(catalog_page)).append(BookWriter.LINE_SEPARATOR);
+                header.append("内容简介：").append(BookWriter.LINE_SEPARATOR);
+                Elements description_paragraphs = book_description.select("p");
+                if (description_paragraphs.size() > 0) {
+                    for (Element paragraph : description_paragraphs) {
+                        saveParagraph(paragraph, header);
+                    }
+                } else {
+                    saveParagraph(book_description, header);
                 }
-            } else {
-                saveParagraph(book_description, writer);
+                header.append(BookWriter.LINE_SEPARATOR);
+                writer.print(header);
+                journal.saveHeader(book_url, writer.checkpoint());
             }
-            writer.println();
 
-            // get volume list
-            Elements volume_titles = catalog_page.select(".mulu-title");
-            Elements volume_chapters = catalog_page.select(".mulu-list");
-
-            for (int i = 0; i < volume_titles.size(); ++i) {
-                String volume_title = volume_titles.eq(i).select("h2").first().text();
-                writer.println("第" + convertNumbersToChinese(i + 1) + "卷：" + volume_title);
+            for (int i = first_volume; i < volume_titles.size(); ++i) {
+                // the title of the volume is already saved if it was left in the middle
+                int first = 0;
+                if (i == first_volume && first_chapter >= 0) {
+                    first = first_chapter;
+                } else {
+                    String volume_title = volume_titles.eq(i).select("h2").first().text();
+                    writer.println("第" + convertNumbersToChinese(i + 1) + "卷：" + volume_title);
+                    journal.saveVolumeTitle(book_url, i, writer.checkpoint());
+                }
 
                 // get chapter list
                 Elements volume_links = volume_chapters.eq(i).select("ul > li > a");
-                for (int j = 0; j < volume_links.size(); ++j) {
-                    System.out.print("\rProcessing: Volume " + (i + 1) + " out of " + volume_titles.size() + ", " +
-                            "Chapter " + (j + 1) + " out of " + volume_links.size());
-                    saveChapter(volume_links.eq(j).attr("abs:href"), writer, TOTAL_RETRY_COUNT);
+                List<String> chapter_urls = new ArrayList<>();
+                for (Element volume_link : volume_links) {
+                    chapter_urls.add(volume_link.attr("abs:href"));
+                }
+
+                // chapters are downloaded and parsed concurrently but written in catalog order
+                ChapterPipeline.Chapters chapters =
+                        chapter_pipeline.fetch(chapter_urls.subList(Math.min(first, chapter_urls.size()),
+                                chapter_urls.size()));
+                // the chapter and offset of every mark not journaled yet; a mark is only journaled once
+                // the file is written out past it, so that a killed download never points past its part file
+                ArrayDeque<long[]> marks = new ArrayDeque<>();
+                int journaled = first - 1;
+                // the chapters still fetched are dropped if the book stops before the last one is written
+                boolean chapters_written = false;
+                try {
+                    for (int j = first; j < chapter_urls.size(); ++j) {
+                        if (show_chapter_progress) {
+                            System.out.print("\rProcessing: Volume " + (i + 1) + " out of " + volume_titles.size() +
+                                    ", Chapter " + (j + 1) + " out of " + chapter_urls.size() +
+                                    " (" + metrics.progressLine() + ")");
+                        }
+                        byte[] text = chapters.writeNext(writer);
+                        if (archive != null) {
+                            archive.putChapter(archive_id, i, j, text);
+                        }
+                        long offset = writer.mark();
+                        if (offset >= 0) {
+                            marks.add(new long[]{j, offset});
+                        }
+                        long[] reached = null;
+                        while (!marks.isEmpty() && marks.peek()[1] <= writer.written()) {
+                            reached = marks.poll();
+                        }
+                        if (reached != null) {
+                            journaled = (int) reached[0];
+                            journal.saveChapter(book_url, i, journaled, reached[1]);
+                        }
+                        frontier.visit(chapter_urls.get(j));
+                    }
+                    chapters_written = true;
+                } finally {
+                    if (!chapters_written) {
+                        chapters.cancel();
+                    }
+                }
+                if (journaled < chapter_urls.size() - 1) {
+                    // the end of the last chapter is where an update reopens the volume, so it is written
+                    // out and journaled; the chapters of a compressed book can only be cut back to here
+                    journal.saveChapter(book_url, i, chapter_urls.size() - 1, writer.checkpoint());
                 }
 
                 writer.println("== 第" + convertNumbersToChinese(i + 1) + "卷终 ==");
                 writer.println();
+                journal.saveVolume(book_url, i, writer.checkpoint());
 
-                System.out.println();
+                if (show_chapter_progress) {
+                    System.out.println();
+                }
             }
-            System.out.println("Saved to: " + file_name);
+            writer.commit();
+        } finally {
             writer.close();
-        } catch (SocketTimeoutException ste) {
-            if (retry_count == 0) {
-                System.out.println("Error: Catalog reading failed.");
-            } else {
-                System.out.println("Error: Catalog reading time out, " + retry_count + " more retry(s)...");
-                saveBook(book_url, save_directory, retry_count - 1);
+        }
+        if (archive != null) {
+            int[] chapter_counts = new int[volume_chapters.size()];
+            for (int i = 0; i < chapter_counts.length; ++i) {
+                chapter_counts[i] = volume_chapters.eq(i).select("ul > li > a").size();
             }
+            archive.finishBook(archive_id, chapter_counts);
         }
+        System.out.println("Saved to: " + file_name);
+        journal.finishBook(book_url);
+        frontier.visit(book_url);
+        metrics.books.increment();
+        return true;
     }
 
     /**
-     * Save a chapter to a given output stream
-     * @param chapter_url   the link of the chapter
-     * @param writer        the output stream to write to
-     * @param retry_count   the number of retries remaining
+     * Check whether the first chapters listed in a volume are the ones saved, as far as the
+     * visited urls tell: a chapter the site replaced has a link that was never written.
+     * A volume saved before urls were recorded has none visited and is taken as it is.
+     * @param volume_links  the chapter links of the volume in the catalog
+     * @param saved_count   the number of chapters saved of the volume
+     * @return              whether the saved chapters are still listed
      * @throws IOException
      */
-    private static void saveChapter(String chapter_url, PrintStream writer, int retry_count) throws IOException {
-        try {
-            Document chapter_page = Jsoup.connect(chapter_url).userAgent(USER_AGENT).timeout(TIMEOUT).get();
-            if (chapter_page.select(".content").size() == 0) {
-                throw new SocketTimeoutException();
-            }
+    private static boolean sameChapters(Elements volume_links, int saved_count) throws IOException {
+        boolean any_visited = false, all_visited = true;
+        for (int i = 0; i < saved_count && i < volume_links.size(); ++i) {
+            boolean visited = frontier.isVisited(volume_links.get(i).attr("abs:href"));
+            any_visited |= visited;
+            all_visited &= visited;
+        }
+        return all_visited || !any_visited;
+    }
 
-            // get chapter title
-            String chapter_title = chapter_page.select(".book-content > h1").first().text();
-            writer.println(chapter_title);
-
-            //save paragraphs
-            Element main_content= chapter_page.select(".neirong").first();
-            Elements paragraphs = main_content.select("p");
-            if (paragraphs.size() == 0) {
-                saveParagraph(main_content, writer);
-            } else {
-                for (Element paragraph : paragraphs) {
-                    saveParagraph(paragraph, writer);
-                }
-            }
-            writer.println();
-        } catch (SocketTimeoutException ste) {
-            if (retry_count == 0) {
-                System.out.println("Error: Chapter reading failed.");
-                writer.println("获取本章内容超时");
-            } else {
-                if (retry_count == TOTAL_RETRY_COUNT) {
-                    System.out.println();
+    /**
+     * Get the title of a book from its catalog page
+     * @param catalog_page  the catalog page of a book
+     * @return              the title of the book
+     */
+    private static String bookTitle(Document catalog_page) {
+        return catalog_page.select(".catalog > h1").first().text();
+    }
+
+    /**
+     * Count the chapters listed in a catalog page
+     * @param catalog_page  the catalog page of a book
+     * @return              the number of chapters over all volumes
+     */
+    static int chapterCount(Document catalog_page) {
+        return catalog_page.select(".mulu-list > ul > li > a").size();
+    }
+
+    /**
+     * Get the file a book is saved to, named after its title, and after its id as well
+     * if another book of the same title has that file
+     * @param book_url          the link of the book
+     * @param save_directory    the directory to save the file
+     * @param book_title        the title of the book
+     * @return                  the name of the file
+     */
+    private static String bookFile(String book_url, String save_directory, String book_title) {
+        String suffix = ".txt" + (GZIP_BOOKS ? BookWriter.GZIP_SUFFIX : "");
+        return journal.claimFile(book_url, save_directory + '/' + book_title + suffix,
+                save_directory + '/' + book_title + " (" + bookId(book_url) + ")" + suffix);
+    }
+
+    /**
+     * Get the id of a book, the last part of its link
+     * @param book_url  the link of the book
+     * @return          the id
+     */
+    private static String bookId(String book_url) {
+        String path = book_url.endsWith("/") ? book_url.substring(0, book_url.length() - 1) : book_url;
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Check whether a chapter page has its content
+     * @param chapter_page  the parsed chapter page
+     * @return              false if the site sent a page without content, usually pushing back
+     */
+    static boolean hasContent(Document chapter_page) {
+        return Collector.findFirst(ChapterExtractor.CONTENT, chapter_page) != null;
+    }
+
+    /**
+     * Save a chapter to the text of a book
+     * @param chapter_page  the parsed chapter page, with content
+     * @param writer        the text to add the chapter to
+     */
+    static void saveChapter(Document chapter_page, StringBuilder writer) {
+        ChapterExtractor.render(chapter_page, writer);
+    }
+
+    /**
+     * Save the placeholder of a chapter that could not be read
+     * @param writer    the text to add to
+     */
+    static void saveMissingChapter(StringBuilder writer) {
+        System.out.println("Error: Chapter reading failed.");
+        writer.append("获取本章内容超时").append(BookWriter.LINE_SEPARATOR);
+    }
+
+    /**
+     * Fetch a page, trying again while it times out
+     * @param url             the link of the page
+     * @param page_name       the name of the page in error messages
+     * @param retry_count     the number of retries remaining
+     * @param after_progress  whether a progress line has to be ended before the first error
+     * @return                the parsed page, or null if it could not be read
+     * @throws IOException
+     */
+    private static Document fetchWithRetries(String url, String page_name, int retry_count, boolean after_progress)
+            throws IOException {
+        RetryPolicy.Retries retries = retry_policy.start(page_name, retry_count, after_progress);
+        while (true) {
+            try {
+                // parsed after the request slot is given back
+                HttpTransport.Page raw_page = download(url);
+                Document page = raw_page.parse();
+                RetryPolicy.checkNotBlocked(page);
+                request_scheduler.reportSuccess(url);
+                // cached only once it is known not to be a ban page
+                transport.storeValidated(url, raw_page);
+                return page;
+            } catch (IOException ioe) {
+                if (!retries.retry(url, ioe)) {
+                    return null;
                 }
-                System.out.println("Error: Chapter reading time out, " + retry_count + " more retry(s)...");
-                saveChapter(chapter_url, writer, retry_count - 1);
             }
         }
     }
 
     /**
-     * Save a paragraph to a given output stream
-     * @param paragraph the element of paragraph
-     * @param writer    the output stream to write to
+     * Fetch the catalog of a book, trying again while the retry policy allows
+     * @param book_url  the link of the book
+     * @return          the catalog page, or null if it could not be read
+     * @throws IOException
      */
-    private static void saveParagraph(Element paragraph, PrintStream writer) {
-        List<TextNode> text_nodes = paragraph.textNodes();
-        for (TextNode node : text_nodes) {
-            String line = "　　" + node.text().replace('　', ' ').trim();
-            writer.println(line);
+    static Document fetchCatalog(String book_url) throws IOException {
+        return fetchWithRetries(book_url, "Catalog", TOTAL_RETRY_COUNT, false);
+    }
+
+    /**
+     * Get a chapter page from the cache, or download it if it is not cached.
+     * Chapters never change once published, so cached ones are used without asking the site.
+     * @param url   the link of the chapter
+     * @return      the page
+     * @throws IOException
+     */
+    static HttpTransport.Page downloadChapter(String url) throws IOException {
+        HttpTransport.Page page = transport.cached(url);
+        if (page == null) {
+            return download(url);
         }
+        metrics.cache_hits.increment();
+        return page;
+    }
+
+    /**
+     * Keep a chapter page in the cache once it is known to have its content
+     * @param url   the link of the chapter
+     * @param page  the page
+     * @throws IOException
+     */
+    static void keepChapter(String url, HttpTransport.Page page) throws IOException {
+        transport.store(url, page);
+    }
+
+    /**
+     * Drop a cached chapter page that turned out to have no content
+     * @param url   the link of the chapter
+     * @throws IOException
+     */
+    static void dropChapter(String url) throws IOException {
+        transport.evict(url);
+    }
+
+    /**
+     * Open the page cache
+     * @return  the cache, or null if it is turned off or cannot be opened
+     */
+    private static PageCache openCache() {
+        if (CACHE_DIR.equals("none")) {
+            return null;
+        }
+        try {
+            return new PageCache(new File(CACHE_DIR), CACHE_MEGABYTES << 20, TimeUnit.DAYS.toMillis(CACHE_DAYS));
+        } catch (IOException ioe) {
+            System.out.println("Warning: Cannot open page cache, downloading everything. Message: " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open the crawl frontier
+     * @return  the frontier, which keeps nothing if it is turned off or cannot be opened
+     */
+    private static CrawlFrontier openFrontier() {
+        if (FRONTIER_DIR.equals("none")) {
+            return new CrawlFrontier();
+        }
+        try {
+            return new CrawlFrontier(new File(FRONTIER_DIR), FRONTIER_URLS);
+        } catch (IOException ioe) {
+            System.out.println("Warning: Cannot open crawl frontier, urls are not remembered. Message: " +
+                    ioe.getMessage());
+            return new CrawlFrontier();
+        }
+    }
+
+    /**
+     * Close the crawl frontier when the program exits, however it exits
+     */
+    private static void closeFrontier() {
+        try {
+            frontier.close();
+        } catch (IOException ioe) {
+            System.out.println("Warning: Cannot close crawl frontier. Message: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Close the page cache when the program exits, however it exits
+     */
+    private static void closeCache() {
+        try {
+            transport.close();
+        } catch (IOException ioe) {
+            System.out.println("Warning: Cannot close page cache. Message: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Download a page through the shared request scheduler and transport without parsing it
+     * @param url   the link of the page
+     * @return      the downloaded page
+     * @throws IOException
+     */
+    static HttpTransport.Page download(final String url) throws IOException {
+        return request_scheduler.execute(url, new RequestScheduler.Request<HttpTransport.Page>() {
+            @Override
+            public HttpTransport.Page run() throws IOException {
+                return transport.get(url);
+            }
+        });
+    }
+
+    /**
+     * Save a paragraph to the text of a book
+     * @param paragraph the element of paragraph
+     * @param writer    the text to add to
+     */
+    private static void saveParagraph(Element paragraph, StringBuilder writer) {
+        ChapterExtractor.appendParagraph(paragraph, writer);
     }
 
     /**
@@ -0,0 +1,416 @@
+package com.pitayazhu.novelBot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache of downloaded pages, so that pages already seen are not downloaded again.
+ * Bodies are stored gzipped under the SHA-1 of their content, so pages with the same
+ * content share one file. An index maps every url to its body, charset and validators;
+ * it is kept as an append-only log, replayed on start and compacted when it grows.
+ * A cache hit only updates the page in memory; uses are written to the log in batches
+ * and on close, so a crash loses at most how recently the last few pages were used.
+ * The cache holds at most a given number of compressed bytes, dropping the least
+ * recently used pages first, and pages not used for a given time are dropped on start.
+ * @author pitaya
+ */
+class PageCache {
+
+    private static final String INDEX_FILE = "index.log";
+    private static final String OBJECTS_DIR = "objects";
+
+    private static final String PUT = "PUT";
+    private static final String USE = "USE";
+    private static final String DEL = "DEL";
+
+    // the log is compacted when it has this many more lines than entries
+    private static final int MAX_DEAD_LINES = 10000;
+    // uses kept in memory before they are written to the log
+    private static final int MAX_PENDING_USES = 1000;
+
+    /**
+     * A cached page
+     */
+    private static class Entry {
+        final String url;
+        final String hash;
+        final String charset;
+        final String etag;
+        final String last_modified;
+        final long size;
+        long last_used;
+
+        Entry(String url, String hash, String charset, String etag, String last_modified, long size,
+              long last_used) {
+            this.url = url;
+            this.hash = hash;
+            this.charset = charset;
+            this.etag = etag;
+            this.last_modified = last_modified;
+            this.size = size;
+            this.last_used = last_used;
+        }
+    }
+
+    private final File directory;
+    private final File index_file;
+    private final long max_bytes;
+
+    // the least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // how many urls use each body
+    private final Map<String, Integer> references = new HashMap<>();
+    // pages used since the log last recorded their use, the least recently used first
+    private final LinkedHashMap<String, Entry> pending_uses = new LinkedHashMap<>(16, 0.75f, true);
+    private long total_bytes = 0;
+    private int log_lines = 0;
+    private Writer out;
+
+    /**
+     * Open a cache directory, creating it if it does not exist
+     * @param directory         the directory of the cache
+     * @param max_bytes         the most compressed bytes kept
+     * @param max_idle_millis   how long a page is kept without being used
+     * @throws IOException
+     */
+    PageCache(File directory, long max_bytes, long max_idle_millis) throws IOException {
+        this.directory = directory;
+        this.index_file = new File(directory, INDEX_FILE);
+        this.max_bytes = max_bytes;
+        if (!new File(directory, OBJECTS_DIR).isDirectory() && !new File(directory, OBJECTS_DIR).mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        if (index_file.exists()) {
+            replay();
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.last_used > max_idle_millis) {
+                iterator.remove();
+                release(entry);
+            }
+        }
+        evict();
+        compact();
+    }
+
+    /**
+     * Get a cached page
+     * @param url   the link of the page
+     * @return      the page, or null if it is not cached
+     * @throws IOException
+     */
+    synchronized HttpTransport.Page get(String url) throws IOException {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        byte[] body;
+        try {
+            body = readObject(entry.hash);
+        } catch (IOException ioe) {
+            // a body lost or damaged on disk is a miss, not an error
+            remove(url);
+            return null;
+        }
+        entry.last_used = System.currentTimeMillis();
+        pending_uses.put(url, entry);
+        if (pending_uses.size() >= MAX_PENDING_USES) {
+            writeUses();
+        }
+        return new HttpTransport.Page(url, body, entry.charset, entry.etag, entry.last_modified, true);
+    }
+
+    /**
+     * Get the validators of a cached page without reading its body
+     * @param url   the link of the page
+     * @return      the ETag and Last-Modified values, either may be null, or null if the page is not cached
+     */
+    synchronized String[] validatorsOf(String url) {
+        Entry entry = entries.get(url);
+        return entry == null ? null : new String[]{entry.etag, entry.last_modified};
+    }
+
+    /**
+     * Store a page, replacing the one cached for its url
+     * @param url   the link the page was requested with
+     * @param page  the page
+     * @throws IOException
+     */
+    synchronized void put(String url, HttpTransport.Page page) throws IOException {
+        // dropped first, so that a body shared with the old page is not deleted after it is written
+        remove(url);
+        String hash = sha1(page.body);
+        long size = writeObject(hash, page.body);
+        Entry entry = new Entry(url, hash, page.charset, page.etag, page.last_modified, size,
+                System.currentTimeMillis());
+        add(entry);
+        append(PUT, url, hash, nullToEmpty(entry.charset), nullToEmpty(entry.etag),
+                nullToEmpty(entry.last_modified), String.valueOf(size), String.valueOf(entry.last_used));
+        evict();
+        if (log_lines > entries.size() + MAX_DEAD_LINES) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop a cached page
+     * @param url   the link of the page
+     * @throws IOException
+     */
+    synchronized void remove(String url) throws IOException {
+        Entry entry = entries.remove(url);
+        if (entry != null) {
+            pending_uses.remove(url);
+            release(entry);
+            append(DEL, url);
+        }
+    }
+
+    /**
+     * Write the uses kept in memory to the log and close it
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        writeUses();
+        out.close();
+        out = null;
+    }
+
+    synchronized long size() {
+        return total_bytes;
+    }
+
+    synchronized int count() {
+        return entries.size();
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.url, entry);
+        Integer count = references.get(entry.hash);
+        if (count == null) {
+            total_bytes += entry.size;
+        }
+        references.put(entry.hash, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Forget an entry that is already out of the map, deleting its body if nothing else uses it
+     */
+    private void release(Entry entry) {
+        Integer count = references.get(entry.hash);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(entry.hash, count - 1);
+            return;
+        }
+        references.remove(entry.hash);
+        total_bytes -= entry.size;
+        File object = objectFile(entry.hash);
+        if (object.exists() && !object.delete()) {
+            System.out.println("Warning: cannot delete cached page " + object);
+        }
+    }
+
+    private void evict() throws IOException {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (total_bytes > max_bytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            pending_uses.remove(entry.url);
+            release(entry);
+            append(DEL, entry.url);
+        }
+    }
+
+    private byte[] readObject(String hash) throws IOException {
+        try (InputStream is = new GZIPInputStream(new FileInputStream(objectFile(hash)))) {
+            return is.readAllBytes();
+        }
+    }
+
+    /**
+     * Write a body unless one with the same content is stored already
+     * @return  the size of the compressed file
+     */
+    private long writeObject(String hash, byte[] body) throws IOException {
+        File object = objectFile(hash);
+        if (object.exists()) {
+            return object.length();
+        }
+        File parent = object.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + parent);
+        }
+        // written aside and moved in place, so a crash never leaves half a body under its hash
+        File temp = new File(parent, hash + ".tmp");
+        try (OutputStream os = new GZIPOutputStream(new FileOutputStream(temp))) {
+            os.write(body);
+        }
+        Files.move(temp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return object.length();
+    }
+
+    private File objectFile(String hash) {
+        return new File(new File(new File(directory, OBJECTS_DIR), hash.substring(0, 2)), hash.substring(2) + ".gz");
+    }
+
+    private void replay() throws IOException {
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(index_file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    replayRecord(fields);
+                } catch (RuntimeException re) {
+                    // a line cut short by a crash, the pages before it are still good
+                    break;
+                }
+            }
+        }
+    }
+
+    private void replayRecord(String[] fields) {
+        switch (fields[0]) {
+            case PUT:
+                Entry old = entries.remove(fields[1]);
+                if (old != null) {
+                    release(old);
+                }
+                Entry entry = new Entry(fields[1], fields[2], emptyToNull(fields[3]), emptyToNull(fields[4]),
+                        emptyToNull(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]));
+                if (objectFile(entry.hash).exists()) {
+                    add(entry);
+                }
+                break;
+            case USE:
+                Entry used = entries.get(fields[1]);
+                if (used != null) {
+                    used.last_used = Long.parseLong(fields[2]);
+                }
+                break;
+            case DEL:
+                Entry removed = entries.remove(fields[1]);
+                if (removed != null) {
+                    release(removed);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown cache record: " + fields[0]);
+        }
+    }
+
+    /**
+     * Rewrite the index with one line for each page, the least recently used first
+     */
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File temp = new File(directory, INDEX_FILE + ".tmp");
+        out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8);
+        log_lines = 0;
+        // every page is written with its last use, in the order of use
+        pending_uses.clear();
+        for (Entry entry : entries.values()) {
+            write(PUT, entry.url, entry.hash, nullToEmpty(entry.charset), nullToEmpty(entry.etag),
+                    nullToEmpty(entry.last_modified), String.valueOf(entry.size), String.valueOf(entry.last_used));
+        }
+        out.close();
+        Files.move(temp.toPath(), index_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        out = new OutputStreamWriter(new FileOutputStream(index_file, true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the uses kept in memory to the log at once, the least recently used first
+     */
+    private void writeUses() throws IOException {
+        if (pending_uses.isEmpty()) {
+            return;
+        }
+        for (Entry entry : pending_uses.values()) {
+            write(USE, entry.url, String.valueOf(entry.last_used));
+        }
+        pending_uses.clear();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    private void append(String... fields) throws IOException {
+        write(fields);
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Write a record to the log without flushing it
+     */
+    private void write(String... fields) throws IOException {
+        if (out == null) {
+            return;
+        }
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) {
+                record.append('\t');
+            }
+            record.append(fields[i].replace('\t', ' ').replace('\n', ' '));
+        }
+        record.append('\n');
+        out.write(record.toString());
+        log_lines++;
+    }
+
+    private static String sha1(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,346 @@
+package com.pitayazhu.novelBot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared scheduler every request to the book site goes through.
+ * Requests are limited by a token bucket per host and by a cap on requests in flight.
+ * The rate of each host is probed up slowly while the host answers quickly,
+ * and cut down when its latency or error rate rises, so a long crawl keeps
+ * running near what the site tolerates instead of bursting into a ban.
+ * Each host also has a circuit breaker: after a run of failures with no usable
+ * page in between, no request goes to the host for a cool-down that doubles on
+ * every trip, then a single probe is let through and its outcome closes or
+ * reopens the breaker. The pause before retrying a failed page is left to
+ * RetryPolicy, so a failure is not waited out twice.
+ * @author pitaya
+ */
+class RequestScheduler {
+
+    /**
+     * A request to run once the scheduler allows it
+     * @param <T>   the type of the result
+     */
+    interface Request<T> {
+        T run() throws IOException;
+    }
+
+    // the lowest rate a host is slowed down to, in requests per second
+    private static final double MIN_RATE = 0.25;
+    // the rate gained back after each fast successful request
+    private static final double RATE_STEP = 0.05;
+    // latency above this multiple of the usual latency is treated as throttling
+    private static final double SLOW_FACTOR = 2.5;
+    // error rate above which the host is slowed down
+    private static final double MAX_ERROR_RATE = 0.2;
+    // weight of the newest sample in the moving averages
+    private static final double EWMA_WEIGHT = 0.1;
+    // failures in a row without a usable page that open the circuit breaker of a host
+    private static final int BREAKER_THRESHOLD = 5;
+    // time the breaker stays open after its first trip, doubled on every further trip
+    private static final long BREAKER_COOLDOWN_MILLIS = 30 * 1000;
+    private static final long MAX_BREAKER_COOLDOWN_MILLIS = 10 * 60 * 1000;
+    // a probe whose outcome was never reported is given up after this long
+    private static final long PROBE_TIMEOUT_MILLIS = 60 * 1000;
+    // how often requests waiting for a probe check on it
+    private static final long PROBE_POLL_MILLIS = 200;
+
+    private final double max_rate;
+    private final Semaphore in_flight;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    // time taken by successful requests, without the wait for a slot or a token
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    // requests that failed or answered without content
+    private final LongAdder failures = new LongAdder();
+    // times a host was slowed down because it looked like it was throttling
+    private final LongAdder slowdowns = new LongAdder();
+    // times a circuit breaker opened
+    private final LongAdder trips_total = new LongAdder();
+
+    /**
+     * Create a scheduler
+     * @param max_rate      the highest rate allowed for any host, in requests per second
+     * @param max_in_flight the most requests running at the same time over all hosts
+     */
+    RequestScheduler(double max_rate, int max_in_flight) {
+        if (max_rate < MIN_RATE) {
+            throw new IllegalArgumentException("Rate must be at least " + MIN_RATE + ": " + max_rate);
+        }
+        if (max_in_flight < 1) {
+            throw new IllegalArgumentException("In flight requests must be positive: " + max_in_flight);
+        }
+        this.max_rate = max_rate;
+        this.in_flight = new Semaphore(max_in_flight, true);
+    }
+
+    /**
+     * Run a request to an url when both its host and the in-flight cap allow it
+     * @param url       the url the request goes to
+     * @param request   the request to run
+     * @param <T>       the type of the result
+     * @return          the result of the request
+     * @throws IOException
+     */
+    <T> T execute(String url, Request<T> request) throws IOException {
+        Host host = hostOf(url);
+        // wait for the breaker without holding a request slot
+        long wait;
+        while ((wait = host.admit()) > 0) {
+            sleep(wait);
+        }
+        try {
+            in_flight.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot.");
+        }
+        try {
+            sleep(host.reserve());
+            long start = System.nanoTime();
+            T result;
+            try {
+                result = request.run();
+            } catch (IOException ioe) {
+                // a page that does not exist is not the host failing
+                if (RetryPolicy.classify(ioe).host_fault) {
+                    host.onFailure();
+                } else {
+                    host.onInconclusive();
+                }
+                throw ioe;
+            }
+            long latency = System.nanoTime() - start;
+            host.onSuccess(latency);
+            latencies.record(latency);
+            return result;
+        } finally {
+            in_flight.release();
+        }
+    }
+
+    /**
+     * Report a response that arrived but was not usable, e.g. a page without content
+     * @param url   the url of the response
+     */
+    void reportFailure(String url) {
+        hostOf(url).onFailure();
+    }
+
+    /**
+     * Report a response that was checked and found usable, which closes the breaker of its host.
+     * A response is only known to be good once it is parsed, so arriving is not enough.
+     * @param url   the url of the response
+     */
+    void reportSuccess(String url) {
+        hostOf(url).onUsable();
+    }
+
+    /**
+     * Report a response that was not usable for a reason that says nothing of the host,
+     * e.g. a chapter without content, so a probe it was does not hold the breaker half open
+     * @param url   the url of the response
+     */
+    void reportInconclusive(String url) {
+        hostOf(url).onInconclusive();
+    }
+
+    /**
+     * Get the number of requests that failed so far, including unusable responses
+     * @return  the number of failures
+     */
+    long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * Get the number of times a host was slowed down so far
+     * @return  the number of slowdowns
+     */
+    long slowdowns() {
+        return slowdowns.sum();
+    }
+
+    /**
+     * Get the number of times a circuit breaker opened so far
+     * @return  the number of trips
+     */
+    long breakerTrips() {
+        return trips_total.sum();
+    }
+
+    /**
+     * Get the current rate of a host
+     * @param url   any url of the host
+     * @return      the allowed requests per second
+     */
+    double rateOf(String url) {
+        return hostOf(url).rate();
+    }
+
+    /**
+     * Get the latencies of the successful requests so far
+     * @return  the histogram of latencies
+     */
+    LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    private Host hostOf(String url) {
+        String name;
+        try {
+            name = new URI(url).getHost();
+        } catch (URISyntaxException use) {
+            name = null;
+        }
+        if (name == null) {
+            name = "";
+        }
+        Host host = hosts.get(name);
+        if (host == null) {
+            Host new_host = new Host();
+            host = hosts.putIfAbsent(name, new_host);
+            if (host == null) {
+                host = new_host;
+            }
+        }
+        return host;
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit.");
+        }
+    }
+
+    /**
+     * Token bucket and health of a single host
+     */
+    private class Host {
+
+        private double rate = max_rate;
+        private double tokens = 1;
+        private long last_refill = System.nanoTime();
+
+        private double latency_average = 0;
+        private double error_average = 0;
+        private int error_streak = 0;
+
+        // failures since the last usable page, only reset by one
+        private int failure_streak = 0;
+        private boolean open = false;
+        private long open_until = 0;
+        private int trips = 0;
+        // when the probe of a half-open breaker was let through, or 0 if there is none
+        private long probe_started = 0;
+
+        /**
+         * Pass the circuit breaker
+         * @return  the nanoseconds to wait before asking again, or 0 if the request may go
+         */
+        synchronized long admit() {
+            if (!open) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (now < open_until) {
+                return open_until - now;
+            }
+            if (probe_started != 0 && now - probe_started < TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS)) {
+                return TimeUnit.MILLISECONDS.toNanos(PROBE_POLL_MILLIS);
+            }
+            // half open: this request is the probe
+            probe_started = now;
+            return 0;
+        }
+
+        synchronized void onUsable() {
+            failure_streak = 0;
+            open = false;
+            trips = 0;
+            probe_started = 0;
+        }
+
+        synchronized void onInconclusive() {
+            // the breaker stays open, and the next request is a new probe
+            probe_started = 0;
+        }
+
+        private void trip() {
+            long cooldown = Math.min(MAX_BREAKER_COOLDOWN_MILLIS, BREAKER_COOLDOWN_MILLIS << Math.min(trips, 16));
+            trips += 1;
+            open = true;
+            open_until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cooldown);
+            probe_started = 0;
+            trips_total.increment();
+        }
+
+        /**
+         * Take a token from the bucket, going into debt if it is empty
+         * @return  the nanoseconds to wait before the request may start
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            double capacity = Math.max(1, rate);
+            tokens = Math.min(capacity, tokens + (now - last_refill) / 1e9 * rate);
+            last_refill = now;
+            tokens -= 1;
+
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        synchronized void onSuccess(long latency) {
+            error_streak = 0;
+            error_average = error_average * (1 - EWMA_WEIGHT);
+
+            boolean slow = latency_average > 0 && latency > latency_average * SLOW_FACTOR;
+            latency_average = latency_average == 0 ? latency :
+                    latency_average * (1 - EWMA_WEIGHT) + latency * EWMA_WEIGHT;
+
+            if (slow) {
+                slowDown();
+            } else if (error_average < MAX_ERROR_RATE) {
+                rate = Math.min(max_rate, rate + RATE_STEP);
+            }
+        }
+
+        synchronized void onFailure() {
+            failures.increment();
+            error_average = error_average * (1 - EWMA_WEIGHT) + EWMA_WEIGHT;
+            error_streak += 1;
+
+            if (error_average >= MAX_ERROR_RATE || error_streak > 1) {
+                slowDown();
+            }
+
+            failure_streak += 1;
+            if (open ? probe_started != 0 : failure_streak >= BREAKER_THRESHOLD) {
+                // the probe failed, or too many failures in a row
+                trip();
+            }
+        }
+
+        synchronized double rate() {
+            return rate;
+        }
+
+        private void slowDown() {
+            slowdowns.increment();
+            rate = Math.max(MIN_RATE, rate / 2);
+            tokens = Math.min(tokens, 0);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.HttpStatusException;
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.CharacterCodingException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+/**
+ * Decides whether and when a failed page is downloaded again, shared by every fetch of the crawler.
+ * Failures are sorted into classes, each with its own number of retries and backoff:
+ * a timeout is tried again soon, a throttled or ban page only after a long pause,
+ * and a page that does not exist not at all. The pause grows exponentially with
+ * every retry of the same class and is jittered, so the fetchers that failed together
+ * do not all come back at the same moment.
+ * Failures found only after the response arrived, like a page without content, are
+ * reported to the request scheduler, so they count toward the circuit breaker of the host.
+ * @author pitaya
+ */
+class RetryPolicy {
+
+    /**
+     * The kinds of failure, each with its own policy
+     */
+    enum ErrorClass {
+        // the site did not answer in time
+        TIMEOUT(5, 1000, 30 * 1000, true),
+        // the connection failed or was cut
+        NETWORK(5, 2000, 60 * 1000, true),
+        // a 5xx status
+        SERVER_ERROR(3, 2000, 60 * 1000, true),
+        // a 429 or 503 status, or a ban or captcha page
+        THROTTLED(5, 10 * 1000, 5 * 60 * 1000, true),
+        // a page that arrived without the content it should have, usually the site pushing back
+        NO_CONTENT(5, 2000, 60 * 1000, true),
+        // a 4xx status, the page will not be there however often it is asked for
+        CLIENT_ERROR(0, 0, 0, false),
+        // a body that cannot be decoded or parsed, usually cut short on the way
+        PARSE_ERROR(1, 500, 500, false);
+
+        // the most retries for failures of this class
+        final int retries;
+        // the pause before the first retry, doubled for every further one
+        final long base_millis;
+        final long max_millis;
+        // whether the failure counts against the host
+        final boolean host_fault;
+
+        ErrorClass(int retries, long base_millis, long max_millis, boolean host_fault) {
+            this.retries = retries;
+            this.base_millis = base_millis;
+            this.max_millis = max_millis;
+            this.host_fault = host_fault;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        }
+    }
+
+    /**
+     * A page that arrived but cannot be used
+     */
+    static class UnusablePageException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final ErrorClass error_class;
+
+        UnusablePageException(ErrorClass error_class, String message) {
+            super(message);
+            this.error_class = error_class;
+        }
+
+        UnusablePageException(ErrorClass error_class, String message, Throwable cause) {
+            super(message, cause);
+            this.error_class = error_class;
+        }
+    }
+
+    // words in the title of a page the site shows instead of the one asked for when it blocks a crawler
+    private static final String[] BLOCKED_TITLE_WORDS = {"验证码", "访问过于频繁", "禁止访问", "captcha", "access denied"};
+    // elements only found on a captcha page
+    private static final String CAPTCHA_SELECTOR =
+            "input[name*=captcha], img[src*=captcha], img[src*=verify], #captcha, .captcha";
+
+    private final RequestScheduler request_scheduler;
+    private final CrawlMetrics metrics;
+
+    /**
+     * Create a policy
+     * @param request_scheduler the scheduler told about failures found after a response arrived
+     * @param metrics           the metrics retries are counted in
+     */
+    RetryPolicy(RequestScheduler request_scheduler, CrawlMetrics metrics) {
+        this.request_scheduler = request_scheduler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start following the retries of one page
+     * @param page_name         the name of the page in error messages
+     * @param retry_count       the most retries over all classes
+     * @param after_progress    whether a progress line has to be ended before the first error
+     * @return                  the retries of the page
+     */
+    Retries start(String page_name, int retry_count, boolean after_progress) {
+        return new Retries(page_name, retry_count, after_progress);
+    }
+
+    /**
+     * Sort a failure into its class
+     * @param failure   the exception thrown while downloading or parsing a page
+     * @return          the class of the failure
+     */
+    static ErrorClass classify(IOException failure) {
+        if (failure instanceof UnusablePageException) {
+            return ((UnusablePageException) failure).error_class;
+        }
+        if (failure instanceof SocketTimeoutException) {
+            return ErrorClass.TIMEOUT;
+        }
+        if (failure instanceof HttpStatusException) {
+            int status = ((HttpStatusException) failure).getStatusCode();
+            if (status == 429 || status == 503) {
+                return ErrorClass.THROTTLED;
+            } else if (status == 408) {
+                return ErrorClass.TIMEOUT;
+            } else if (status >= 400 && status < 500) {
+                return ErrorClass.CLIENT_ERROR;
+            }
+            return ErrorClass.SERVER_ERROR;
+        }
+        if (failure instanceof ZipException || failure instanceof CharacterCodingException) {
+            return ErrorClass.PARSE_ERROR;
+        }
+        return ErrorClass.NETWORK;
+    }
+
+    /**
+     * Check whether a page is the one the site shows instead of the one asked for when it blocks a crawler
+     * @param page  the parsed page
+     * @return      whether it is a ban or captcha page
+     */
+    static boolean isBlocked(Document page) {
+        String title = page.title().toLowerCase(Locale.ROOT);
+        for (String word : BLOCKED_TITLE_WORDS) {
+            if (title.contains(word)) {
+                return true;
+            }
+        }
+        return !page.select(CAPTCHA_SELECTOR).isEmpty();
+    }
+
+    /**
+     * Fail on a ban or captcha page
+     * @param page  the parsed page
+     * @throws UnusablePageException
+     */
+    static void checkNotBlocked(Document page) throws UnusablePageException {
+        if (isBlocked(page)) {
+            throw new UnusablePageException(ErrorClass.THROTTLED, "Blocked by the site: " + page.location());
+        }
+    }
+
+    /**
+     * The retries of one page
+     */
+    class Retries {
+        private final String page_name;
+        private final boolean after_progress;
+        private int retries_left;
+        private final int[] used = new int[ErrorClass.values().length];
+        private boolean reported = false;
+
+        private Retries(String page_name, int retry_count, boolean after_progress) {
+            this.page_name = page_name;
+            this.retries_left = retry_count;
+            this.after_progress = after_progress;
+        }
+
+        /**
+         * Decide whether to try a failed page again, and wait out the backoff if so
+         * @param url       the link of the page
+         * @param failure   the exception the page failed with
+         * @return          whether the page should be downloaded again
+         * @throws IOException  if the thread was interrupted
+         */
+        boolean retry(String url, IOException failure) throws IOException {
+            long delay = next(url, failure);
+            if (delay < 0) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+            }
+            return true;
+        }
+
+        /**
+         * Decide whether to try a failed page again without waiting, for callers that
+         * put the page aside until the backoff is over instead of holding a thread
+         * @param url       the link of the page
+         * @param failure   the exception the page failed with
+         * @return          the milliseconds to wait before the retry, or -1 if the page is given up
+         * @throws IOException  if the thread was interrupted
+         */
+        long next(String url, IOException failure) throws IOException {
+            if (failure instanceof InterruptedIOException && !(failure instanceof SocketTimeoutException)) {
+                throw failure;
+            }
+            ErrorClass error_class = classify(failure);
+            if (failure instanceof UnusablePageException) {
+                // the scheduler only saw a response arrive
+                if (error_class.host_fault) {
+                    request_scheduler.reportFailure(url);
+                } else {
+                    request_scheduler.reportInconclusive(url);
+                }
+            }
+
+            int attempt = ++used[error_class.ordinal()];
+            if (retries_left == 0 || attempt > error_class.retries) {
+                report("Error: " + page_name + " reading failed (" + error_class + ").");
+                return -1;
+            }
+            retries_left -= 1;
+            long delay = delayOf(error_class, attempt);
+            report(String.format(Locale.ROOT, "Error: %s reading failed (%s), %d more retry(s) in %.1f s...",
+                    page_name, error_class, retries_left, delay / 1000.0));
+            metrics.retries.increment();
+            return delay;
+        }
+
+        private void report(String message) {
+            if (after_progress && !reported) {
+                System.out.println();
+            }
+            reported = true;
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Get the pause before a retry: half of the exponential backoff, plus a random share of the other half
+     * @param error_class   the class of the failure
+     * @param attempt       the number of retries of that class so far, from 1
+     * @return              the pause in milliseconds
+     */
+    private static long delayOf(ErrorClass error_class, int attempt) {
+        long backoff = Math.min(error_class.max_millis, error_class.base_millis << Math.min(attempt - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
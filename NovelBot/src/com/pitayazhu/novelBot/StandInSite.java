@@ -0,0 +1,365 @@
+package com.pitayazhu.novelBot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in of the book site for measuring the crawler without visiting the real one.
+ * It serves generated home, category, catalog and chapter pages with the same markup
+ * the crawler selects from, after a configurable latency and jitter. It can also
+ * push back like the real site: a share of the requests fail, and a client going
+ * faster than a given rate is banned for a while. Pages are compressed for clients
+ * that accept gzip and carry an ETag, answered with 304 when it still matches.
+ * A failed or banned chapter page is served without its content, which is how the
+ * site refuses chapters. Other pages stall past the crawler's timeout instead,
+ * since a timeout is the only failure the crawler retries on them.
+ * @author pitaya
+ */
+class StandInSite {
+
+    /**
+     * The shape of the generated site and how it behaves
+     */
+    static class Settings {
+        int pages_per_category = 2;
+        int books_per_page = 5;
+        int volumes = 2;
+        int chapters_per_volume = 20;
+        int paragraphs_per_chapter = 30;
+        // time taken to answer every request, plus a random part up to the jitter
+        long latency_millis = 20;
+        long jitter_millis = 10;
+        // share of the requests that fail
+        double error_rate = 0;
+        // requests per second above which the client is banned, or 0 to never ban
+        double ban_rate = 0;
+        long ban_millis = 10 * 1000;
+    }
+
+    // common characters the text of the chapters is made of
+    private static final String TEXT_CHARACTERS = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会" +
+            "可主发年动同工也能下过子说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现实";
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final ArrayDeque<Long> recent_requests = new ArrayDeque<>();
+    private long banned_until = 0;
+    private volatile int generation = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong chapters = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bans = new AtomicLong();
+
+    /**
+     * Create a site listening on a free local port
+     * @param settings  the shape and behaviour of the site
+     * @throws IOException
+     */
+    StandInSite(Settings settings) throws IOException {
+        this.settings = settings;
+        // headers and body are written separately, which Nagle's algorithm would hold back for a delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stand-in-site");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the address of the home page
+     * @return  the base url of the site, ending with '/'
+     */
+    String baseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get the number of chapter pages served with their content
+     * @return  the number of chapters
+     */
+    long chapters() {
+        return chapters.get();
+    }
+
+    long failures() {
+        return failures.get();
+    }
+
+    long bans() {
+        return bans.get();
+    }
+
+    /**
+     * Set every counter back to zero, lift any ban and change every ETag
+     */
+    synchronized void reset() {
+        requests.set(0);
+        bytes.set(0);
+        chapters.set(0);
+        failures.set(0);
+        bans.set(0);
+        recent_requests.clear();
+        banned_until = 0;
+        generation++;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        boolean refused = isBanned() || ThreadLocalRandom.current().nextDouble() < settings.error_rate;
+        try {
+            long jitter = settings.jitter_millis > 0 ? ThreadLocalRandom.current().nextLong(settings.jitter_millis + 1) : 0;
+            TimeUnit.MILLISECONDS.sleep(settings.latency_millis + jitter);
+
+            String page;
+            boolean chapter = path.matches("/b\\d+/\\d+_\\d+\\.html");
+            if (refused) {
+                failures.incrementAndGet();
+                if (!chapter) {
+                    TimeUnit.MILLISECONDS.sleep(NovelBot.TIMEOUT * 2);
+                }
+                page = blockedPage();
+            } else {
+                page = render(path);
+                if (chapter && page != null) {
+                    chapters.incrementAndGet();
+                }
+            }
+
+            if (page == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = page.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+            if (!refused) {
+                // generated pages only change when the site is reset, so that every benchmark run starts cold
+                String etag = "\"" + Integer.toHexString(page.hashCode()) + "-" + generation + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+            String accept_encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (accept_encoding != null && accept_encoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            bytes.addAndGet(body.length);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            // the crawler gave up on this request
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Count a request and check whether the client is banned
+     * @return  whether the request is refused because of a ban
+     */
+    private synchronized boolean isBanned() {
+        long now = System.nanoTime();
+        if (now < banned_until) {
+            return true;
+        }
+        if (settings.ban_rate <= 0) {
+            return false;
+        }
+        recent_requests.add(now);
+        while (recent_requests.peekFirst() < now - TimeUnit.SECONDS.toNanos(1)) {
+            recent_requests.pollFirst();
+        }
+        if (recent_requests.size() > settings.ban_rate) {
+            banned_until = now + TimeUnit.MILLISECONDS.toNanos(settings.ban_millis);
+            recent_requests.clear();
+            bans.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Generate the page of a path
+     * @param path  the path of the request
+     * @return      the page, or null if there is no such page
+     */
+    private String render(String path) {
+        String[] parts = path.split("/");
+        try {
+            if (parts.length == 0) {
+                return homePage();
+            }
+            if (parts.length == 3 && parts[1].startsWith("c") && parts[2].endsWith(".html")) {
+                int category = Integer.parseInt(parts[1].substring(1));
+                int page = Integer.parseInt(parts[2].substring(0, parts[2].length() - ".html".length()));
+                if (category < NovelBot.CATEGORY_NUMS && page >= 1 && page <= settings.pages_per_category) {
+                    return categoryPage(category, page);
+                }
+            } else if (parts.length == 2 && parts[1].startsWith("b")) {
+                int book = Integer.parseInt(parts[1].substring(1));
+                if (book < bookCount()) {
+                    return catalogPage(book);
+                }
+            } else if (parts.length == 3 && parts[1].startsWith("b") && parts[2].endsWith(".html")) {
+                int book = Integer.parseInt(parts[1].substring(1));
+                String[] numbers = parts[2].substring(0, parts[2].length() - ".html".length()).split("_");
+                int volume = Integer.parseInt(numbers[0]);
+                int chapter = Integer.parseInt(numbers[1]);
+                if (book < bookCount() && volume < settings.volumes && chapter < settings.chapters_per_volume) {
+                    return chapterPage(book, volume, chapter);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // not a page of the site
+        }
+        return null;
+    }
+
+    private int bookCount() {
+        return NovelBot.CATEGORY_NUMS * settings.pages_per_category * settings.books_per_page;
+    }
+
+    private String homePage() {
+        StringBuilder page = new StringBuilder(header("首页"));
+        page.append("<div class=\"book-list\">\n");
+        for (int category = 0; category < NovelBot.CATEGORY_NUMS; ++category) {
+            page.append("<div class=\"box\"><div class=\"box-title\"><h2><a href=\"/c").append(category)
+                    .append("/1.html\">分类").append(category).append("</a></h2></div></div>\n");
+        }
+        page.append("</div>\n");
+        return page.append(footer()).toString();
+    }
+
+    private String categoryPage(int category, int page_number) {
+        StringBuilder page = new StringBuilder(header("分类" + category));
+        page.append("<div class=\"catalog\"><h1>分类").append(category).append("</h1></div>\n");
+        page.append("<select name=\"select\">\n");
+        for (int i = 1; i <= settings.pages_per_category; ++i) {
+            page.append("<option value=\"/c").append(category).append('/').append(i).append(".html\"")
+                    .append(i == page_number ? " selected" : "").append(">第").append(i).append("页</option>\n");
+        }
+        page.append("</select>\n<div class=\"mulu-list\"><ul>\n");
+        int first_book = (category * settings.pages_per_category + page_number - 1) * settings.books_per_page;
+        for (int book = first_book; book < first_book + settings.books_per_page; ++book) {
+            page.append("<li><a href=\"/b").append(book).append("/\">").append(bookTitle(book)).append("</a></li>\n");
+        }
+        page.append("</ul></div>\n");
+        return page.append(footer()).toString();
+    }
+
+    private String catalogPage(int book) {
+        StringBuilder page = new StringBuilder(header(bookTitle(book)));
+        page.append("<div class=\"catalog\"><h1>").append(bookTitle(book)).append("</h1></div>\n");
+        page.append("<div class=\"zuojia-summary-content\"><div>");
+        appendParagraphs(page, new Random(book), 2);
+        page.append("</div></div>\n");
+        for (int volume = 0; volume < settings.volumes; ++volume) {
+            page.append("<div class=\"mulu-title\"><h2>卷").append(volume + 1).append("</h2></div>\n");
+            page.append("<div class=\"mulu-list\"><ul>\n");
+            for (int chapter = 0; chapter < settings.chapters_per_volume; ++chapter) {
+                page.append("<li><a href=\"/b").append(book).append('/').append(volume).append('_').append(chapter)
+                        .append(".html\">第").append(chapter + 1).append("章</a></li>\n");
+            }
+            page.append("</ul></div>\n");
+        }
+        return page.append(footer()).toString();
+    }
+
+    private String chapterPage(int book, int volume, int chapter) {
+        StringBuilder page = new StringBuilder(header(bookTitle(book)));
+        page.append("<div class=\"content\"><div class=\"book-content\"><h1>第").append(chapter + 1)
+                .append("章</h1>\n<div class=\"neirong\">\n");
+        Random random = new Random(((long) book * settings.volumes + volume) * settings.chapters_per_volume + chapter);
+        appendParagraphs(page, random, settings.paragraphs_per_chapter);
+        page.append("</div></div></div>\n");
+        return page.append(footer()).toString();
+    }
+
+    private static String blockedPage() {
+        return header("访问过于频繁") + "<div class=\"tips\">访问过于频繁，请稍后再试。</div>\n" + footer();
+    }
+
+    private static String bookTitle(int book) {
+        return "书" + book;
+    }
+
+    private static void appendParagraphs(StringBuilder page, Random random, int count) {
+        for (int i = 0; i < count; ++i) {
+            page.append("<p>　　");
+            int length = 40 + random.nextInt(80);
+            for (int j = 0; j < length; ++j) {
+                page.append(TEXT_CHARACTERS.charAt(random.nextInt(TEXT_CHARACTERS.length())));
+            }
+            page.append("。</p>\n");
+        }
+    }
+
+    private static String header(String title) {
+        return "<!DOCTYPE html>\n<html>\n<head><meta charset=\"utf-8\"><title>" + title + "</title></head>\n<body>\n";
+    }
+
+    private static String footer() {
+        return "</body>\n</html>\n";
+    }
+}
@@ -0,0 +1,358 @@
+package com.pitayazhu.novelBot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Persistent set of urls that keeps a small, fixed amount of heap however many urls it holds.
+ * Three files make up the set, and the two that are read at random are memory-mapped,
+ * so they live in the page cache and not in the heap:
+ * a Bloom filter that answers most lookups of urls never added without touching the
+ * rest, an open-addressing table of 64 bit fingerprints that finds the candidates for
+ * a url, and an append-only log of the urls themselves, against which a candidate is
+ * confirmed so that the set is exact. The table doubles when it is half full; the
+ * Bloom filter is sized once for the expected number of urls and only gets more false
+ * positives, never wrong answers, when more are added.
+ * The set is safe for use by several threads.
+ * @author pitaya
+ */
+class UrlSet implements Closeable {
+
+    private static final String BLOOM_SUFFIX = ".bloom";
+    private static final String TABLE_SUFFIX = ".table";
+    private static final String URLS_SUFFIX = ".urls";
+
+    // false positive rate the Bloom filter is sized for
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int BLOOM_HEADER = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // the table is mapped in segments of this many 16 byte slots
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SLOT_SHIFT = 4;
+
+    private final File table_file;
+
+    private final FileChannel bloom_channel;
+    private final MappedByteBuffer bloom;
+    private final long bloom_bits;
+    private final int bloom_hashes;
+
+    private FileChannel table_channel;
+    private MappedByteBuffer[] table;
+    // the number of slots, a power of two; slot 0 of the file holds the capacity and size
+    private long capacity;
+    private long size;
+
+    private final FileChannel urls;
+
+    /**
+     * Open a set, creating its files if they do not exist
+     * @param base_name         the path of the files without their suffixes
+     * @param expected_urls     the number of urls the Bloom filter is sized for, when it is created
+     * @throws IOException
+     */
+    UrlSet(String base_name, long expected_urls) throws IOException {
+        // opened through java.io like the book files, which copes with any platform encoding of paths
+        bloom_channel = new RandomAccessFile(base_name + BLOOM_SUFFIX, "rw").getChannel();
+        if (bloom_channel.size() == 0) {
+            long bits = (long) Math.ceil(-Math.max(1, expected_urls) * Math.log(FALSE_POSITIVE_RATE) /
+                    (Math.log(2) * Math.log(2)));
+            bits = (bits + 63) / 64 * 64;
+            int hashes = (int) Math.max(1, Math.round((double) bits / Math.max(1, expected_urls) * Math.log(2)));
+            ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER);
+            header.putLong(bits).putInt(hashes).flip();
+            bloom_channel.write(header, 0);
+            // the rest of the filter is a sparse run of zeros until bits are set
+            bloom_channel.write(ByteBuffer.allocate(1), BLOOM_HEADER + bits / 8 - 1);
+        }
+        bloom = bloom_channel.map(FileChannel.MapMode.READ_WRITE, 0, bloom_channel.size());
+        bloom_bits = bloom.getLong(0);
+        bloom_hashes = bloom.getInt(8);
+
+        table_file = new File(base_name + TABLE_SUFFIX);
+        mapTable(INITIAL_CAPACITY);
+
+        urls = new RandomAccessFile(base_name + URLS_SUFFIX, "rw").getChannel();
+    }
+
+    /**
+     * Check whether an url is in the set
+     * @param url   the url
+     * @return      whether it was added before
+     * @throws IOException
+     */
+    synchronized boolean contains(String url) throws IOException {
+        long fingerprint = fingerprintOf(url);
+        return mayContain(fingerprint) && find(url, fingerprint) < 0;
+    }
+
+    /**
+     * Add an url to the set
+     * @param url   the url
+     * @return      whether the url was new
+     * @throws IOException
+     */
+    synchronized boolean add(String url) throws IOException {
+        long fingerprint = fingerprintOf(url);
+        long slot;
+        if (!mayContain(fingerprint)) {
+            slot = emptySlotOf(fingerprint);
+        } else {
+            slot = find(url, fingerprint);
+            if (slot < 0) {
+                return false;
+            }
+        }
+
+        // the url is logged before the table points at it
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        long offset = urls.size();
+        ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+        record.putInt(bytes.length).put(bytes).flip();
+        while (record.hasRemaining()) {
+            urls.write(record, offset + record.position());
+        }
+        putSlot(slot, fingerprint, offset + 1);
+        setSize(size + 1);
+
+        long h2 = mix(fingerprint ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < bloom_hashes; ++i) {
+            long bit = Long.remainderUnsigned(fingerprint + i * h2, bloom_bits);
+            int index = (int) (BLOOM_HEADER + (bit >>> 3));
+            bloom.put(index, (byte) (bloom.get(index) | (1 << (bit & 7))));
+        }
+
+        if (size * 2 > capacity) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of urls in the set
+     * @return  the number of urls
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Write the mapped files out to disk
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        bloom.force();
+        for (MappedByteBuffer segment : table) {
+            segment.force();
+        }
+        urls.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        bloom_channel.close();
+        table_channel.close();
+        urls.close();
+    }
+
+    private boolean mayContain(long fingerprint) {
+        long h2 = mix(fingerprint ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < bloom_hashes; ++i) {
+            long bit = Long.remainderUnsigned(fingerprint + i * h2, bloom_bits);
+            if ((bloom.get((int) (BLOOM_HEADER + (bit >>> 3))) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Look an url up in the table
+     * @param url           the url
+     * @param fingerprint   the fingerprint of the url
+     * @return              -1 if the url is in the table, otherwise the empty slot it would go to
+     * @throws IOException
+     */
+    private long find(String url, long fingerprint) throws IOException {
+        byte[] bytes = null;
+        for (long slot = firstSlotOf(fingerprint); ; slot = nextSlot(slot)) {
+            long offset = offsetAt(slot);
+            if (offset == 0) {
+                return slot;
+            }
+            if (fingerprintAt(slot) == fingerprint) {
+                // the fingerprints match, so the url itself is compared
+                if (bytes == null) {
+                    bytes = url.getBytes(StandardCharsets.UTF_8);
+                }
+                if (Arrays.equals(bytes, readUrl(offset - 1))) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private long emptySlotOf(long fingerprint) {
+        long slot = firstSlotOf(fingerprint);
+        while (offsetAt(slot) != 0) {
+            slot = nextSlot(slot);
+        }
+        return slot;
+    }
+
+    private long firstSlotOf(long fingerprint) {
+        return 1 + (mix(fingerprint) & (capacity - 1));
+    }
+
+    private long nextSlot(long slot) {
+        return slot == capacity ? 1 : slot + 1;
+    }
+
+    private byte[] readUrl(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (length.hasRemaining()) {
+            if (urls.read(length, offset + length.position()) < 0) {
+                throw new IOException("Url log is shorter than its table: " + offset);
+            }
+        }
+        ByteBuffer url = ByteBuffer.allocate(length.getInt(0));
+        while (url.hasRemaining()) {
+            if (urls.read(url, offset + 4 + url.position()) < 0) {
+                throw new IOException("Url log is shorter than its table: " + offset);
+            }
+        }
+        return url.array();
+    }
+
+    private long fingerprintAt(long slot) {
+        return table[(int) (slot >>> SEGMENT_SHIFT)].getLong(positionOf(slot));
+    }
+
+    private long offsetAt(long slot) {
+        return table[(int) (slot >>> SEGMENT_SHIFT)].getLong(positionOf(slot) + 8);
+    }
+
+    private void putSlot(long slot, long fingerprint, long offset) {
+        MappedByteBuffer segment = table[(int) (slot >>> SEGMENT_SHIFT)];
+        segment.putLong(positionOf(slot), fingerprint);
+        segment.putLong(positionOf(slot) + 8, offset);
+    }
+
+    private static int positionOf(long slot) {
+        return (int) ((slot & ((1L << SEGMENT_SHIFT) - 1)) << SLOT_SHIFT);
+    }
+
+    private void setSize(long new_size) {
+        size = new_size;
+        table[0].putLong(8, size);
+    }
+
+    /**
+     * Map the table file, creating it with the given capacity if it does not exist
+     * @param new_capacity  the number of slots of a new table
+     * @throws IOException
+     */
+    private void mapTable(long new_capacity) throws IOException {
+        table_channel = new RandomAccessFile(table_file, "rw").getChannel();
+        if (table_channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putLong(new_capacity).putLong(0).flip();
+            table_channel.write(header, 0);
+            table_channel.write(ByteBuffer.allocate(1), ((new_capacity + 1) << SLOT_SHIFT) - 1);
+        }
+        long length = table_channel.size();
+        long segment_bytes = 1L << (SEGMENT_SHIFT + SLOT_SHIFT);
+        table = new MappedByteBuffer[(int) ((length + segment_bytes - 1) / segment_bytes)];
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = table_channel.map(FileChannel.MapMode.READ_WRITE, i * segment_bytes,
+                    Math.min(segment_bytes, length - i * segment_bytes));
+        }
+        capacity = table[0].getLong(0);
+        size = table[0].getLong(8);
+    }
+
+    /**
+     * Move the table to one twice as large, through a new file put in place of the old one
+     */
+    private void grow() throws IOException {
+        MappedByteBuffer[] old_table = table;
+        FileChannel old_channel = table_channel;
+        long old_capacity = capacity;
+        long old_size = size;
+
+        File new_file = new File(table_file.getPath() + ".new");
+        if (new_file.exists() && !new_file.delete()) {
+            throw new IOException("Cannot delete " + new_file);
+        }
+        File old_file = table_file;
+        try (RandomAccessFile created = new RandomAccessFile(new_file, "rw")) {
+            FileChannel channel = created.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putLong(old_capacity * 2).putLong(old_size).flip();
+            channel.write(header, 0);
+            channel.write(ByteBuffer.allocate(1), ((old_capacity * 2 + 1) << SLOT_SHIFT) - 1);
+        }
+
+        // fill the new table through its own mapping, reading the old one slot by slot
+        FileChannel new_channel = new RandomAccessFile(new_file, "rw").getChannel();
+        long length = new_channel.size();
+        long segment_bytes = 1L << (SEGMENT_SHIFT + SLOT_SHIFT);
+        MappedByteBuffer[] new_table = new MappedByteBuffer[(int) ((length + segment_bytes - 1) / segment_bytes)];
+        for (int i = 0; i < new_table.length; ++i) {
+            new_table[i] = new_channel.map(FileChannel.MapMode.READ_WRITE, i * segment_bytes,
+                    Math.min(segment_bytes, length - i * segment_bytes));
+        }
+        table = new_table;
+        capacity = old_capacity * 2;
+        for (long slot = 1; slot <= old_capacity; ++slot) {
+            MappedByteBuffer segment = old_table[(int) (slot >>> SEGMENT_SHIFT)];
+            long offset = segment.getLong(positionOf(slot) + 8);
+            if (offset != 0) {
+                long fingerprint = segment.getLong(positionOf(slot));
+                putSlot(emptySlotOf(fingerprint), fingerprint, offset);
+            }
+        }
+        for (MappedByteBuffer new_segment : new_table) {
+            new_segment.force();
+        }
+        table_channel = new_channel;
+        old_channel.close();
+        if (!new_file.renameTo(old_file)) {
+            throw new IOException("Cannot replace " + old_file);
+        }
+    }
+
+    /**
+     * Get the 64 bit fingerprint of an url: FNV-1a over its characters, then mixed
+     * @param url   the url
+     * @return      the fingerprint
+     */
+    private static long fingerprintOf(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); ++i) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spread the bits of a hash, the finalizer of MurmurHash3
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,263 @@
+package com.pitayazhu.novelBot;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that a book written with marks, which leave chapters in the buffer and in one
+ * gzip member, reads the same as one written the old way, with every step written out
+ * and ending its own member, and that a book stopped at any step, whether closed or
+ * killed with its buffer unwritten, and resumed from the last step recorded the way
+ * writeBook records them reads the same as one written in one go. Both plain and
+ * compressed books are tested.
+ * @author pitaya
+ */
+class BookWriterTest {
+
+    // how the offset after a step is taken
+    private static final int CHECKPOINT = 0;
+    private static final int MARK = 1;
+    // after the last chapter of a volume: a checkpoint if the last chapter was not recorded
+    private static final int CHAPTERS_END = 2;
+
+    private static final int VOLUMES = 3;
+    private static final int CHAPTERS = 12;
+
+    /**
+     * A piece of a book and how writeBook records the offset after it
+     */
+    private static class Step {
+        final String text;
+        final int kind;
+
+        Step(String text, int kind) {
+            this.text = text;
+            this.kind = kind;
+        }
+    }
+
+    private static final List<Step> steps = generateBook();
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", BookWriter.GZIP_SUFFIX})
+    void writesTheSameBookAsTheOldWay(String suffix) throws IOException {
+        String file_name = directory.resolve("book.txt" + suffix).toString();
+        byte[] legacy_file = writeLegacy(file_name);
+        String expected = read(file_name);
+
+        List<long[]> recorded = new ArrayList<>();
+        BookWriter writer = BookWriter.create(file_name);
+        write(writer, 0, steps.size(), recorded);
+        writer.commit();
+        byte[] book_file = Files.readAllBytes(new File(file_name).toPath());
+        assertEquals(expected, read(file_name));
+        if (suffix.isEmpty()) {
+            assertArrayEquals(legacy_file, book_file);
+            // the buffer fills up inside a volume, so chapters are recorded between checkpoints
+            assertTrue(recorded.stream().anyMatch(step -> steps.get((int) step[0]).kind == MARK));
+        } else {
+            assertTrue(members(book_file) < members(legacy_file),
+                    members(book_file) + " gzip members against " + members(legacy_file));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", BookWriter.GZIP_SUFFIX})
+    void resumesABookClosedAtAnyStep(String suffix) throws IOException {
+        String file_name = directory.resolve("book.txt" + suffix).toString();
+        writeLegacy(file_name);
+        String expected = read(file_name);
+
+        for (int stop = 0; stop < steps.size(); ++stop) {
+            List<long[]> done = new ArrayList<>();
+            BookWriter writer = BookWriter.create(file_name);
+            write(writer, 0, stop + 1, done);
+            writer.close();
+            resume(file_name, done);
+            assertEquals(expected, read(file_name), "resumed after step " + stop);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", BookWriter.GZIP_SUFFIX})
+    void resumesABookKilledAtAnyStep(String suffix) throws IOException {
+        String file_name = directory.resolve("book.txt" + suffix).toString();
+        writeLegacy(file_name);
+        String expected = read(file_name);
+        File part_file = BookWriter.partOf(file_name);
+
+        for (int stop = 0; stop < steps.size(); ++stop) {
+            List<long[]> done = new ArrayList<>();
+            BookWriter writer = BookWriter.create(file_name);
+            write(writer, 0, stop + 1, done);
+            // a killed process leaves only what was written out, whatever is still in the buffer is lost
+            byte[] left = Files.readAllBytes(part_file.toPath());
+            writer.close();
+            Files.write(part_file.toPath(), left);
+            if (!done.isEmpty()) {
+                long[] last = done.get(done.size() - 1);
+                assertTrue(left.length >= last[1], "killed after step " + stop + ": part file of " +
+                        left.length + " bytes ends before the recorded offset " + last[1]);
+            }
+            resume(file_name, done);
+            assertEquals(expected, read(file_name), "resumed after being killed at step " + stop);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", BookWriter.GZIP_SUFFIX})
+    void reopensACompleteBookAtAnyRecordedStep(String suffix) throws IOException {
+        String file_name = directory.resolve("book.txt" + suffix).toString();
+        List<long[]> recorded = new ArrayList<>();
+        BookWriter writer = BookWriter.create(file_name);
+        write(writer, 0, steps.size(), recorded);
+        writer.commit();
+        String expected = read(file_name);
+
+        // the way updateBook does
+        for (long[] step : recorded) {
+            writer = BookWriter.reopen(file_name, step[1]);
+            write(writer, (int) step[0] + 1, steps.size(), new ArrayList<>());
+            writer.commit();
+            assertEquals(expected, read(file_name), "reopened after step " + step[0]);
+        }
+    }
+
+    /**
+     * Write the whole book the old way: every step written out, and a member of its own
+     * @return  the bytes of the book file
+     */
+    private static byte[] writeLegacy(String file_name) throws IOException {
+        BookWriter writer = BookWriter.create(file_name);
+        for (Step step : steps) {
+            writer.print(step.text);
+            writer.checkpoint();
+        }
+        writer.commit();
+        return Files.readAllBytes(new File(file_name).toPath());
+    }
+
+    /**
+     * Continue a stopped book from its last recorded step, as saveBook does
+     */
+    private static void resume(String file_name, List<long[]> done) throws IOException {
+        BookWriter writer;
+        int first = 0;
+        if (done.isEmpty()) {
+            writer = BookWriter.create(file_name);
+        } else {
+            long[] last = done.get(done.size() - 1);
+            writer = BookWriter.resume(file_name, last[1]);
+            first = (int) last[0] + 1;
+        }
+        write(writer, first, steps.size(), new ArrayList<>());
+        writer.commit();
+    }
+
+    /**
+     * Write steps, recording the offset after each one the way writeBook does: a mark only
+     * once the file is written out past it, and the end of a volume's chapters at the latest
+     * @param writer    the writer
+     * @param first     the first step to write
+     * @param end       the step to stop before
+     * @param recorded  the step and offset of every recorded step, added to
+     * @throws IOException
+     */
+    private static void write(BookWriter writer, int first, int end, List<long[]> recorded) throws IOException {
+        ArrayDeque<long[]> marks = new ArrayDeque<>();
+        int last_recorded = first - 1;
+        for (int i = first; i < end; ++i) {
+            Step step = steps.get(i);
+            writer.print(step.text);
+            if (step.kind == CHECKPOINT) {
+                recorded.add(new long[]{i, writer.checkpoint()});
+                last_recorded = i;
+            } else if (step.kind == MARK) {
+                long offset = writer.mark();
+                if (offset >= 0) {
+                    marks.add(new long[]{i, offset});
+                }
+                long[] reached = null;
+                while (!marks.isEmpty() && marks.peek()[1] <= writer.written()) {
+                    reached = marks.poll();
+                }
+                if (reached != null) {
+                    recorded.add(reached);
+                    last_recorded = (int) reached[0];
+                }
+            } else {
+                if (last_recorded < i - 1) {
+                    recorded.add(new long[]{i - 1, writer.checkpoint()});
+                }
+                marks.clear();
+                last_recorded = i;
+            }
+        }
+    }
+
+    /**
+     * Generate a book large enough for the buffer of the writer to fill in the middle of a volume
+     */
+    private static List<Step> generateBook() {
+        List<Step> steps = new ArrayList<>();
+        steps.add(new Step("书名：测试" + BookWriter.LINE_SEPARATOR + "内容简介：" + BookWriter.LINE_SEPARATOR +
+                "　　一本用来检查的书。" + BookWriter.LINE_SEPARATOR + BookWriter.LINE_SEPARATOR, CHECKPOINT));
+        for (int i = 0; i < VOLUMES; ++i) {
+            steps.add(new Step("第" + (i + 1) + "卷：卷名" + BookWriter.LINE_SEPARATOR, CHECKPOINT));
+            for (int j = 0; j < CHAPTERS; ++j) {
+                StringBuilder chapter = new StringBuilder("第" + (j + 1) + "章" + BookWriter.LINE_SEPARATOR);
+                for (int k = 0; k < 600; ++k) {
+                    chapter.append("　　第").append(i).append("卷第").append(j).append("章的第").append(k)
+                            .append("段，天涯书库。").append(BookWriter.LINE_SEPARATOR);
+                }
+                steps.add(new Step(chapter.append(BookWriter.LINE_SEPARATOR).toString(), MARK));
+            }
+            steps.add(new Step("", CHAPTERS_END));
+            steps.add(new Step("== 第" + (i + 1) + "卷终 ==" + BookWriter.LINE_SEPARATOR + BookWriter.LINE_SEPARATOR,
+                    CHECKPOINT));
+        }
+        return steps;
+    }
+
+    /**
+     * Read a book file, decompressing it if needed
+     */
+    private static String read(String file_name) throws IOException {
+        try (InputStream in = file_name.endsWith(BookWriter.GZIP_SUFFIX) ?
+                new GZIPInputStream(new FileInputStream(file_name)) : new FileInputStream(file_name)) {
+            return new String(in.readAllBytes(), "UTF-8");
+        }
+    }
+
+    /**
+     * Count the gzip members of a file by their header, which the writer always writes the same
+     */
+    private static int members(byte[] file) {
+        int count = 0;
+        for (int i = 0; i + 3 < file.length; ++i) {
+            if ((file[i] & 0xff) == 0x1f && (file[i + 1] & 0xff) == 0x8b && file[i + 2] == 8 && file[i + 3] == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,144 @@
+package com.pitayazhu.novelBot;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.Elements;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests ChapterExtractor against the full parse and the selectors saveChapter used before it.
+ * A page whose region is found must give the same text as the old code on the whole page,
+ * whatever its encoding, however its class attribute is written, and with elements named
+ * like the region before it; the pages the region scan must not be trusted with, like a
+ * ban page or one with a class the chapter is read from before the region, must be left
+ * to the full parse.
+ * @author pitaya
+ */
+class ChapterExtractorTest {
+
+    private static final String URL = "http://www.tianyashuku.com/b0/0_0.html";
+
+    // what can be inside the element holding the paragraphs
+    private static final String[] contents = {
+            "<p>　　一二三。</p><p>  a  b \u200Bc\u00AD　</p>",
+            "\n　　甲乙 丙<br>　　丁戊\t\n己<br/>  ",
+            "<p>x<b>bold</b>y &nbsp; z &amp; 中</p><p></p><p>　　</p>",
+            "<div><p>nested <i>i</i> tail</p></div>",
+    };
+
+    @Test
+    void extractsPagesInEitherEncoding() throws IOException {
+        for (String content : contents) {
+            for (String charset : new String[]{"UTF-8", "GBK"}) {
+                String html = page("", "<div class=\"content\">" + chapter(content) + "</div>");
+                byte[] body = html.replace("<head>", "<head><meta charset=\"" + charset + "\">").getBytes(charset);
+                assertExtracted(charset + " declared in the page", new HttpTransport.Page(URL, body, null,
+                        null, null, false));
+                assertExtracted(charset + " declared in the response", new HttpTransport.Page(URL,
+                        html.getBytes(charset), charset, null, null, false));
+            }
+        }
+    }
+
+    @Test
+    void findsTheRegionHoweverItsClassIsWritten() throws IOException {
+        String chapter = chapter(contents[0]);
+        assertExtracted("several classes", utf8(page("<div data-class=\"content\"><p>decoy</p></div>",
+                "<div id=main class='wide content main'>" + chapter + "</div>")));
+        assertExtracted("unquoted class", utf8(page("", "<div class=content>" + chapter + "</div>")));
+        assertExtracted("upper case", utf8(page("", "<DIV CLASS = \"Content\">" + chapter + "</DIV>")));
+        assertExtracted("class in the text", utf8(page("<p>write class=\"content\" here</p>",
+                "<div class=\"content\">" + chapter + "</div>")));
+        assertExtracted("another content element inside", utf8(page("", "<div class=\"content\">" +
+                chapter.replace("<h1>", "<div class=\"content\">x</div><h1>") + "</div>")));
+    }
+
+    @Test
+    void leavesUntrustedPagesToTheFullParse() throws IOException {
+        String chapter = chapter(contents[0]);
+        assertFullParse("paragraphs before the region", utf8(page(
+                "<div class=\"neirong\"><p>side</p></div>", "<div class=\"content\">" + chapter + "</div>")));
+        assertFullParse("title before the region", utf8(page(
+                "<div class=\"book-content\"><h1>side</h1></div>", "<div class=\"content\">" + chapter + "</div>")));
+        assertFullParse("ban page", utf8(page("<div class=\"tips\">访问过于频繁，请稍后再试。</div>", "")));
+        assertFullParse("byte order mark", new HttpTransport.Page(URL,
+                ("\uFEFF" + page("", "<div class=\"content\">" + chapter + "</div>")).getBytes("UTF-8"), null,
+                null, null, false));
+    }
+
+    @Test
+    void extractsPagesLikeTheOnesOfTheSite() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; ++i) {
+            StringBuilder paragraphs = new StringBuilder("\n");
+            for (int j = 0, count = 10 + random.nextInt(40); j < count; ++j) {
+                paragraphs.append("<p>　　");
+                for (int k = 0, length = 40 + random.nextInt(80); k < length; ++k) {
+                    paragraphs.append((char) (0x4e00 + random.nextInt(3000)));
+                }
+                paragraphs.append("。</p>\n");
+            }
+            assertExtracted("generated page " + i,
+                    utf8(page("", "<div class=\"content\">" + chapter(paragraphs.toString()) + "</div>")));
+        }
+    }
+
+    private static void assertExtracted(String what, HttpTransport.Page page) throws IOException {
+        StringBuilder text = ChapterExtractor.extract(page);
+        assertNotNull(text, what + ": region not found");
+        assertEquals(legacyRender(page.parse()), text.toString(), what);
+    }
+
+    private static void assertFullParse(String what, HttpTransport.Page page) {
+        assertNull(ChapterExtractor.extract(page), what + ": not left to the full parse");
+    }
+
+    /**
+     * Render a chapter the way saveChapter did before ChapterExtractor
+     */
+    private static String legacyRender(Document chapter_page) {
+        StringBuilder writer = new StringBuilder();
+        String chapter_title = chapter_page.select(".book-content > h1").first().text();
+        writer.append(chapter_title).append(BookWriter.LINE_SEPARATOR);
+
+        Element main_content = chapter_page.select(".neirong").first();
+        Elements paragraphs = main_content.select("p");
+        if (paragraphs.size() == 0) {
+            legacyParagraph(main_content, writer);
+        } else {
+            for (Element paragraph : paragraphs) {
+                legacyParagraph(paragraph, writer);
+            }
+        }
+        writer.append(BookWriter.LINE_SEPARATOR);
+        return writer.toString();
+    }
+
+    private static void legacyParagraph(Element paragraph, StringBuilder writer) {
+        for (TextNode node : paragraph.textNodes()) {
+            writer.append("　　").append(node.text().replace('　', ' ').trim()).append(BookWriter.LINE_SEPARATOR);
+        }
+    }
+
+    private static String chapter(String content) {
+        return "<div class=\"book-content\"><h1> 第1章 &amp; 开始 </h1>\n<div class=\"neirong\">" + content +
+                "</div><DIV class=x>y</div></div>";
+    }
+
+    private static String page(String before, String region) {
+        return "<!DOCTYPE html>\n<html>\n<head><title>书0</title></head>\n<body>\n<div class=\"nav\"><div>x</div></div>" +
+                before + region + "<div class=\"foot\">f</div>\n</body>\n</html>\n";
+    }
+
+    private static HttpTransport.Page utf8(String html) throws IOException {
+        return new HttpTransport.Page(URL, html.getBytes("UTF-8"), "UTF-8", null, null, false);
+    }
+}
@@ -0,0 +1,40 @@
+package com.pitayazhu.novelBot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that books of the same title are given files of their own, both while they are
+ * downloaded together and after the journal is replayed, and that a book keeps the
+ * file the journal has for it.
+ * @author pitaya
+ */
+class CrawlJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void givesBooksOfTheSameTitleFilesOfTheirOwn() throws IOException {
+        File file = directory.resolve("journal.txt").toFile();
+        CrawlJournal journal = new CrawlJournal(file, true);
+        // both are claimed before either book is started, as two books running at once are
+        assertEquals("书.txt", journal.claimFile("/b1/", "书.txt", "书 (b1).txt"));
+        assertEquals("书 (b2).txt", journal.claimFile("/b2/", "书.txt", "书 (b2).txt"));
+        assertEquals("书.txt", journal.claimFile("/b1/", "书.txt", "书 (b1).txt"));
+        journal.startBook("/b2/", "书 (b2).txt");
+        journal.startBook("/b1/", "书.txt");
+
+        journal = new CrawlJournal(file, true);
+        assertEquals("书 (b2).txt", journal.claimFile("/b2/", "书.txt", "书 (b2).txt"));
+        assertEquals("书.txt", journal.claimFile("/b1/", "书.txt", "书 (b1).txt"));
+        assertEquals("书 (b3).txt", journal.claimFile("/b3/", "书.txt", "书 (b3).txt"));
+        assertEquals("另一本书.txt", journal.claimFile("/b4/", "另一本书.txt", "另一本书 (b4).txt"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.pitayazhu.novelBot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that a cache hit writes nothing to the index, and that the uses kept in memory
+ * are written on close, so that the cache reopened drops the least recently used page.
+ * @author pitaya
+ */
+class PageCacheTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsUsesInMemoryUntilClosed() throws IOException {
+        File cache_dir = directory.resolve("cache").toFile();
+        PageCache cache = new PageCache(cache_dir, Long.MAX_VALUE, DAY);
+        Random random = new Random(42);
+        byte[][] bodies = new byte[3][];
+        for (int i = 0; i < bodies.length; ++i) {
+            bodies[i] = new byte[4096];
+            random.nextBytes(bodies[i]);
+            cache.put(urlOf(i), new HttpTransport.Page(urlOf(i), bodies[i], "UTF-8", null, null, false));
+        }
+        long total_bytes = cache.size();
+        int index_lines = indexLines(cache_dir);
+
+        for (int i = 0; i < 100; ++i) {
+            assertArrayEquals(bodies[0], cache.get(urlOf(0)).body);
+        }
+        assertEquals(index_lines, indexLines(cache_dir));
+        cache.close();
+        assertEquals(index_lines + 1, indexLines(cache_dir));
+
+        // one byte too small for every page: the least recently used one is dropped
+        cache = new PageCache(cache_dir, total_bytes - 1, DAY);
+        assertEquals(2, cache.count());
+        assertNull(cache.get(urlOf(1)));
+        assertNotNull(cache.get(urlOf(0)));
+        assertNotNull(cache.get(urlOf(2)));
+        cache.close();
+    }
+
+    private static int indexLines(File cache_dir) throws IOException {
+        return Files.readAllLines(new File(cache_dir, "index.log").toPath()).size();
+    }
+
+    private static String urlOf(int i) {
+        return "http://www.tianyashuku.com/wuxia/1/" + i + ".html";
+    }
+}
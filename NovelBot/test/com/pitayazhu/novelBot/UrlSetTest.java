@@ -0,0 +1,94 @@
+package com.pitayazhu.novelBot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests UrlSet against a HashSet of the same urls, the set the visited urls were kept in
+ * before: every add and lookup must give the same answer, across table growth, a Bloom
+ * filter sized far too small, and closing and reopening the files. Then tests that the
+ * frontier built on it hands out the leftover books of a category, and only of that one,
+ * after it is closed and opened again.
+ * @author pitaya
+ */
+class UrlSetTest {
+
+    private static final int URL_COUNT = 300000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void answersLikeAHashSet() throws IOException {
+        String base_name = directory.resolve("set").toString();
+        Random random = new Random(42);
+        Set<String> expected = new HashSet<>();
+        // sized for a tenth of the urls, so the table grows and the filter fills up
+        UrlSet set = new UrlSet(base_name, URL_COUNT / 10);
+        for (int i = 0; i < URL_COUNT; ++i) {
+            // about a third of the adds repeat an url
+            String url = urlOf(random.nextInt(URL_COUNT * 2 / 3));
+            assertEquals(expected.add(url), set.add(url), url);
+        }
+        assertEquals(expected.size(), set.size());
+        set.close();
+
+        set = new UrlSet(base_name, URL_COUNT / 10);
+        assertEquals(expected.size(), set.size());
+        for (int i = 0; i < URL_COUNT; ++i) {
+            assertEquals(expected.contains(urlOf(i)), set.contains(urlOf(i)), urlOf(i));
+            // urls close to the added ones, which share their prefix and most of their bytes
+            assertFalse(set.contains(urlOf(i) + "?"), urlOf(i) + "?");
+            assertFalse(set.contains(urlOf(i).replace(".html", ".htm")), urlOf(i));
+        }
+        assertTrue(set.add(urlOf(-1)));
+        assertTrue(set.contains(urlOf(-1)));
+        set.close();
+    }
+
+    @Test
+    void frontierKeepsTheLeftoverBooksOfEachCategory() throws IOException {
+        String category = "http://www.tianyashuku.com/wuxia/";
+        String other_category = "http://www.tianyashuku.com/yanqing/";
+        CrawlFrontier frontier = new CrawlFrontier(directory.resolve("frontier").toFile(), 1000);
+        for (int i = 0; i < 6; ++i) {
+            assertTrue(frontier.offer(bookOf(i), i % 2 == 0 ? category : other_category,
+                    "/books/" + (i % 2 == 0 ? "wuxia" : "yanqing")));
+        }
+        assertFalse(frontier.offer(bookOf(0), other_category, "/books/yanqing"));
+        frontier.visit(bookOf(0));
+        frontier.visit(bookOf(4));
+        frontier.close();
+        // closing again, as the shutdown hook may, does nothing
+        frontier.close();
+
+        frontier = new CrawlFrontier(directory.resolve("frontier").toFile(), 1000);
+        List<Map.Entry<String, String>> pending = frontier.pending(category);
+        assertEquals(1, pending.size());
+        assertEquals(bookOf(2), pending.get(0).getKey());
+        assertEquals("/books/wuxia", pending.get(0).getValue());
+        assertEquals(3, frontier.pending(other_category).size());
+        assertFalse(frontier.offer(bookOf(4), category, "/books"));
+        frontier.close();
+    }
+
+    private static String urlOf(int i) {
+        return "http://www.tianyashuku.com/wuxia/" + (i / 1000) + "/" + i + ".html";
+    }
+
+    private static String bookOf(int i) {
+        return "http://www.tianyashuku.com/book/" + i + "/";
+    }
+}
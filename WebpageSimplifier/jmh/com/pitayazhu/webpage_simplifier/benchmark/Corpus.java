@@ -0,0 +1,84 @@
+package com.pitayazhu.webpage_simplifier.benchmark;
+
+import com.pitayazhu.webpage_simplifier.PageReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The pages the benchmarks are run on.
+ * They are real pages bundled under corpus/, whose README tells where each one comes from:
+ * a small guide page, a huge reference page, a javadoc page whose unclosed tags nest deep
+ * and a source listing full of character references. The minified page is the huge one with
+ * the white space between its tags taken out and its lines joined, the way a minifier leaves it.
+ * @author pitaya
+ */
+class Corpus {
+
+    // the encoding of a page that gives no sign of its own, as for a local page
+    private static final Charset GBK = Charset.forName("GBK");
+
+    /**
+     * A page of the corpus
+     */
+    static class Page {
+
+        // the text of the page, decoded
+        final String text;
+        // the encoding of the page
+        final Charset charset;
+        // the size of the page in its encoding, what a parser is fed
+        final long bytes;
+
+        Page(String text, Charset charset, long bytes) {
+            this.text = text;
+            this.charset = charset;
+            this.bytes = bytes;
+        }
+    }
+
+    private Corpus() {
+    }
+
+    /**
+     * Load a page of the corpus
+     * @param name  the name of the page: small, huge, minified, nested or entities
+     * @return      the page
+     * @throws IOException
+     */
+    static Page load(String name) throws IOException {
+        if (name.equals("minified")) {
+            Page huge = load("huge");
+            String text = minify(huge.text);
+            return new Page(text, huge.charset, text.getBytes(huge.charset).length);
+        }
+
+        byte[] bytes;
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".html")) {
+            if (in == null) {
+                throw new IOException("No page " + name + " in the corpus");
+            }
+            bytes = in.readAllBytes();
+        }
+        StringBuilder text = new StringBuilder(bytes.length);
+        char[] buffer = new char[8192];
+        try (PageReader reader = new PageReader(ByteBuffer.wrap(bytes), PageReader.AUTO, GBK)) {
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return new Page(text.toString(), reader.getCharset(), bytes.length);
+        }
+    }
+
+    /**
+     * Take out the white space between tags and join the lines of a page
+     * @param page  the page
+     * @return      the page on one line
+     */
+    static String minify(String page) {
+        return page.replaceAll(">\\s+<", "><").replaceAll("\\s*[\r\n]\\s*", " ");
+    }
+}
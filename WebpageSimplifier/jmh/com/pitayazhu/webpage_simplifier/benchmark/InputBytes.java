@@ -0,0 +1,33 @@
+package com.pitayazhu.webpage_simplifier.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the bytes of the pages an operation went through, in the encoding of the page,
+ * which JMH reports next to the operations as the rate of bytes of input
+ * @author pitaya
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class InputBytes {
+
+    // public, so that JMH reports it
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+
+    /**
+     * Count a page an operation went through
+     * @param page  the page
+     */
+    void add(Corpus.Page page) {
+        bytes += page.bytes;
+    }
+}
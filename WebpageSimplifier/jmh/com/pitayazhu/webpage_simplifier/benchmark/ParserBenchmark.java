@@ -0,0 +1,77 @@
+package com.pitayazhu.webpage_simplifier.benchmark;
+
+import com.pitayazhu.webpage_simplifier.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the line based Node constructor with the character scanner
+ * behind Node.parse, on the huge page of the corpus written over many lines and minified
+ * into one line. The bytes row is the rate of input in bytes per millisecond, a thousand
+ * of which are a MB/s.
+ * Usage: gradle :WebpageSimplifier:jmh -Pjmh=ParserBenchmark
+ * @author pitaya
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark {
+
+    @Param({"huge", "minified"})
+    public String page;
+
+    private Corpus.Page input;
+
+    @Setup
+    public void load() throws IOException {
+        input = Corpus.load(page);
+    }
+
+    @Benchmark
+    public Node lineBased(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        return parseLines(input.text);
+    }
+
+    @Benchmark
+    public Node scanner(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        return Node.parse(new StringReader(input.text));
+    }
+
+    /**
+     * Parse a page with the line based Node constructor
+     * @param page  the page
+     * @return      the html node, or null if there is none
+     * @throws IOException
+     */
+    static Node parseLines(String page) throws IOException {
+        // the same loop as Main, reading root nodes until the html node
+        BufferedReader br = new BufferedReader(new StringReader(page));
+        String line;
+        while ((line = br.readLine()) != null) {
+            Node document = new Node(line.trim(), 0, br);
+            if (document.tagName.equals("html")) {
+                return document;
+            }
+        }
+        return null;
+    }
+}
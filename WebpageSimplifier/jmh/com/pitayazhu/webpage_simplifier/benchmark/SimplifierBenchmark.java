@@ -0,0 +1,149 @@
+package com.pitayazhu.webpage_simplifier.benchmark;
+
+import com.pitayazhu.webpage_simplifier.CompactDocument;
+import com.pitayazhu.webpage_simplifier.ContentExtractor;
+import com.pitayazhu.webpage_simplifier.EntityDecoder;
+import com.pitayazhu.webpage_simplifier.HtmlTokenizer;
+import com.pitayazhu.webpage_simplifier.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every stage of simplification on every page of the corpus:
+ * parsing with the line based constructor and with the scanner, decoding character
+ * references in the tree and in raw text, finding the main content of a parsed tree,
+ * parsing into flat arrays and finding the main content there,
+ * and extracting the content from parsing events.
+ * Each stage is measured for throughput and for the percentiles of its latency; the gc
+ * profiler the jmh task runs with adds the bytes allocated per operation, gc.alloc.rate.norm.
+ * The bytes row is the rate of input in bytes per millisecond, a thousand of which are a MB/s.
+ * Trees that a stage changes in place are built again before every operation, outside of the timing
+ * but not of the allocation, so the parse of the page is to be taken off the bytes per operation.
+ * Usage: gradle :WebpageSimplifier:jmh -Pjmh="SimplifierBenchmark [JMH options]"
+ * @author pitaya
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SimplifierBenchmark {
+
+    @Param({"small", "huge", "minified", "nested", "entities"})
+    public String page;
+
+    private Corpus.Page input;
+
+    @Setup
+    public void load() throws IOException {
+        input = Corpus.load(page);
+    }
+
+    /**
+     * A Node tree of the page, parsed again for every operation
+     */
+    @State(Scope.Thread)
+    public static class Tree {
+
+        Node document;
+
+        @Setup(Level.Invocation)
+        public void parse(SimplifierBenchmark benchmark) throws IOException {
+            document = Node.parse(new StringReader(benchmark.input.text));
+        }
+    }
+
+    /**
+     * A CompactDocument of the page, parsed again for every operation
+     */
+    @State(Scope.Thread)
+    public static class Compact {
+
+        CompactDocument document;
+
+        @Setup(Level.Invocation)
+        public void parse(SimplifierBenchmark benchmark) throws IOException {
+            document = CompactDocument.parse(new StringReader(benchmark.input.text));
+        }
+    }
+
+    @Benchmark
+    public Node parseLines(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        return ParserBenchmark.parseLines(input.text);
+    }
+
+    @Benchmark
+    public Node parseScanner(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        return Node.parse(new StringReader(input.text));
+    }
+
+    @Benchmark
+    public Node entitiesTree(Tree tree, InputBytes bytes) {
+        bytes.add(input);
+        if (tree.document != null) {
+            Node.replaceEntities(tree.document);
+        }
+        return tree.document;
+    }
+
+    @Benchmark
+    public String entitiesText(InputBytes bytes) {
+        bytes.add(input);
+        return EntityDecoder.decode(input.text);
+    }
+
+    /**
+     * The scoring pass and the decoding of the lines it picks, on a tree just parsed
+     */
+    @Benchmark
+    public Object content(Tree tree, InputBytes bytes) {
+        bytes.add(input);
+        try {
+            return tree.document == null ? null : tree.document.getContent();
+        } catch (IllegalStateException ise) {
+            // pages without a body still count, as the time taken to find that out
+            return ise;
+        }
+    }
+
+    @Benchmark
+    public CompactDocument parseCompact(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        return CompactDocument.parse(new StringReader(input.text));
+    }
+
+    @Benchmark
+    public Object contentCompact(Compact compact, InputBytes bytes) {
+        bytes.add(input);
+        try {
+            return compact.document == null ? null : compact.document.getContent();
+        } catch (IllegalStateException ise) {
+            return ise;
+        }
+    }
+
+    @Benchmark
+    public Object stream(InputBytes bytes) throws IOException {
+        bytes.add(input);
+        ContentExtractor extractor = new ContentExtractor();
+        new HtmlTokenizer(new StringReader(input.text)).parse(extractor);
+        return extractor.getContent();
+    }
+}
@@ -0,0 +1,300 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simplifies many pages in parallel, from a list of URLs or a directory of saved HTML files.
+ * Every page is parsed on its own thread with its own tree, and the scanner buffer is
+ * kept per thread so that it is reused from one page to the next. Local pages are
+ * memory-mapped and decoded by PageReader straight into that buffer.
+ * The result of each page is written to its own file in the output directory,
+ * or as one JSON object per line to a single JSONL file.
+ * @author pitaya
+ */
+public class BatchSimplifier {
+
+    private final String encoding;
+    private final int threads;
+    private final boolean stream;
+    private final boolean compact;
+
+    // one scanner buffer for each worker thread
+    private final ThreadLocal<char[]> buffers = ThreadLocal.withInitial(() -> new char[HtmlScanner.DEFAULT_BUFFER_SIZE]);
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * The title and main content of a simplified page
+     */
+    static class Page {
+        final String title;
+        final ArrayList<String> content;
+
+        Page(String title, ArrayList<String> content) {
+            this.title = title;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Create a batch simplifier
+     * @param encoding  the encoding of the pages, or PageReader.AUTO to find it from each page
+     * @param threads   the number of pages simplified at the same time
+     * @param stream    whether the content is extracted from parsing events instead of the node tree
+     * @param compact   whether the page is parsed into a CompactDocument instead of the node tree
+     */
+    public BatchSimplifier(String encoding, int threads, boolean stream, boolean compact) {
+        this.encoding = encoding;
+        this.threads = threads;
+        this.stream = stream;
+        this.compact = compact;
+    }
+
+    /**
+     * Read the inputs listed in a file, one URL or path per line
+     * @param list  the file to read
+     * @return      the inputs, without empty lines
+     * @throws IOException
+     */
+    public static List<String> readList(File list) throws IOException {
+        List<String> inputs = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(list),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    inputs.add(line);
+                }
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * List the HTML files in a directory
+     * @param dir   the directory to list
+     * @return      the paths of the files ending with .htm or .html
+     */
+    public static List<String> listDirectory(File dir) {
+        List<String> inputs = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return inputs;
+        }
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (file.isFile() && (name.endsWith(".html") || name.endsWith(".htm"))) {
+                inputs.add(file.getPath());
+            }
+        }
+        inputs.sort(null);
+        return inputs;
+    }
+
+    /**
+     * Simplify every input, writing one file for each of them into a directory
+     * @param inputs    the URLs or paths of the pages
+     * @param outDir    the directory to write into
+     * @throws IOException
+     */
+    public void toDirectory(List<String> inputs, File outDir) throws IOException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+        run(inputs, (index, input, page) -> {
+            File outFile = new File(outDir, outputName(index, input));
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile),
+                    StandardCharsets.UTF_8))) {
+                writePage(out, page.title, page.content);
+            }
+        });
+    }
+
+    /**
+     * Simplify every input, writing one JSON object for each of them as a line of a file.
+     * The lines are in the order the pages are finished, each one carries its input.
+     * @param inputs    the URLs or paths of the pages
+     * @param jsonl     the file to write
+     * @throws IOException
+     */
+    public void toJsonLines(List<String> inputs, File jsonl) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(jsonl),
+                StandardCharsets.UTF_8))) {
+            run(inputs, (index, input, page) -> {
+                StringBuilder line = new StringBuilder();
+                line.append("{\"source\":");
+                appendJsonString(line, input);
+                line.append(",\"title\":");
+                appendJsonString(line, page.title);
+                line.append(",\"content\":[");
+                for (int i = 0; i < page.content.size(); ++i) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    appendJsonString(line, page.content.get(i));
+                }
+                line.append("]}\n");
+                synchronized (out) {
+                    out.write(line.toString());
+                }
+            });
+        }
+    }
+
+    private interface Output {
+        void write(int index, String input, Page page) throws IOException;
+    }
+
+    /**
+     * Simplify every input on the thread pool and report the throughput at the end
+     */
+    private void run(List<String> inputs, Output output) {
+        done.set(0);
+        failed.set(0);
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < inputs.size(); ++i) {
+            final int index = i;
+            final String input = inputs.get(i);
+            pool.execute(() -> {
+                try {
+                    output.write(index, input, simplify(input));
+                    done.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println(input + ": " + e);
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                System.out.print("\r" + (done.get() + failed.get()) + " / " + inputs.size());
+            }
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("\r%d pages simplified, %d failed in %.2f s, %.1f pages/sec%n",
+                done.get(), failed.get(), seconds, (done.get() + failed.get()) / seconds);
+    }
+
+    /**
+     * Read and simplify one page
+     * @param input the URL or path of the page
+     * @return      the simplified page
+     * @throws IOException
+     */
+    private Page simplify(String input) throws IOException {
+        try (Reader reader = PageReader.open(input, encoding)) {
+            return simplify(reader, buffers.get(), stream, compact);
+        }
+    }
+
+    /**
+     * Simplify a page read from a reader
+     * @param reader    the reader to read the page from
+     * @param buffer    the scanner buffer to read through
+     * @param stream    whether the content is extracted from parsing events instead of the node tree
+     * @param compact   whether the page is parsed into a CompactDocument instead of the node tree
+     * @return          the simplified page
+     * @throws IOException
+     */
+    static Page simplify(Reader reader, char[] buffer, boolean stream, boolean compact) throws IOException {
+        if (stream) {
+            ContentExtractor extractor = new ContentExtractor();
+            new HtmlTokenizer(reader, buffer).parse(extractor);
+            return new Page(extractor.getTitle(), extractor.getContent());
+        }
+        if (compact) {
+            CompactDocument document = CompactDocument.parse(reader, buffer);
+            if (document == null) {
+                throw new IllegalStateException("Cannot find HTML tag.");
+            }
+            return new Page(document.getTitle(), document.getContent());
+        }
+
+        // only the html node is processed
+        Node document = Node.parse(reader, buffer);
+        if (document == null) {
+            throw new IllegalStateException("Cannot find HTML tag.");
+        }
+        // getContent replaces the entities and drops the empty lines of the content it picks
+        return new Page(document.getTitle(), document.getContent());
+    }
+
+    /**
+     * Write a simplified page in the format of file.txt
+     * @param out           the writer to write to
+     * @param title         the title of the page
+     * @param mainContent   the lines of the main content
+     * @throws IOException
+     */
+    static void writePage(Writer out, String title, List<String> mainContent) throws IOException {
+        if (!title.equals("")) {
+            out.write("Page title: " + title + "\n");
+        }
+
+        out.write("Main content: " + "\n");
+        for (String contentLine : mainContent) {
+            out.write(contentLine + "\n");
+        }
+    }
+
+    /**
+     * Name the output of an input after its position, followed by its file name for paths.
+     * The position keeps the names apart when files of the same name come from
+     * different directories, or differ only by their extension, as a.html and a.htm.
+     */
+    private static String outputName(int index, String input) {
+        if (input.contains("://")) {
+            return String.format("%06d.txt", index);
+        }
+        String name = new File(input).getName();
+        int dot = name.lastIndexOf('.');
+        return String.format("%06d-%s.txt", index, dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
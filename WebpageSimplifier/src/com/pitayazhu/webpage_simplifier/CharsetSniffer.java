@@ -0,0 +1,188 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Locale;
+
+/**
+ * Finds the encoding of a page from its first bytes, in the order a browser does:
+ * a byte order mark, then a charset declared in a meta tag, then the statistics of
+ * the bytes themselves. The statistics tell apart the encodings of our corpus:
+ * valid multi-byte UTF-8 is UTF-8, and of the two double-byte Chinese encodings
+ * Big5 puts many second bytes in the ASCII range, its punctuation included, while
+ * the GB2312 characters of GBK never do.
+ * @author pitaya
+ */
+class CharsetSniffer {
+
+    // the bytes looked at, enough for the head of a page
+    static final int SNIFF_BYTES = 4096;
+
+    static final Charset GBK = Charset.forName("GBK");
+    static final Charset BIG5 = Charset.forName("Big5");
+
+    // share of double-byte characters with a second byte in the ASCII range above which the page is Big5
+    private static final double BIG5_ASCII_TRAIL_RATIO = 0.1;
+
+    /**
+     * The encoding of a page and where its text starts
+     */
+    static class Result {
+        final Charset charset;
+        // the length of the byte order mark to skip
+        final int bomLength;
+
+        Result(Charset charset, int bomLength) {
+            this.charset = charset;
+            this.bomLength = bomLength;
+        }
+    }
+
+    private CharsetSniffer() {
+    }
+
+    /**
+     * Find the encoding of a page
+     * @param bytes     the page, read from its position without moving it
+     * @param fallback  the encoding of a page that gives no sign of its own, like one in plain ASCII
+     * @return          the encoding
+     */
+    static Result sniff(ByteBuffer bytes, Charset fallback) {
+        int start = bytes.position();
+        int length = Math.min(bytes.remaining(), SNIFF_BYTES);
+
+        // byte order marks
+        if (length >= 3 && (bytes.get(start) & 0xff) == 0xef && (bytes.get(start + 1) & 0xff) == 0xbb
+                && (bytes.get(start + 2) & 0xff) == 0xbf) {
+            return new Result(StandardCharsets.UTF_8, 3);
+        }
+        if (length >= 2 && (bytes.get(start) & 0xff) == 0xfe && (bytes.get(start + 1) & 0xff) == 0xff) {
+            return new Result(StandardCharsets.UTF_16BE, 2);
+        }
+        if (length >= 2 && (bytes.get(start) & 0xff) == 0xff && (bytes.get(start + 1) & 0xff) == 0xfe) {
+            return new Result(StandardCharsets.UTF_16LE, 2);
+        }
+
+        Charset declared = declaredCharset(bytes, start, length);
+        if (declared != null) {
+            return new Result(declared, 0);
+        }
+        return new Result(guess(bytes, start, length, fallback), 0);
+    }
+
+    /**
+     * Find the charset of a meta tag, either &lt;meta charset="..."&gt; or the content of http-equiv
+     */
+    private static Charset declaredCharset(ByteBuffer bytes, int start, int length) {
+        // markup is ASCII in every encoding of the corpus, so the bytes are read as Latin-1
+        char[] head = new char[length];
+        for (int i = 0; i < length; ++i) {
+            head[i] = Character.toLowerCase((char) (bytes.get(start + i) & 0xff));
+        }
+        String text = new String(head);
+        int meta = text.indexOf("<meta");
+        while (meta != -1) {
+            int end = text.indexOf('>', meta);
+            if (end == -1) {
+                end = text.length();
+            }
+            int charset = text.indexOf("charset", meta);
+            if (charset != -1 && charset < end) {
+                int i = charset + "charset".length();
+                while (i < end && (text.charAt(i) == ' ' || text.charAt(i) == '=' || text.charAt(i) == '"'
+                        || text.charAt(i) == '\'')) {
+                    i++;
+                }
+                int nameStart = i;
+                while (i < end && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '-'
+                        || text.charAt(i) == '_')) {
+                    i++;
+                }
+                Charset found = forName(text.substring(nameStart, i));
+                if (found != null) {
+                    return found;
+                }
+            }
+            meta = text.indexOf("<meta", end);
+        }
+        return null;
+    }
+
+    /**
+     * Guess the encoding from the bytes: UTF-8 if every multi-byte sequence is valid UTF-8,
+     * else Big5 or GBK by where the second bytes of double-byte characters fall
+     */
+    private static Charset guess(ByteBuffer bytes, int start, int length, Charset fallback) {
+        int end = start + length;
+        boolean validUtf8 = true;
+        int utf8Sequences = 0;
+        for (int i = start; i < end && validUtf8; ) {
+            int b = bytes.get(i) & 0xff;
+            int extra = b < 0x80 ? 0 : b >= 0xc2 && b <= 0xdf ? 1 : b >= 0xe0 && b <= 0xef ? 2
+                    : b >= 0xf0 && b <= 0xf4 ? 3 : -1;
+            if (extra < 0) {
+                validUtf8 = false;
+                break;
+            }
+            if (i + extra >= end) {
+                // a character cut by the end of the sample
+                break;
+            }
+            for (int j = 1; j <= extra; ++j) {
+                if ((bytes.get(i + j) & 0xc0) != 0x80) {
+                    validUtf8 = false;
+                }
+            }
+            if (extra > 0) {
+                utf8Sequences++;
+            }
+            i += extra + 1;
+        }
+        if (validUtf8) {
+            return utf8Sequences > 0 ? StandardCharsets.UTF_8 : fallback;
+        }
+
+        int doubleBytes = 0, asciiTrails = 0;
+        for (int i = start; i + 1 < end; ) {
+            int b = bytes.get(i) & 0xff;
+            if (b < 0x81 || b == 0xff) {
+                i++;
+                continue;
+            }
+            int trail = bytes.get(i + 1) & 0xff;
+            doubleBytes++;
+            if (trail >= 0x40 && trail <= 0x7e) {
+                asciiTrails++;
+            }
+            i += 2;
+        }
+        if (doubleBytes == 0) {
+            return fallback;
+        }
+        return asciiTrails > doubleBytes * BIG5_ASCII_TRAIL_RATIO ? BIG5 : GBK;
+    }
+
+    /**
+     * Look up a charset by name, reading the names pages use for GBK as GBK
+     * @param name  the name of the charset
+     * @return      the charset, or null if it is not supported
+     */
+    static Charset forName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.isEmpty()) {
+            return null;
+        }
+        if (lower.equals("gb2312") || lower.equals("gbk") || lower.equals("x-gbk")) {
+            // pages labelled GB2312 use characters only GBK has
+            return GBK;
+        }
+        try {
+            return Charset.forName(name);
+        } catch (UnsupportedCharsetException | IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds CompactDocuments from the events of HtmlTokenizer.
+ * The document holds the same tree as the one NodeBuilder builds, with the same lines:
+ * text is appended once to the shared buffer in document order, and every line break
+ * is recorded as a position in it, so a node owns a range of the buffer and a range
+ * of the breaks instead of a copy of the lines of its subtree. An ignored tag is
+ * dropped with everything it read by cutting the arrays back to where it started,
+ * since its subtree and its text are the last things appended.
+ * @author pitaya
+ */
+class CompactBuilder implements HtmlHandler {
+
+    private int nodeCount = 0;
+    private int[] parent = new int[64];
+    private int[] firstChild = new int[64];
+    private int[] nextSibling = new int[64];
+    private int[] tagId = new int[64];
+    private int[] textStart = new int[64];
+    private int[] textEnd = new int[64];
+    private int[] breakStart = new int[64];
+    private int[] breakEnd = new int[64];
+    private int[] linkTextLength = new int[64];
+    private int[] tagCount = new int[64];
+
+    private char[] text = new char[1024];
+    private int textLength = 0;
+    private int[] breaks = new int[64];
+    private int breakCount = 0;
+
+    private final List<String> tagNames = new ArrayList<>();
+    private final Map<String, Integer> tagIds = new HashMap<>();
+    private final int ignoredStart;
+    private final int ignoredEnd;
+    private final int linkTag;
+
+    // the nodes still open, and the last child each of them has so far
+    private int[] open = new int[32];
+    private int[] lastChild = new int[32];
+    private int depth = 0;
+
+    CompactBuilder() {
+        ignoredStart = tagNames.size();
+        for (String ignoreTag : Node.ignoreTags) {
+            tagId(ignoreTag);
+        }
+        ignoredEnd = tagNames.size();
+        linkTag = tagId("a");
+    }
+
+    @Override
+    public void startTag(String tagName, boolean selfClosing) {
+        if (tagName.equals("br") && depth > 0) {
+            addBreak();
+        }
+        if (selfClosing) {
+            return;
+        }
+        if (nodeCount == parent.length) {
+            growNodes();
+        }
+        int node = nodeCount++;
+        int parentNode = depth > 0 ? open[depth - 1] : -1;
+        parent[node] = parentNode;
+        firstChild[node] = -1;
+        nextSibling[node] = -1;
+        tagId[node] = tagId(tagName);
+        textStart[node] = textLength;
+        breakStart[node] = breakCount;
+        linkTextLength[node] = 0;
+
+        if (depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+            lastChild = Arrays.copyOf(lastChild, depth * 2);
+        }
+        open[depth] = node;
+        lastChild[depth] = -1;
+        depth++;
+    }
+
+    @Override
+    public void endTag(String tagName) {
+        // like the line based parser, a closing tag only closes the innermost node of the same name
+        if (depth > 0 && tagNames.get(tagId[open[depth - 1]]).equals(tagName)) {
+            close();
+        }
+    }
+
+    @Override
+    public void text(String text) {
+        if (depth == 0) {
+            return;
+        }
+        int length = text.length();
+        if (textLength + length > this.text.length) {
+            this.text = Arrays.copyOf(this.text, Math.max(this.text.length * 2, textLength + length));
+        }
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = text.indexOf('\n', lineStart)) != -1) {
+            appendText(text, lineStart, lineEnd);
+            addBreak();
+            lineStart = lineEnd + 1;
+        }
+        appendText(text, lineStart, length);
+    }
+
+    private void appendText(String text, int start, int end) {
+        text.getChars(start, end, this.text, textLength);
+        textLength += end - start;
+    }
+
+    @Override
+    public void comment(String comment) {
+        // comments are not kept in the tree
+    }
+
+    /**
+     * Finish the document, closing every node still open.
+     * The arrays are cut to their length, so a document kept in memory holds no spare room.
+     * @return  the document
+     */
+    CompactDocument finish() {
+        while (depth > 0) {
+            close();
+        }
+        int n = nodeCount;
+        return new CompactDocument(n, Arrays.copyOf(parent, n), Arrays.copyOf(firstChild, n),
+                Arrays.copyOf(nextSibling, n), Arrays.copyOf(tagId, n), Arrays.copyOf(textStart, n),
+                Arrays.copyOf(textEnd, n), Arrays.copyOf(breakStart, n), Arrays.copyOf(breakEnd, n),
+                Arrays.copyOf(linkTextLength, n), Arrays.copyOf(tagCount, n), tagNames.toArray(new String[0]),
+                Arrays.copyOf(text, textLength), Arrays.copyOf(breaks, breakCount));
+    }
+
+    private void close() {
+        int node = open[--depth];
+
+        // ignored tags have no content and are left out with everything read inside them
+        if (tagId[node] >= ignoredStart && tagId[node] < ignoredEnd) {
+            nodeCount = node;
+            textLength = textStart[node];
+            breakCount = breakStart[node];
+            return;
+        }
+        textEnd[node] = textLength;
+        breakEnd[node] = breakCount;
+        // the subtree is every node appended since this one
+        tagCount[node] = nodeCount - node;
+        if (tagId[node] == linkTag) {
+            linkTextLength[node] = textLength - textStart[node];
+        }
+
+        if (depth > 0) {
+            int parentNode = open[depth - 1];
+            if (lastChild[depth - 1] == -1) {
+                firstChild[parentNode] = node;
+            } else {
+                nextSibling[lastChild[depth - 1]] = node;
+            }
+            lastChild[depth - 1] = node;
+            linkTextLength[parentNode] += linkTextLength[node];
+        }
+    }
+
+    private void addBreak() {
+        if (breakCount == breaks.length) {
+            breaks = Arrays.copyOf(breaks, breakCount * 2);
+        }
+        breaks[breakCount++] = textLength;
+    }
+
+    private int tagId(String tagName) {
+        Integer id = tagIds.get(tagName);
+        if (id == null) {
+            id = tagNames.size();
+            tagNames.add(tagName);
+            tagIds.put(tagName, id);
+        }
+        return id;
+    }
+
+    private void growNodes() {
+        int capacity = parent.length * 2;
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        tagId = Arrays.copyOf(tagId, capacity);
+        textStart = Arrays.copyOf(textStart, capacity);
+        textEnd = Arrays.copyOf(textEnd, capacity);
+        breakStart = Arrays.copyOf(breakStart, capacity);
+        breakEnd = Arrays.copyOf(breakEnd, capacity);
+        linkTextLength = Arrays.copyOf(linkTextLength, capacity);
+        tagCount = Arrays.copyOf(tagCount, capacity);
+    }
+}
@@ -0,0 +1,284 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A parsed page held in flat arrays instead of a tree of Node objects.
+ * A node is an index: its parent, first child, next sibling and tag are entries of
+ * parallel int arrays, nodes are numbered in document order so a subtree is the
+ * range of indices after its root, and the text of the whole page is one char array
+ * that every node points into with a start and an end, its lines broken at the
+ * positions of a shared array of line breaks. The statistics used to find the main
+ * content are kept per node like on Node. Nothing is copied from child to parent,
+ * so the memory taken grows with the page and not with how deeply it is nested.
+ * The tree, the lines and the content are the same as those of Node.parse.
+ * @author pitaya
+ */
+public class CompactDocument {
+
+    private final int size;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] tagId;
+    private final int[] textStart;
+    private final int[] textEnd;
+    private final int[] breakStart;
+    private final int[] breakEnd;
+    private final int[] linkTextLength;
+    private final int[] tagCount;
+    private final String[] tagNames;
+    private final char[] text;
+    // the positions in the text where a line ends
+    private final int[] breaks;
+
+    // the html node
+    private final int root;
+
+    CompactDocument(int size, int[] parent, int[] firstChild, int[] nextSibling, int[] tagId,
+                    int[] textStart, int[] textEnd, int[] breakStart, int[] breakEnd, int[] linkTextLength,
+                    int[] tagCount, String[] tagNames, char[] text, int[] breaks) {
+        this.size = size;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.tagId = tagId;
+        this.textStart = textStart;
+        this.textEnd = textEnd;
+        this.breakStart = breakStart;
+        this.breakEnd = breakEnd;
+        this.linkTextLength = linkTextLength;
+        this.tagCount = tagCount;
+        this.tagNames = tagNames;
+        this.text = text;
+        this.breaks = breaks;
+
+        // the top level nodes follow each other, each one after its subtree
+        int html = -1;
+        for (int node = 0; node < size && html == -1; node += tagCount[node]) {
+            if (tagName(node).equals("html")) {
+                html = node;
+            }
+        }
+        this.root = html;
+    }
+
+    /**
+     * Parse a document with the character scanner into flat arrays
+     * @param reader    the reader to read the document from
+     * @return          the document, or null if it has no html node
+     * @throws IOException
+     */
+    public static CompactDocument parse(Reader reader) throws IOException {
+        return parse(reader, new char[HtmlScanner.DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * Parse a document with the character scanner into flat arrays, reading through
+     * a buffer that is reused between documents
+     * @param reader    the reader to read the document from
+     * @param buffer    the buffer to read into
+     * @return          the document, or null if it has no html node
+     * @throws IOException
+     */
+    public static CompactDocument parse(Reader reader, char[] buffer) throws IOException {
+        CompactBuilder builder = new CompactBuilder();
+        new HtmlTokenizer(reader, buffer).parse(builder);
+        CompactDocument document = builder.finish();
+        return document.root == -1 ? null : document;
+    }
+
+    /**
+     * Get the html node
+     * @return  the index of the html node
+     */
+    public int root() {
+        return root;
+    }
+
+    /**
+     * Get the number of nodes, the html node and any other top level node included
+     * @return  the number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the tag name of a node
+     * @param node  the node
+     * @return      the name of the tag
+     */
+    public String tagName(int node) {
+        return tagNames[tagId[node]];
+    }
+
+    /**
+     * Get the parent of a node
+     * @param node  the node
+     * @return      the parent, or -1 for a top level node
+     */
+    public int parent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * Get the first child of a node
+     * @param node  the node
+     * @return      the first child, or -1 if it has none
+     */
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    /**
+     * Get the next sibling of a node
+     * @param node  the node
+     * @return      the next sibling, or -1 if it is the last child
+     */
+    public int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    /**
+     * Get the length of the text of the subtree of a node, without line breaks
+     * @param node  the node
+     * @return      the length
+     */
+    public int textLength(int node) {
+        return textEnd[node] - textStart[node];
+    }
+
+    /**
+     * Get the length of the text of the subtree of a node that is inside links
+     * @param node  the node
+     * @return      the length
+     */
+    public int linkTextLength(int node) {
+        return linkTextLength[node];
+    }
+
+    /**
+     * Get the number of tags of the subtree of a node, its own included
+     * @param node  the node
+     * @return      the number of tags
+     */
+    public int tagCount(int node) {
+        return tagCount[node];
+    }
+
+    /**
+     * Get the number of lines of the text of the subtree of a node
+     * @param node  the node
+     * @return      the number of lines
+     */
+    public int lineCount(int node) {
+        return breakEnd[node] - breakStart[node] + 1;
+    }
+
+    /**
+     * Get the share of the text of the subtree of a node that is inside links
+     * @param node  the node
+     * @return      the link density, from 0 to 1
+     */
+    public double linkDensity(int node) {
+        int length = textLength(node);
+        return length == 0 ? 0 : (double) linkTextLength[node] / length;
+    }
+
+    /**
+     * Get the lines of text of the subtree of a node, the same as the text of the Node,
+     * with entities not replaced
+     * @param node  the node
+     * @return      the lines
+     */
+    public ArrayList<String> lines(int node) {
+        ArrayList<String> lines = new ArrayList<>(lineCount(node));
+        int start = textStart[node];
+        for (int i = breakStart[node]; i < breakEnd[node]; ++i) {
+            lines.add(new String(text, start, breaks[i] - start));
+            start = breaks[i];
+        }
+        lines.add(new String(text, start, textEnd[node] - start));
+        return lines;
+    }
+
+    /**
+     * Returns the title of the entire document, the text of its first title tag that has any
+     * @return  the title of the entire document
+     */
+    public String getTitle() {
+        int end = root + tagCount[root];
+        for (int node = root; node < end; ++node) {
+            if (tagName(node).equals("title")) {
+                String title = Node.cleanSpecialEntities(new String(text, textStart[node], textLength(node)));
+                if (!title.isEmpty()) {
+                    return title;
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Get the main content of the document, scored the same way as Node.getContent:
+     * the subtree of the body with the best text density score, its entities replaced
+     * and its short lines removed
+     * @return  the array of content lines
+     */
+    public ArrayList<String> getContent() {
+        // find the body tag
+        int body = -1;
+        for (int child = firstChild[root]; child != -1; child = nextSibling[child]) {
+            if (tagName(child).equals("body")) {
+                body = child;
+            }
+        }
+        if (body == -1) {
+            throw new IllegalStateException("Cannot find body tag.");
+        }
+
+        // find the subtree with the best score, visiting the nodes in the same order as Node
+        int bestNode = body;
+        double bestScore = score(body);
+        int[] pending = new int[16];
+        int pendingCount = 0;
+        for (int child = firstChild[body]; child != -1; child = nextSibling[child]) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            }
+            pending[pendingCount++] = child;
+        }
+        while (pendingCount > 0) {
+            int node = pending[--pendingCount];
+            double score = score(node);
+            if (score > bestScore) {
+                bestScore = score;
+                bestNode = node;
+            }
+            for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = child;
+            }
+        }
+
+        // create the simplified lines array and filter short lines
+        ArrayList<String> finalContent = new ArrayList<>();
+        for (String line : lines(bestNode)) {
+            String contentLine = Node.cleanSpecialEntities(line);
+            if (Node.isContentLine(contentLine)) {
+                finalContent.add(contentLine);
+            }
+        }
+        return finalContent;
+    }
+
+    private double score(int node) {
+        return Node.contentScore(textLength(node), linkTextLength[node], tagCount[node]);
+    }
+}
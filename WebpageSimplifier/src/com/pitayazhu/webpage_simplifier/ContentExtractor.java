@@ -0,0 +1,179 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts the title and main content of a page from the events of HtmlTokenizer.
+ * The text is cut into blocks at block level tags. Consecutive blocks with enough
+ * text that is mostly not links are joined into a run, and the run with the most
+ * text is the main content. Only the current run and the best run are kept,
+ * so the memory used does not depend on the size of the page.
+ * @author pitaya
+ */
+public class ContentExtractor implements HtmlHandler {
+
+    // the threshold to ignore short lines, the same as Node
+    private static final int MIN_LINE_LENGTH = 10;
+
+    // blocks with less text than this do not start or break a run
+    private static final int MIN_BLOCK_LENGTH = 10;
+
+    // blocks with more of their text in links are navigation, not content
+    private static final double MAX_LINK_DENSITY = 0.5;
+
+    // tags that stay inside the block of their parent
+    private static final String[] inlineTags = {"a", "abbr", "acronym", "b", "bdo", "big", "cite", "code", "dfn",
+            "em", "font", "i", "img", "kbd", "label", "q", "s", "samp", "small", "span", "strike", "strong", "sub",
+            "sup", "tt", "u", "var"};
+
+    // tags whose text is never content
+    private static final String[] skippedTags = {"head", "select", "option", "textarea", "button", "iframe",
+            "noscript"};
+
+    private String title = "";
+    private boolean inTitle = false;
+    private int skipDepth = 0;
+    private int linkDepth = 0;
+
+    // the block being read
+    private final List<String> blockLines = new ArrayList<>();
+    private final StringBuilder blockLine = new StringBuilder();
+    private int blockLength = 0, blockLinkLength = 0;
+
+    // the run of blocks being read and the best one so far
+    private List<String> run = new ArrayList<>();
+    private int runLength = 0;
+    private List<String> bestRun = new ArrayList<>();
+    private int bestRunLength = 0;
+
+    @Override
+    public void startTag(String tagName, boolean selfClosing) {
+        if (tagName.equals("br")) {
+            endLine();
+            return;
+        }
+        if (!selfClosing) {
+            if (tagName.equals("title")) {
+                inTitle = true;
+                title = "";
+            } else if (Arrays.asList(skippedTags).contains(tagName)) {
+                skipDepth++;
+            } else if (tagName.equals("a")) {
+                linkDepth++;
+            }
+        }
+        if (!Arrays.asList(inlineTags).contains(tagName)) {
+            endBlock();
+        }
+    }
+
+    @Override
+    public void endTag(String tagName) {
+        if (tagName.equals("title")) {
+            inTitle = false;
+            title = Node.cleanSpecialEntities(title);
+        } else if (Arrays.asList(skippedTags).contains(tagName)) {
+            skipDepth = Math.max(0, skipDepth - 1);
+        } else if (tagName.equals("a")) {
+            linkDepth = Math.max(0, linkDepth - 1);
+        }
+        if (!Arrays.asList(inlineTags).contains(tagName)) {
+            endBlock();
+        }
+    }
+
+    @Override
+    public void text(String text) {
+        if (inTitle) {
+            title += text.replace("\n", "");
+            return;
+        }
+        if (skipDepth > 0) {
+            return;
+        }
+
+        int lineStart = 0;
+        while (true) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            String part = text.substring(lineStart, lineEnd == -1 ? text.length() : lineEnd);
+            String decoded = Node.cleanSpecialEntities(part);
+            blockLine.append(decoded);
+            int length = decoded.trim().length();
+            blockLength += length;
+            if (linkDepth > 0) {
+                blockLinkLength += length;
+            }
+            if (lineEnd == -1) {
+                break;
+            }
+            endLine();
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    @Override
+    public void comment(String comment) {
+        // comments are never content
+    }
+
+    /**
+     * Returns the title of the page
+     * @return  the title of the page
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the main content of the page, to be called after the whole page is read
+     * @return  the array of content lines
+     */
+    public ArrayList<String> getContent() {
+        endBlock();
+        endRun();
+        ArrayList<String> content = new ArrayList<>();
+        for (String line : bestRun) {
+            if (line.length() > MIN_LINE_LENGTH) {
+                content.add(line);
+            }
+        }
+        return content;
+    }
+
+    private void endLine() {
+        String line = blockLine.toString().trim();
+        if (!line.isEmpty()) {
+            blockLines.add(line);
+        }
+        blockLine.setLength(0);
+    }
+
+    private void endBlock() {
+        endLine();
+        if (blockLength >= MIN_BLOCK_LENGTH) {
+            if (blockLinkLength > blockLength * MAX_LINK_DENSITY) {
+                // a block of links ends the run
+                endRun();
+            } else {
+                run.addAll(blockLines);
+                runLength += blockLength - blockLinkLength;
+            }
+        }
+        blockLines.clear();
+        blockLength = 0;
+        blockLinkLength = 0;
+    }
+
+    private void endRun() {
+        if (runLength > bestRunLength) {
+            bestRun = run;
+            bestRunLength = runLength;
+            run = new ArrayList<>();
+        } else {
+            run.clear();
+        }
+        runLength = 0;
+    }
+}
@@ -0,0 +1,230 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes HTML character references in a single pass.
+ * Named references are looked up in a trie of the full HTML5 table loaded from
+ * entities.properties, walked character by character without creating any String,
+ * and decimal or hexadecimal references are decoded in place.
+ * Unknown named references are removed, and a '&' that does not start a
+ * reference is kept as it is.
+ * @author pitaya
+ */
+public class EntityDecoder {
+
+    private static final String TABLE = "entities.properties";
+
+    // the longest name in the table, "CounterClockwiseContourIntegral"
+    private static final int MAX_NAME_LENGTH = 32;
+
+    // HTML5 reads these numeric references in the C1 range as windows-1252 characters
+    private static final char[] windows1252 = {'€', 0x81, '‚', 'ƒ', '„', '…', '†', '‡', 'ˆ', '‰', 'Š', '‹', 'Œ', 0x8D,
+            'Ž', 0x8F, 0x90, '‘', '’', '“', '”', '•', '–', '—', '˜', '™', 'š', '›', 'œ', 0x9D, 'ž', 'Ÿ'};
+
+    // the trie, one entry per node: the character leading to it, its first child and next sibling
+    private static char[] label;
+    private static int[] firstChild, nextSibling;
+    // the replacement of the name ending at each node, or null
+    private static String[] value;
+    private static int nodeCount;
+
+    static {
+        label = new char[16384];
+        firstChild = new int[label.length];
+        nextSibling = new int[label.length];
+        value = new String[label.length];
+        nodeCount = 1;
+        try {
+            loadTable();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot load " + TABLE, ioe);
+        }
+        // non-breaking spaces are treated as normal spaces so that lines can be trimmed
+        put("nbsp", " ");
+    }
+
+    private EntityDecoder() {
+    }
+
+    /**
+     * Replace character references with their original characters
+     * @param line  the string to decode
+     * @return      the decoded string, the same instance if it has no reference
+     */
+    public static String decode(String line) {
+        int ampersand = line.indexOf('&');
+        if (ampersand == -1) {
+            return line;
+        }
+        StringBuilder decoded = new StringBuilder(line.length());
+        decoded.append(line, 0, ampersand);
+        decode(line, ampersand, line.length(), decoded);
+        return decoded.toString();
+    }
+
+    /**
+     * Replace character references in a part of a text, appending the result
+     * @param text  the text to decode
+     * @param start the start of the part
+     * @param end   the end of the part
+     * @param out   the builder to append the decoded text to
+     */
+    public static void decode(CharSequence text, int start, int end, StringBuilder out) {
+        int position = start;
+        while (position < end) {
+            char c = text.charAt(position);
+            if (c != '&') {
+                out.append(c);
+                position++;
+                continue;
+            }
+            int next = position + 1 < end && text.charAt(position + 1) == '#'
+                    ? decodeNumeric(text, position, end, out)
+                    : decodeNamed(text, position, end, out);
+            if (next == -1) {
+                // not a reference
+                out.append('&');
+                position++;
+            } else {
+                position = next;
+            }
+        }
+    }
+
+    /**
+     * Decode a named reference starting at '&'
+     * @return  the position after the reference, or -1 if there is none
+     */
+    private static int decodeNamed(CharSequence text, int ampersand, int end, StringBuilder out) {
+        int node = 0;
+        int position = ampersand + 1;
+        while (position < end && position - ampersand <= MAX_NAME_LENGTH) {
+            char c = text.charAt(position);
+            if (c == ';') {
+                if (position == ampersand + 1) {
+                    return -1;
+                }
+                // names not in the table are dropped
+                if (node != -1 && value[node] != null) {
+                    out.append(value[node]);
+                }
+                return position + 1;
+            }
+            if (!isAsciiLetterOrDigit(c)) {
+                return -1;
+            }
+            if (node != -1) {
+                node = child(node, c);
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a decimal or hexadecimal reference starting at '&'
+     * @return  the position after the reference, or -1 if there is none
+     */
+    private static int decodeNumeric(CharSequence text, int ampersand, int end, StringBuilder out) {
+        int position = ampersand + 2;
+        int radix = 10;
+        if (position < end && (text.charAt(position) == 'x' || text.charAt(position) == 'X')) {
+            radix = 16;
+            position++;
+        }
+        int digitsStart = position;
+        long codePoint = 0;
+        while (position < end) {
+            int digit = Character.digit(text.charAt(position), radix);
+            if (digit == -1) {
+                break;
+            }
+            codePoint = Math.min(codePoint * radix + digit, Character.MAX_CODE_POINT + 1);
+            position++;
+        }
+        if (position == digitsStart) {
+            return -1;
+        }
+        // the ';' may be left out
+        if (position < end && text.charAt(position) == ';') {
+            position++;
+        }
+
+        if (codePoint >= 0x80 && codePoint <= 0x9F) {
+            out.append(windows1252[(int) codePoint - 0x80]);
+        } else if (codePoint == 0 || codePoint > Character.MAX_CODE_POINT
+                || codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            out.append('�');
+        } else {
+            out.appendCodePoint((int) codePoint);
+        }
+        return position;
+    }
+
+    private static int child(int node, char c) {
+        for (int child = firstChild[node]; child != 0; child = nextSibling[child]) {
+            if (label[child] == c) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    private static void put(String name, String replacement) {
+        int node = 0;
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            int child = child(node, c);
+            if (child == -1) {
+                if (nodeCount == label.length) {
+                    grow();
+                }
+                child = nodeCount++;
+                label[child] = c;
+                nextSibling[child] = firstChild[node];
+                firstChild[node] = child;
+            }
+            node = child;
+        }
+        value[node] = replacement;
+    }
+
+    private static void grow() {
+        int size = label.length * 2;
+        label = Arrays.copyOf(label, size);
+        firstChild = Arrays.copyOf(firstChild, size);
+        nextSibling = Arrays.copyOf(nextSibling, size);
+        value = Arrays.copyOf(value, size);
+    }
+
+    private static void loadTable() throws IOException {
+        InputStream is = EntityDecoder.class.getResourceAsStream(TABLE);
+        if (is == null) {
+            throw new IOException("Resource not found.");
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                StringBuilder replacement = new StringBuilder(2);
+                for (String codePoint : line.substring(separator + 1).split(" ")) {
+                    replacement.appendCodePoint(Integer.parseInt(codePoint, 16));
+                }
+                put(line.substring(0, separator), replacement.toString());
+            }
+        }
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,35 @@
+package com.pitayazhu.webpage_simplifier;
+
+/**
+ * Receives the events of an HTML document as it is read by HtmlTokenizer.
+ * Tag names are given in lower case and without attributes.
+ * @author pitaya
+ */
+public interface HtmlHandler {
+
+    /**
+     * Called on an opening tag
+     * @param tagName       the name of the tag
+     * @param selfClosing   true for void tags and tags closed by "/>", no endTag follows them
+     */
+    void startTag(String tagName, boolean selfClosing);
+
+    /**
+     * Called on a closing tag
+     * @param tagName   the name of the tag
+     */
+    void endTag(String tagName);
+
+    /**
+     * Called on the text between two tags.
+     * Every line of the source is trimmed, and lines are separated by '\n'.
+     * @param text  the text, entities are not replaced
+     */
+    void text(String text);
+
+    /**
+     * Called on a comment
+     * @param comment   the content between "<!--" and "-->"
+     */
+    void comment(String comment);
+}
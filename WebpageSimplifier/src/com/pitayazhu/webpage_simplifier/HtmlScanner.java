@@ -0,0 +1,222 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Character scanner over a Reader through a reusable char buffer.
+ * Unlike reading line by line, no String is created for the input itself:
+ * characters are taken from the buffer one at a time or appended in runs,
+ * so a page written on a single huge line is read in linear time.
+ * @author pitaya
+ */
+class HtmlScanner {
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int position = 0, limit = 0;
+
+    /**
+     * Create a scanner with its own buffer
+     * @param reader    the reader to scan
+     */
+    HtmlScanner(Reader reader) {
+        this(reader, new char[DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * Create a scanner over a buffer that can be reused for the next document
+     * @param reader    the reader to scan
+     * @param buffer    the buffer to read into
+     */
+    HtmlScanner(Reader reader, char[] buffer) {
+        this.reader = reader;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Read the next character
+     * @return  the character, or -1 at the end of the input
+     * @throws IOException
+     */
+    int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Look at the next character without reading it
+     * @return  the character, or -1 at the end of the input
+     * @throws IOException
+     */
+    int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    /**
+     * Read a run of text up to the next tag or line break, appending it straight from the buffer
+     * @param into          the builder to append the text to
+     * @param skipSpaces    whether spaces at the start of the run should be dropped
+     * @return              the '<', '\n' or '\r' that ended the run, or -1 at the end of the input
+     * @throws IOException
+     */
+    int readText(StringBuilder into, boolean skipSpaces) throws IOException {
+        while (position < limit || fill()) {
+            if (skipSpaces) {
+                while (position < limit && buffer[position] <= ' '
+                        && buffer[position] != '\n' && buffer[position] != '\r') {
+                    position++;
+                }
+                if (position == limit) {
+                    continue;
+                }
+                skipSpaces = false;
+            }
+            int start = position;
+            char c = 0;
+            while (position < limit && (c = buffer[position]) != '<' && c != '\n' && c != '\r') {
+                position++;
+            }
+            into.append(buffer, start, position - start);
+            if (position < limit) {
+                position++;
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a string if the input continues with it
+     * @param expected  the string to read
+     * @return          whether the string was found and read
+     * @throws IOException
+     */
+    boolean skip(String expected) throws IOException {
+        if (!ensure(expected.length())) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); ++i) {
+            if (buffer[position + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        position += expected.length();
+        return true;
+    }
+
+    /**
+     * Read everything up to and including the next occurrence of a string
+     * @param target        the string to look for
+     * @param ignoreCase    whether letters of the string match in both cases
+     * @param into          the builder to append the characters before the string to, or null to drop them
+     * @return              whether the string was found before the end of the input
+     * @throws IOException
+     */
+    boolean readPast(String target, boolean ignoreCase, StringBuilder into) throws IOException {
+        // single characters are looked for in runs straight from the buffer
+        if (target.length() == 1 && !ignoreCase) {
+            char stop = target.charAt(0);
+            while (position < limit || fill()) {
+                int start = position;
+                while (position < limit && buffer[position] != stop) {
+                    position++;
+                }
+                if (into != null) {
+                    into.append(buffer, start, position - start);
+                }
+                if (position < limit) {
+                    position++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int[] failure = failureTable(target, ignoreCase);
+        int matched = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (into != null) {
+                into.append((char) c);
+            }
+            while (matched > 0 && !same((char) c, target.charAt(matched), ignoreCase)) {
+                matched = failure[matched - 1];
+            }
+            if (same((char) c, target.charAt(matched), ignoreCase)) {
+                matched++;
+            }
+            if (matched == target.length()) {
+                if (into != null) {
+                    into.setLength(into.length() - target.length());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make sure a number of characters can be looked at without reading
+     * @param count the number of characters
+     * @return      whether there are that many characters left in the input
+     * @throws IOException
+     */
+    private boolean ensure(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        // move what is left to the front and read more behind it
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while (limit < count) {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read == -1) {
+            position = limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private static int[] failureTable(String target, boolean ignoreCase) {
+        int[] failure = new int[target.length()];
+        int matched = 0;
+        for (int i = 1; i < target.length(); ++i) {
+            while (matched > 0 && !same(target.charAt(i), target.charAt(matched), ignoreCase)) {
+                matched = failure[matched - 1];
+            }
+            if (same(target.charAt(i), target.charAt(matched), ignoreCase)) {
+                matched++;
+            }
+            failure[i] = matched;
+        }
+        return failure;
+    }
+
+    private static boolean same(char a, char b, boolean ignoreCase) {
+        return a == b || ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b);
+    }
+}
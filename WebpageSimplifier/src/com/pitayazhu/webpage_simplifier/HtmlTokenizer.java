@@ -0,0 +1,168 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads an HTML document and reports it as a stream of events, without building a tree.
+ * The input is scanned character by character through HtmlScanner and only the
+ * current tag or text run is kept in memory, so documents of any size and with
+ * any line length can be processed.
+ * Like Node, every line of text is trimmed and the contents of style and script tags are skipped.
+ * @author pitaya
+ */
+public class HtmlTokenizer {
+
+    // names looked up without creating a new String for each tag
+    private static final String[] commonTags = {"a", "b", "i", "p", "u", "br", "dd", "dl", "dt", "em", "h1", "h2",
+            "h3", "h4", "h5", "h6", "hr", "li", "ol", "td", "th", "tr", "ul", "div", "img", "pre", "sub", "sup",
+            "body", "font", "form", "head", "html", "link", "meta", "span", "table", "tbody", "thead", "title",
+            "input", "label", "small", "style", "iframe", "script", "strong", "center", "option", "select",
+            "noscript", "textarea"};
+
+    private final HtmlScanner scanner;
+
+    /**
+     * Create a tokenizer over a reader
+     * @param reader    the reader to read the document from
+     */
+    public HtmlTokenizer(Reader reader) {
+        this.scanner = new HtmlScanner(reader);
+    }
+
+    /**
+     * Create a tokenizer reading through a buffer that is reused between documents
+     * @param reader    the reader to read the document from
+     * @param buffer    the buffer to read into
+     */
+    public HtmlTokenizer(Reader reader, char[] buffer) {
+        this.scanner = new HtmlScanner(reader, buffer);
+    }
+
+    /**
+     * Read the whole document and send its events to a handler
+     * @param handler   the handler to receive the events
+     * @throws IOException
+     */
+    public void parse(HtmlHandler handler) throws IOException {
+        StringBuilder text = new StringBuilder();
+        StringBuilder markup = new StringBuilder();
+        boolean lineStart = true;
+
+        int c;
+        while ((c = scanner.readText(text, lineStart)) != -1) {
+            if (c == '<') {
+                flushText(text, handler);
+                if (scanner.skip("!--")) {
+                    // an unfinished comment at the end of the document is dropped
+                    if (scanner.readPast("-->", false, markup)) {
+                        handler.comment(markup.toString());
+                    }
+                } else if (scanner.readPast(">", false, markup)) {
+                    String rawEndTag = emitTag(markup, handler);
+                    if (rawEndTag != null) {
+                        // skip everything until the enclosing tag, which is then read as a normal tag
+                        if (scanner.readPast(rawEndTag, true, null)) {
+                            markup.setLength(0);
+                            markup.append(rawEndTag, 1, rawEndTag.length());
+                            scanner.readPast(">", false, markup);
+                            emitTag(markup, handler);
+                        }
+                    }
+                }
+                markup.setLength(0);
+                lineStart = false;
+            } else {
+                if (c == '\r' && scanner.peek() == '\n') {
+                    scanner.read();
+                }
+                trimLineEnd(text);
+                text.append('\n');
+                lineStart = true;
+            }
+        }
+
+        trimLineEnd(text);
+        flushText(text, handler);
+    }
+
+    /**
+     * Send a tag to the handler
+     * @param tag       the content between '<' and '>'
+     * @param handler   the handler to receive the event
+     * @return          the enclosing tag to look for if the content of the tag should be skipped, or null
+     */
+    private static String emitTag(StringBuilder tag, HtmlHandler handler) {
+        int start = 0, end = tag.length();
+        while (start < end && tag.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && tag.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end || tag.charAt(start) == '!' || tag.charAt(start) == '?') {
+            // doctype and processing instructions carry no content
+            return null;
+        }
+        if (tag.charAt(start) == '/') {
+            handler.endTag(tagName(tag, start + 1));
+            return null;
+        }
+
+        String tagName = tagName(tag, start);
+        boolean selfClosing = tag.charAt(end - 1) == '/' || Arrays.asList(Node.voidTags).contains(tagName);
+        handler.startTag(tagName, selfClosing);
+        if (!selfClosing && Arrays.asList(Node.ignoreTags).contains(tagName)) {
+            return "</" + tagName;
+        }
+        return null;
+    }
+
+    /**
+     * Find the name in the content of a tag
+     * @param tag   the content between '<' and '>'
+     * @param start the position where the name starts
+     * @return      the name in lower case
+     */
+    private static String tagName(StringBuilder tag, int start) {
+        int end = start;
+        while (end < tag.length() && tag.charAt(end) > ' ' && tag.charAt(end) != '/') {
+            end++;
+        }
+        for (String common : commonTags) {
+            if (common.length() == end - start && matchesIgnoreCase(tag, start, common)) {
+                return common;
+            }
+        }
+        return tag.substring(start, end).toLowerCase();
+    }
+
+    private static boolean matchesIgnoreCase(StringBuilder tag, int start, String name) {
+        for (int i = 0; i < name.length(); ++i) {
+            if (Character.toLowerCase(tag.charAt(start + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the spaces at the end of the last line of text, the same as String.trim
+     * @param text  the text read so far
+     */
+    private static void trimLineEnd(StringBuilder text) {
+        int length = text.length();
+        while (length > 0 && text.charAt(length - 1) <= ' ' && text.charAt(length - 1) != '\n') {
+            length--;
+        }
+        text.setLength(length);
+    }
+
+    private static void flushText(StringBuilder text, HtmlHandler handler) {
+        if (text.length() > 0) {
+            handler.text(text.toString());
+            text.setLength(0);
+        }
+    }
+}
@@ -3,61 +3,121 @@ package com.pitayazhu.webpage_simplifier;
 import java.io.*;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
 
     public static void main(String[] args) {
+        // "-list <file>" or "-dir <directory>" simplifies many pages in parallel
+        if (option(args, "-list") != null || option(args, "-dir") != null) {
+            runBatch(args);
+            return;
+        }
+
         URL url;
-        InputStream is = null;
-        BufferedReader br;
-        String line, title;
+        Reader br = null;
+        String title;
 
         try {
             url = new URL("http://cspo.zju.edu.cn/redir.php?catalog_id=21530&object_id=682155");
-            String encoding = "GBK";
-            is = url.openStream();
-            br = new BufferedReader(new InputStreamReader(is, encoding) );
-
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                Node document = new Node(line, 0, br);
-
-                // read each root node but only process the html node
-                if (document.tagName.equals("html")) {
-
-                    Node.replaceEntities(document);
-                    Node.cleanEmptyLines(document);
-
-                    title = document.getTitle();
-                    ArrayList<String> mainContent = document.getContent();
-
-                    try {
-                        BufferedWriter out = new BufferedWriter(new FileWriter("file.txt"));
+            // the encoding comes from the response or the page unless "-encoding" forces one
+            String encoding = option(args, "-encoding");
+            br = PageReader.open(url, encoding == null ? PageReader.AUTO : encoding);
 
-                        if (!title.equals("")) {
-                            out.write("Page title: " + title + "\n");
-                        }
+            // "-stream" extracts the content from parsing events without building the node tree
+            if (Arrays.asList(args).contains("-stream")) {
+                ContentExtractor extractor = new ContentExtractor();
+                new HtmlTokenizer(br).parse(extractor);
+                writeContent(extractor.getTitle(), extractor.getContent());
+                return;
+            }
 
-                        out.write("Main content: " + "\n");
-                        for (String contentLine : mainContent) {
-                            out.write(contentLine + "\n");
-                        }
+            // "-compact" parses into flat arrays instead of a tree of nodes
+            if (Arrays.asList(args).contains("-compact")) {
+                CompactDocument document = CompactDocument.parse(br);
+                if (document != null) {
+                    writeContent(document.getTitle(), document.getContent());
+                }
+                return;
+            }
 
-                        out.close();
-                    } catch (IOException e) {}
+            // only the html node is processed
+            Node document = Node.parse(br);
+            if (document != null) {
 
-                    break;
-                }
+                // getContent replaces the entities and drops the empty lines of the content it picks
+                title = document.getTitle();
+                ArrayList<String> mainContent = document.getContent();
+                writeContent(title, mainContent);
             }
 
         } catch (IOException ioe) {
             ioe.printStackTrace();
         } finally {
             try {
-                if (is != null) is.close();
+                if (br != null) br.close();
             } catch (IOException ioe) {
                 // nothing to see here
             }
         }
     }
+
+    /**
+     * Simplify the pages given by the options in parallel.
+     * Options: -list file | -dir directory, -out directory (default "out") | -jsonl file,
+     * -encoding name (default auto, found from each page), -threads count (default all cores), -stream, -compact
+     * @param args  the command line arguments
+     */
+    private static void runBatch(String[] args) {
+        String encoding = option(args, "-encoding");
+        String threads = option(args, "-threads");
+        BatchSimplifier batch = new BatchSimplifier(encoding == null ? PageReader.AUTO : encoding,
+                threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads),
+                Arrays.asList(args).contains("-stream"), Arrays.asList(args).contains("-compact"));
+
+        try {
+            List<String> inputs = option(args, "-list") != null
+                    ? BatchSimplifier.readList(new File(option(args, "-list")))
+                    : BatchSimplifier.listDirectory(new File(option(args, "-dir")));
+
+            String jsonl = option(args, "-jsonl");
+            if (jsonl != null) {
+                batch.toJsonLines(inputs, new File(jsonl));
+            } else {
+                String out = option(args, "-out");
+                batch.toDirectory(inputs, new File(out == null ? "out" : out));
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Find the value following an option
+     * @param args  the command line arguments
+     * @param name  the name of the option
+     * @return      the value, or null if the option is not given
+     */
+    private static String option(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; ++i) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the simplified page to the output file
+     * @param title         the title of the page
+     * @param mainContent   the lines of the main content
+     */
+    private static void writeContent(String title, ArrayList<String> mainContent) {
+        try {
+            BufferedWriter out = new BufferedWriter(new FileWriter("file.txt"));
+            BatchSimplifier.writePage(out, title, mainContent);
+            out.close();
+        } catch (IOException e) {}
+    }
 }
@@ -2,10 +2,9 @@ package com.pitayazhu.webpage_simplifier;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Represents an HTML Dom node without attributes for web page simplify.
@@ -23,36 +22,64 @@ public class Node {
     public ArrayList<String> text = new ArrayList<>();
     public boolean isNode = true;
 
+    // statistics of the subtree, recorded by NodeBuilder as the tree is built:
+    // the length of its text, its lines, its tags including its own, and the length of its text inside links
+    public int textLength = 0, lineCount = 0, tagCount = 0, linkTextLength = 0;
+
+    // whether the text of the node has its entities replaced already
+    boolean entitiesReplaced = false;
+
     // the threshold to ignore short lines
     private static final int MIN_LINE_LENGTH = 10;
 
-    // the title of the page
-    // static since one page only has one title element
-    public static String title = "";
+    // the title of the page, passed up from the title node to every ancestor
+    // so that concurrent parses of different pages do not share it
+    String title = "";
 
     // void tags are not enclosed
-    private static final String[] voidTags = {"area", "base", "br", "col", "command", "embed", "hr", "img",
+    static final String[] voidTags = {"area", "base", "br", "col", "command", "embed", "hr", "img",
             "input", "keygen", "link", "meta", "param", "source", "track", "wbr"};
 
     // ignore these tags since their contents are not html
-    private static final String[] ignoreTags = {"style", "script"};
-
-    // these special entities are encoded and we should replace them with the original char
-    private static Map<String, String> specialEntities;
-    static {
-        specialEntities = new HashMap<String, String>();
-        specialEntities.put("&nbsp;", " ");
-        specialEntities.put("&amp;", "&");
-        specialEntities.put("&lt;", "<");
-        specialEntities.put("&gt;", ">");
-        specialEntities.put("&lsaquo;", "‹");
-        specialEntities.put("&rsaquo;", "›");
-        specialEntities.put("&lsquo;", "‘");
-        specialEntities.put("&rsquo;", "’");
-        specialEntities.put("&ldquo;", "“");
-        specialEntities.put("&rdquo;", "”");
-        specialEntities.put("&middot;", "·");
-        specialEntities.put("&.*;", "");
+    static final String[] ignoreTags = {"style", "script"};
+
+    /**
+     * Constructs an empty node to be filled by NodeBuilder
+     * @param tagName   the name of the tag
+     */
+    Node(String tagName) {
+        this.tagName = tagName;
+    }
+
+    /**
+     * Parse a document with the character scanner instead of reading it line by line.
+     * The tree is the same as the one from the line based constructor, but the
+     * time taken does not depend on how the document is split into lines.
+     * @param reader    the reader to read the document from
+     * @return          the html node of the document, or null if there is none
+     * @throws IOException
+     */
+    public static Node parse(Reader reader) throws IOException {
+        return parse(reader, new char[HtmlScanner.DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * Parse a document with the character scanner, reading through a buffer that
+     * is reused between documents
+     * @param reader    the reader to read the document from
+     * @param buffer    the buffer to read into
+     * @return          the html node of the document, or null if there is none
+     * @throws IOException
+     */
+    public static Node parse(Reader reader, char[] buffer) throws IOException {
+        NodeBuilder builder = new NodeBuilder();
+        new HtmlTokenizer(reader, buffer).parse(builder);
+        for (Node root : builder.finish()) {
+            if (root.tagName.equals("html")) {
+                return root;
+            }
+        }
+        return null;
     }
 
     /**
@@ -212,6 +239,9 @@ public class Node {
                 newNode = new Node(line, nextTagPosition, br);
 
                 // update current states with the new child
+                if (title.isEmpty()) {
+                    title = newNode.title;
+                }
                 line = newNode.finalLine;
                 finalLine = line;
                 currentPosition = newNode.nodeEndPos;
@@ -281,9 +311,13 @@ public class Node {
      * @param node  the node to clean
      */
     public static void replaceEntities(Node node) {
+        if (node.entitiesReplaced) {
+            return;
+        }
         for (int i = 0; i < node.text.size(); ++i) {
             node.text.set(i, cleanSpecialEntities(node.text.get(i)));
         }
+        node.entitiesReplaced = true;
         for (Node child : node.children) {
             replaceEntities(child);
         }
@@ -295,10 +329,7 @@ public class Node {
      * @return      the original string
      */
     public static String cleanSpecialEntities(String line) {
-        for (Map.Entry<String, String> entry : specialEntities.entrySet()) {
-            line = line.replaceAll(entry.getKey(), entry.getValue());
-        }
-        return line;
+        return EntityDecoder.decode(line);
     }
 
     /**
@@ -315,58 +346,112 @@ public class Node {
     }
 
     /**
-     * Get the main content of current node
+     * Get the share of the text of the subtree that is inside links
+     * @return  the link density, from 0 to 1
+     */
+    public double linkDensity() {
+        return textLength == 0 ? 0 : (double) linkTextLength / textLength;
+    }
+
+    /**
+     * Record the statistics of a tree built without NodeBuilder, like one from the line based constructor
+     * @param node  the root of the tree
+     */
+    static void recordStatistics(Node node) {
+        node.tagCount = 1;
+        node.linkTextLength = 0;
+        for (Node child : node.children) {
+            recordStatistics(child);
+            node.tagCount += child.tagCount;
+            node.linkTextLength += child.linkTextLength;
+        }
+        node.textLength = countContentLength(node);
+        node.lineCount = node.text.size();
+        if (node.tagName.equals("a")) {
+            node.linkTextLength = node.textLength;
+        }
+    }
+
+    /**
+     * Score a subtree as the main content of a page: text that is not in links,
+     * weighted by how little of the subtree is links and divided by how many tags
+     * it takes, so that a node holding the article beats both its wrapper full of
+     * navigation and a single paragraph of it
+     * @param textLength        the length of the text of the subtree
+     * @param linkTextLength    the length of its text inside links
+     * @param tagCount          the number of its tags
+     * @return                  the score, higher is more likely the main content
+     */
+    static double contentScore(int textLength, int linkTextLength, int tagCount) {
+        if (textLength == 0) {
+            return 0;
+        }
+        double plainText = textLength - linkTextLength;
+        return plainText * plainText / textLength / (Math.log(2 + tagCount) / Math.log(2));
+    }
+
+    /**
+     * Check whether a line of the main content is kept, that is, it is not blank and not too short
+     * @param contentLine   the line, entities replaced
+     * @return              whether it is kept
+     */
+    static boolean isContentLine(String contentLine) {
+        return contentLine.trim().length() > 0 && contentLine.length() > MIN_LINE_LENGTH;
+    }
+
+    /**
+     * Get the main content of current node.
+     * The body is searched in one traversal for the subtree with the best text density
+     * score, and only the lines of that subtree have their entities replaced and their
+     * short lines removed, so the rest of the tree is never walked again.
      * @return  the array of content lines
      */
     public ArrayList<String> getContent() {
         // assert if this node is not html
-        if (tagName.equals("html")) {
-
-            // find the body tag
-            Node body = null;
-            for (Node child : children) {
-                if (child.tagName.equals("body")) {
-                    body = child;
-                }
-            }
-            if (body == null) {
-                throw new IllegalStateException("Cannot find body tag.");
-            }
-            if (body.text.size() == 0) {
-                throw new IllegalStateException("No content found.");
-            }
+        if (!tagName.equals("html")) {
+            throw new IllegalStateException("Cannot find HTML tag.");
+        }
 
-            // find the first node with multiple valid nodes contained
-            Node mainNode = body;
-            while (mainNode.children.size() == 1) {
-                mainNode = mainNode.children.get(0);
-            }
-            if (mainNode.children.size() == 0) {
-                return mainNode.text;
+        // find the body tag
+        Node body = null;
+        for (Node child : children) {
+            if (child.tagName.equals("body")) {
+                body = child;
             }
+        }
+        if (body == null) {
+            throw new IllegalStateException("Cannot find body tag.");
+        }
+        if (body.text.size() == 0) {
+            throw new IllegalStateException("No content found.");
+        }
+        if (body.tagCount == 0) {
+            recordStatistics(body);
+        }
 
-            // find the node with max length
-            Node maxNode = mainNode.children.get(0);
-            int maxSize = countContentLength(maxNode);
-            for (Node child : mainNode.children) {
-                int contentLength = countContentLength(child);
-                if (contentLength > maxSize) {
-                    maxSize = contentLength;
-                    maxNode = child;
-                }
+        // find the subtree with the best score
+        Node bestNode = body;
+        double bestScore = contentScore(body.textLength, body.linkTextLength, body.tagCount);
+        ArrayList<Node> pending = new ArrayList<>(body.children);
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            double score = contentScore(node.textLength, node.linkTextLength, node.tagCount);
+            if (score > bestScore) {
+                bestScore = score;
+                bestNode = node;
             }
+            pending.addAll(node.children);
+        }
 
-            // create the simplified lines array and filter short lines
-            ArrayList<String> finalContent = maxNode.text;
-            for (int i = finalContent.size() - 1; i >= 0; --i) {
-                if (finalContent.get(i).length() <= MIN_LINE_LENGTH) {
-                    finalContent.remove(i);
-                }
+        // create the simplified lines array and filter short lines
+        ArrayList<String> finalContent = new ArrayList<>();
+        for (String line : bestNode.text) {
+            String contentLine = bestNode.entitiesReplaced ? line : cleanSpecialEntities(line);
+            if (isContentLine(contentLine)) {
+                finalContent.add(contentLine);
             }
-            return finalContent;
-        } else {
-            throw new IllegalStateException("Cannot find HTML tag.");
         }
+        return finalContent;
     }
 
 }
@@ -0,0 +1,145 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds Node trees from the events of HtmlTokenizer.
+ * The trees are the same as the ones built by the line based Node constructor:
+ * every node keeps the lines of text of its whole subtree, a line is broken at
+ * every line break of the source and at every br tag, and empty nodes are left out.
+ * The statistics of every subtree used to find the main content are recorded on
+ * the node as it is closed, from those of its children, so they cost no extra pass.
+ * @author pitaya
+ */
+class NodeBuilder implements HtmlHandler {
+
+    /**
+     * A node still open, with the line it is collecting
+     */
+    private static class Frame {
+        final Node node;
+        final StringBuilder lineContent = new StringBuilder();
+        // the length of the text of the subtree so far
+        int textLength = 0;
+
+        Frame(Node node) {
+            this.node = node;
+        }
+    }
+
+    private final List<Frame> stack = new ArrayList<>();
+    private final List<Node> roots = new ArrayList<>();
+
+    @Override
+    public void startTag(String tagName, boolean selfClosing) {
+        if (tagName.equals("br") && !stack.isEmpty()) {
+            Frame parent = top();
+            parent.node.text.add(parent.lineContent.toString());
+            parent.lineContent.setLength(0);
+        }
+        if (!selfClosing) {
+            stack.add(new Frame(new Node(tagName)));
+        }
+    }
+
+    @Override
+    public void endTag(String tagName) {
+        // like the line based parser, a closing tag only closes the innermost node of the same name
+        if (!stack.isEmpty() && top().node.tagName.equals(tagName)) {
+            close();
+        }
+    }
+
+    @Override
+    public void text(String text) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        Frame frame = top();
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = text.indexOf('\n', lineStart)) != -1) {
+            frame.lineContent.append(text, lineStart, lineEnd);
+            frame.textLength += lineEnd - lineStart;
+            frame.node.text.add(frame.lineContent.toString());
+            frame.lineContent.setLength(0);
+            lineStart = lineEnd + 1;
+        }
+        frame.lineContent.append(text, lineStart, text.length());
+        frame.textLength += text.length() - lineStart;
+    }
+
+    @Override
+    public void comment(String comment) {
+        // comments are not kept in the tree
+    }
+
+    /**
+     * Finish the document, closing every node still open
+     * @return  the root nodes of the document
+     */
+    List<Node> finish() {
+        while (!stack.isEmpty()) {
+            close();
+        }
+        return roots;
+    }
+
+    private Frame top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    private void close() {
+        Frame frame = stack.remove(stack.size() - 1);
+        Node node = frame.node;
+
+        // ignored tags have no content and are left out like void tags
+        if (Arrays.asList(Node.ignoreTags).contains(node.tagName)) {
+            return;
+        }
+        node.text.add(frame.lineContent.toString());
+
+        // the children added their tags and link text when they were closed
+        node.textLength = frame.textLength;
+        node.lineCount = node.text.size();
+        node.tagCount += 1;
+        if (node.tagName.equals("a")) {
+            node.linkTextLength = node.textLength;
+        }
+
+        // special judge for title
+        if (node.tagName.equals("title")) {
+            StringBuilder title = new StringBuilder();
+            for (String titleLine : node.text) {
+                title.append(titleLine);
+            }
+            node.title = Node.cleanSpecialEntities(title.toString());
+        }
+
+        if (stack.isEmpty()) {
+            roots.add(node);
+            return;
+        }
+
+        // merge the text of the new child into the lines of its parent
+        Frame parent = top();
+        if (parent.node.title.isEmpty()) {
+            parent.node.title = node.title;
+        }
+        if (node.text.size() > 0) {
+            parent.node.children.add(node);
+            parent.textLength += node.textLength;
+            parent.node.tagCount += node.tagCount;
+            parent.node.linkTextLength += node.linkTextLength;
+            parent.lineContent.append(node.text.get(0));
+            if (node.text.size() > 1) {
+                parent.node.text.add(parent.lineContent.toString());
+                parent.node.text.addAll(node.text.subList(1, node.text.size() - 1));
+                parent.lineContent.setLength(0);
+                parent.lineContent.append(node.text.get(node.text.size() - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.pitayazhu.webpage_simplifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader over the bytes of a whole page that finds their encoding by itself.
+ * Local files are memory-mapped, or read in one go when they are small, and
+ * the bytes are decoded straight into the buffer the scanner reads into, so
+ * no stream, byte buffer or char buffer stands between the file and the parser.
+ * The encoding is given, sniffed from the page by CharsetSniffer, or for a URL
+ * taken from the Content-Type of the response. The decoders are kept per
+ * thread and reset for each page.
+ * @author pitaya
+ */
+public class PageReader extends Reader {
+
+    // the name of the encoding that is found from the page itself
+    public static final String AUTO = "auto";
+
+    // files smaller than this are read, mapping them costs more than copying
+    private static final int MAP_THRESHOLD = 16 * 1024;
+
+    // the decoders of each thread, by charset
+    private static final ThreadLocal<Map<Charset, CharsetDecoder>> decoders = ThreadLocal.withInitial(HashMap::new);
+
+    private final ByteBuffer bytes;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    // a character decoded for a read of a single char that had no room for the pair it belongs to
+    private int pending = -1;
+    private boolean flushed = false;
+
+    /**
+     * Create a reader over the bytes of a page
+     * @param bytes     the page, from its position to its limit
+     * @param encoding  the name of the encoding of the page, or AUTO to find it from the page
+     * @param fallback  the encoding of a page that gives no sign of its own
+     */
+    public PageReader(ByteBuffer bytes, String encoding, Charset fallback) {
+        Charset charset;
+        if (encoding == null || encoding.equalsIgnoreCase(AUTO)) {
+            CharsetSniffer.Result sniffed = CharsetSniffer.sniff(bytes, fallback);
+            bytes.position(bytes.position() + sniffed.bomLength);
+            charset = sniffed.charset;
+        } else {
+            charset = CharsetSniffer.forName(encoding);
+            if (charset == null) {
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+        }
+        this.bytes = bytes;
+        this.charset = charset;
+        this.decoder = decoders.get().computeIfAbsent(charset, c -> c.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        decoder.reset();
+    }
+
+    /**
+     * Open a local file or a URL
+     * @param input     the URL or path of the page
+     * @param encoding  the name of the encoding of the page, or AUTO to find it from the page
+     * @return          the reader of the page
+     * @throws IOException
+     */
+    public static PageReader open(String input, String encoding) throws IOException {
+        if (input.contains("://")) {
+            return open(new URL(input), encoding);
+        }
+        return new PageReader(readFile(new File(input)), encoding, CharsetSniffer.GBK);
+    }
+
+    /**
+     * Download a page, taking its encoding from the response if it gives one
+     * @param url       the URL of the page
+     * @param encoding  the name of the encoding of the page, or AUTO to find it from the response or the page
+     * @return          the reader of the page
+     * @throws IOException
+     */
+    public static PageReader open(URL url, String encoding) throws IOException {
+        URLConnection connection = url.openConnection();
+        String declared = charsetOf(connection.getContentType());
+        if (declared != null && (encoding == null || encoding.equalsIgnoreCase(AUTO))
+                && CharsetSniffer.forName(declared) != null) {
+            encoding = declared;
+        }
+        ByteArrayOutputStream page = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 8192));
+        try (InputStream is = connection.getInputStream()) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                page.write(chunk, 0, read);
+            }
+        }
+        return new PageReader(ByteBuffer.wrap(page.toByteArray()), encoding, CharsetSniffer.GBK);
+    }
+
+    /**
+     * Get the bytes of a file, mapped if it is large enough
+     * @param file  the file
+     * @return      its bytes
+     * @throws IOException
+     */
+    static ByteBuffer readFile(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Page too large: " + file);
+            }
+            if (size >= MAP_THRESHOLD) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read until full
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Find the charset parameter of a Content-Type
+     */
+    private static String charsetOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, "charset=".length())) {
+                return parameter.substring("charset=".length()).replace("\"", "").trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the encoding the page is decoded with
+     * @return  the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int start = off;
+        if (pending != -1) {
+            cbuf[off++] = (char) pending;
+            pending = -1;
+            if (--len == 0) {
+                return 1;
+            }
+        }
+        if (len < 2) {
+            // a supplementary character needs room for two chars, so decode a pair and keep the second
+            char[] pair = new char[2];
+            int read = read(pair, 0, 2);
+            if (read <= 0) {
+                return off > start ? off - start : -1;
+            }
+            cbuf[off++] = pair[0];
+            if (read == 2) {
+                pending = pair[1];
+            }
+            return off - start;
+        }
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        if (bytes.hasRemaining()) {
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+        if (!bytes.hasRemaining() && !flushed && out.hasRemaining()) {
+            flushed = decoder.flush(out).isUnderflow();
+        }
+        int read = out.position() - start;
+        return read == 0 && flushed ? -1 : read;
+    }
+
+    @Override
+    public void close() {
+        bytes.position(bytes.limit());
+        flushed = true;
+    }
+}
@@ -0,0 +1,55 @@
+package com.pitayazhu.webpage_simplifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that every input of a batch gets a file of its own in the output directory, when
+ * files of the same name come from different directories or differ only by their extension.
+ * @author pitaya
+ */
+class BatchSimplifierTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesEveryPageToItsOwnFile() throws IOException {
+        List<String> inputs = Arrays.asList(
+                page("a/index.html", "a"), page("b/index.html", "b"),
+                page("x.html", "x html"), page("x.htm", "x htm"));
+        File out = directory.resolve("out").toFile();
+        new BatchSimplifier(PageReader.AUTO, 2, false, false).toDirectory(inputs, out);
+
+        String[] names = out.list();
+        assertEquals(inputs.size(), names.length, Arrays.toString(names));
+        Set<String> titles = new HashSet<>();
+        for (String name : names) {
+            String text = new String(Files.readAllBytes(new File(out, name).toPath()), StandardCharsets.UTF_8);
+            assertTrue(text.startsWith("Page title: "), name);
+            titles.add(text.substring("Page title: ".length(), text.indexOf('\n')));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "x html", "x htm")), titles);
+    }
+
+    private String page(String path, String title) throws IOException {
+        Path file = directory.resolve("in").resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, ("<html><head><title>" + title + "</title></head><body><div><p>" + title +
+                " 的正文，足够长的一段文字。</p></div></body></html>").getBytes(StandardCharsets.UTF_8));
+        return file.toString();
+    }
+}
@@ -0,0 +1,169 @@
+package com.pitayazhu.webpage_simplifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests the encoding PageReader finds for a page with CharsetSniffer, and the text it
+ * decodes, against the encoding the page was written in. A page in GBK or plain ASCII
+ * must read the same as through the InputStreamReader in GBK that every page was read
+ * with before; pages in UTF-8 and Big5, which the old reader garbled, must read as their
+ * original text, whether the encoding is given by a byte order mark, a meta tag or only
+ * by the bytes. Pages are read through both a mapped and a copied file and in reads of
+ * several sizes, and parse to the same document as through a reader of their encoding.
+ * @author pitaya
+ */
+class CharsetSnifferTest {
+
+    private static final Charset GBK = Charset.forName("GBK");
+    private static final Charset BIG5 = Charset.forName("Big5");
+    // the characters of GBK that GB2312 has, which the pages of the corpus are written in
+    private static final Charset GB2312 = Charset.forName("GB2312");
+
+    // sizes of the reads, a single char included to split surrogate pairs
+    private static final int[] readSizes = {1, 2, 7, 8192};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsPagesInTheEncodingTheirBytesShow() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; ++i) {
+            // small pages are copied and large ones mapped
+            int paragraphs = i % 2 == 0 ? 3 : 200;
+            String simplified = page(random, GB2312, paragraphs);
+            String traditional = page(random, BIG5, paragraphs);
+
+            assertPage("GBK page " + i, simplified.getBytes(GBK), GBK, simplified);
+            assertPage("UTF-8 page " + i, simplified.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8,
+                    simplified);
+            assertPage("Big5 page " + i, traditional.getBytes(BIG5), BIG5, traditional);
+        }
+    }
+
+    @Test
+    void readsGbkPagesAsTheOldReader() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; ++i) {
+            byte[] bytes = page(random, GB2312, 200).getBytes(GBK);
+            assertEquals(legacyRead(bytes), read(new PageReader(ByteBuffer.wrap(bytes), PageReader.AUTO, GBK), 8192));
+        }
+        String ascii = "<html><head><title>a</title></head><body><p>plain text</p></body></html>";
+        assertEquals(legacyRead(ascii.getBytes(StandardCharsets.US_ASCII)), ascii);
+    }
+
+    @Test
+    void theOldReaderGarbledUtf8AndBig5Pages() throws IOException {
+        Random random = new Random(42);
+        String simplified = page(random, GB2312, 3);
+        String traditional = page(random, BIG5, 3);
+        assertNotEquals(simplified, legacyRead(simplified.getBytes(StandardCharsets.UTF_8)));
+        assertNotEquals(traditional, legacyRead(traditional.getBytes(BIG5)));
+    }
+
+    @Test
+    void readsPagesInTheEncodingTheyDeclare() throws IOException {
+        Random random = new Random(42);
+        String simplified = page(random, GB2312, 3);
+        String traditional = page(random, BIG5, 3);
+        byte[] utf8 = simplified.getBytes(StandardCharsets.UTF_8);
+        byte[] bom = new byte[utf8.length + 3];
+        bom[0] = (byte) 0xef;
+        bom[1] = (byte) 0xbb;
+        bom[2] = (byte) 0xbf;
+        System.arraycopy(utf8, 0, bom, 3, utf8.length);
+        assertPage("UTF-8 with a byte order mark", bom, StandardCharsets.UTF_8, simplified);
+        assertPage("UTF-16 with a byte order mark",
+                ("\uFEFF" + simplified).getBytes(StandardCharsets.UTF_16LE), StandardCharsets.UTF_16LE, simplified);
+        String gb2312 = simplified.replace("<head>",
+                "<head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=gb2312\">");
+        assertPage("gb2312 declared by http-equiv", gb2312.getBytes(GBK), GBK, gb2312);
+        String big5 = traditional.replace("<head>", "<head><meta charset='big5'>");
+        assertPage("big5 declared by meta charset", big5.getBytes(BIG5), BIG5, big5);
+        String ascii = "<html><head><title>a</title></head><body><p>plain text</p></body></html>";
+        assertPage("ASCII page", ascii.getBytes(StandardCharsets.US_ASCII), GBK, ascii);
+        String emoji = simplified.replace("</p>", "😀</p>");
+        assertPage("supplementary characters", emoji.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8, emoji);
+    }
+
+    private void assertPage(String what, byte[] bytes, Charset charset, String expected) throws IOException {
+        File file = directory.resolve("page.html").toFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        try (PageReader reader = PageReader.open(file.getPath(), PageReader.AUTO)) {
+            assertEquals(charset, reader.getCharset(), what + ": encoding");
+        }
+        for (int readSize : readSizes) {
+            assertEquals(expected, read(PageReader.open(file.getPath(), PageReader.AUTO), readSize),
+                    what + ": text in reads of " + readSize);
+        }
+
+        Node sniffed = Node.parse(PageReader.open(file.getPath(), PageReader.AUTO));
+        Node known = Node.parse(new InputStreamReader(new ByteArrayInputStream(bytes), charset));
+        assertEquals(known.getTitle(), sniffed.getTitle(), what + ": title");
+        assertEquals(known.getContent(), sniffed.getContent(), what + ": content");
+    }
+
+    /**
+     * Read a page the way every page was read before, as GBK
+     */
+    private static String legacyRead(byte[] bytes) throws IOException {
+        return read(new InputStreamReader(new ByteArrayInputStream(bytes), "GBK"), 8192);
+    }
+
+    private static String read(Reader reader, int readSize) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[readSize];
+        int read;
+        try (Reader in = reader) {
+            while ((read = in.read(buffer, 0, readSize)) != -1) {
+                text.append(buffer, 0, read);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Generate a page of random Chinese text that the charset can encode
+     */
+    private static String page(Random random, Charset charset, int paragraphs) {
+        CharsetEncoder encoder = charset.newEncoder();
+        StringBuilder page = new StringBuilder("<html><head><title>");
+        appendText(page, random, encoder, 8);
+        page.append("</title></head><body><div class=\"nav\"><a href=\"/\">首</a></div><div>");
+        for (int i = 0; i < paragraphs; ++i) {
+            page.append("<p>");
+            appendText(page, random, encoder, 40 + random.nextInt(80));
+            page.append("，「").append(i).append("」。</p>\n");
+        }
+        return page.append("</div></body></html>").toString();
+    }
+
+    private static void appendText(StringBuilder page, Random random, CharsetEncoder encoder, int length) {
+        for (int i = 0; i < length; ) {
+            char c = (char) (0x4e00 + random.nextInt(0x9fa5 - 0x4e00));
+            if (encoder.canEncode(c)) {
+                page.append(c);
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.pitayazhu.webpage_simplifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests CompactDocument against the Node tree it is kept alongside: both are parsed from
+ * the same page, and the documents must have the same tree, with the same tags, lines and
+ * statistics in every node, and the same title and content. The pages are an article, the
+ * same article minified into one line, a deeply nested page, and random malformed pages
+ * with unclosed and stray tags, comments, scripts and references.
+ * @author pitaya
+ */
+class CompactDocumentTest {
+
+    private static final String[] tags = {"div", "p", "a", "span", "br", "script", "style", "title", "b", "td", "tr",
+            "table", "img", "body", "head"};
+
+    @Test
+    void buildsTheTreeOfAnArticle() throws IOException {
+        assertSameDocument("article", articlePage(500, "\n"));
+        assertSameDocument("minified article", articlePage(500, ""));
+    }
+
+    @Test
+    void buildsTheTreeOfANestedPage() throws IOException {
+        assertSameDocument("nested page", nestedPage(300, 50));
+    }
+
+    @Test
+    void buildsTheTreeOfIncompletePages() throws IOException {
+        assertSameDocument("page without html", "<div>text</div>");
+        assertSameDocument("page without body", "<html><head><title>t</title></head></html>");
+    }
+
+    @Test
+    void buildsTheTreeOfMalformedPages() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; ++i) {
+            assertSameDocument("random page " + i, randomPage(random));
+        }
+    }
+
+    private static void assertSameDocument(String name, String page) throws IOException {
+        Node node = Node.parse(new StringReader(page));
+        CompactDocument document = CompactDocument.parse(new StringReader(page));
+        assertEquals(node == null, document == null, name + ": html node found");
+        if (node == null) {
+            return;
+        }
+        assertSameTree(name, node, document, document.root());
+        assertEquals(node.getTitle(), document.getTitle(), name + ": title");
+        assertEquals(contentOf(node), contentOf(document), name + ": content");
+    }
+
+    /**
+     * Assert that a subtree of the Node tree is the same subtree of the document
+     */
+    private static void assertSameTree(String name, Node node, CompactDocument document, int index) {
+        String where = name + ", " + node.tagName + " node " + index;
+        assertEquals(node.tagName, document.tagName(index), where + ": tag");
+        assertEquals(node.text, document.lines(index), where + ": lines");
+        assertEquals(node.textLength, document.textLength(index), where + ": text length");
+        assertEquals(node.lineCount, document.lineCount(index), where + ": line count");
+        assertEquals(node.tagCount, document.tagCount(index), where + ": tag count");
+        assertEquals(node.linkTextLength, document.linkTextLength(index), where + ": link text length");
+        assertEquals(node.linkDensity(), document.linkDensity(index), where + ": link density");
+        int child = document.firstChild(index);
+        for (Node childNode : node.children) {
+            assertNotEquals(-1, child, where + ": child " + childNode.tagName + " missing");
+            assertEquals(index, document.parent(child), where + ": parent of " + child);
+            assertSameTree(name, childNode, document, child);
+            child = document.nextSibling(child);
+        }
+        assertEquals(-1, child, where + ": extra child");
+    }
+
+    private static String contentOf(Node node) {
+        try {
+            return node.getContent().toString();
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static String contentOf(CompactDocument document) {
+        try {
+            return document.getContent().toString();
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Generate an article with a navigation bar and a footer
+     * @param paragraphs    the number of paragraphs
+     * @param lineBreak     the text put between tags, "" for a minified page
+     */
+    private static String articlePage(int paragraphs, String lineBreak) {
+        StringBuilder page = new StringBuilder("<html>").append(lineBreak)
+                .append("<head><title>A &amp; B</title><script>var a = \"<div>\";</script></head>").append(lineBreak)
+                .append("<body><div class=\"nav\">");
+        for (int i = 0; i < 20; ++i) {
+            page.append("<a href=\"/").append(i).append("\">link ").append(i).append("</a>").append(lineBreak);
+        }
+        page.append("</div><div class=\"article\">").append(lineBreak);
+        for (int i = 0; i < paragraphs; ++i) {
+            page.append("<p>Paragraph ").append(i).append(" of the article, with &ldquo;quotes&rdquo;<br>")
+                    .append(lineBreak).append("and a second line.</p>").append(lineBreak);
+        }
+        return page.append("</div><div class=\"foot\">footer</div></body></html>").toString();
+    }
+
+    /**
+     * Generate a page whose text is nested deep inside divs
+     */
+    private static String nestedPage(int depth, int paragraphs) {
+        StringBuilder page = new StringBuilder("<html><head><title>nested</title></head><body>\n");
+        for (int i = 0; i < depth; ++i) {
+            page.append("<div>level ").append(i).append('\n');
+        }
+        for (int i = 0; i < paragraphs; ++i) {
+            page.append("<p>deep paragraph ").append(i).append(" with enough text to be content</p>\n");
+        }
+        for (int i = 0; i < depth; ++i) {
+            page.append("</div>");
+        }
+        return page.append("</body></html>").toString();
+    }
+
+    /**
+     * Generate a malformed page of random tags, text and comments
+     */
+    private static String randomPage(Random random) {
+        StringBuilder page = new StringBuilder("<html><head><title>T &amp; " + random.nextInt(9) +
+                "</title></head>\n<body>");
+        for (int i = 0, count = 30 + random.nextInt(200); i < count; ++i) {
+            int kind = random.nextInt(10);
+            String tag = tags[random.nextInt(tags.length)];
+            if (kind < 3) {
+                page.append('<').append(tag).append(random.nextBoolean() ? " class=\"x\">" : ">");
+            } else if (kind < 5) {
+                page.append("</").append(tag).append('>');
+            } else if (kind < 6) {
+                page.append('\n');
+            } else if (kind < 7) {
+                page.append("<!-- c -->");
+            } else {
+                page.append("some text &lt;here&gt; of length ").append(random.nextInt(1000))
+                        .append(random.nextBoolean() ? "\n  " : " ");
+            }
+        }
+        if (random.nextBoolean()) {
+            page.append("</body></html>");
+        }
+        return page.toString();
+    }
+}
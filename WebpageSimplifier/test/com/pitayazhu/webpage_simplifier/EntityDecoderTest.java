@@ -0,0 +1,104 @@
+package com.pitayazhu.webpage_simplifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests EntityDecoder against the table and the replaceAll loop Node.cleanSpecialEntities
+ * used before it. A line with one reference the old table knew must decode to the
+ * replacement the table gives; the old loop itself ran its catch-all before some of the
+ * entries, in the order of the HashMap, and erased those references, so it is not the
+ * reference there. A line without references must be left as the old loop left it, and
+ * the lines where the old loop was wrong in other ways are held to the HTML5 rules.
+ * @author pitaya
+ */
+class EntityDecoderTest {
+
+    // the table and loop of the old cleanSpecialEntities
+    private static final Map<String, String> legacyEntities = new HashMap<String, String>();
+    static {
+        legacyEntities.put("&nbsp;", " ");
+        legacyEntities.put("&amp;", "&");
+        legacyEntities.put("&lt;", "<");
+        legacyEntities.put("&gt;", ">");
+        legacyEntities.put("&lsaquo;", "‹");
+        legacyEntities.put("&rsaquo;", "›");
+        legacyEntities.put("&lsquo;", "‘");
+        legacyEntities.put("&rsquo;", "’");
+        legacyEntities.put("&ldquo;", "“");
+        legacyEntities.put("&rdquo;", "”");
+        legacyEntities.put("&middot;", "·");
+        legacyEntities.put("&.*;", "");
+    }
+
+    // text around the references, without '&' or ';' so that the old catch-all leaves it alone
+    private static final String[] words = {"", " ", "text", "中文", "  两个空格  ", "a<b>c", "x=1", "“引号”"};
+
+    @Test
+    void decodesTheReferencesOfTheOldTable() {
+        Random random = new Random(42);
+        String[] references = legacyEntities.keySet().stream().filter(key -> !key.equals("&.*;"))
+                .toArray(String[]::new);
+        for (int i = 0; i < 10000; ++i) {
+            String before = words[random.nextInt(words.length)];
+            String reference = references[random.nextInt(references.length)];
+            String after = words[random.nextInt(words.length)];
+            String line = before + reference + after;
+            assertEquals(before + legacyEntities.get(reference) + after, EntityDecoder.decode(line), line);
+        }
+    }
+
+    @Test
+    void leavesLinesWithoutReferencesAsTheOldLoop() {
+        for (String word : words) {
+            assertEquals(legacyClean(word), Node.cleanSpecialEntities(word), word);
+            assertSame(word, EntityDecoder.decode(word), word);
+        }
+        assertEquals(legacyClean("a&nosuchname;b"), EntityDecoder.decode("a&nosuchname;b"));
+    }
+
+    @Test
+    void decodesWhereTheOldLoopWasWrong() {
+        assertEquals("Tom & Jerry; fin", EntityDecoder.decode("Tom & Jerry; fin"));
+        assertEquals("a & b < c", EntityDecoder.decode("a &amp; b &lt; c"));
+        assertEquals("&lt;", EntityDecoder.decode("&amp;lt;"));
+        assertEquals("©2017 — ok", EntityDecoder.decode("&copy;2017 &mdash; ok"));
+    }
+
+    @Test
+    void decodesNumericReferences() {
+        assertEquals("中文", EntityDecoder.decode("&#20013;&#x6587;"));
+        assertEquals("A B", EntityDecoder.decode("&#65 B"));
+        // the windows-1252 range
+        assertEquals("–", EntityDecoder.decode("&#150;"));
+        assertEquals("���", EntityDecoder.decode("&#0;&#xD800;&#x110000;"));
+        assertEquals("😀", EntityDecoder.decode("&#x1F600;"));
+    }
+
+    @Test
+    void leavesIncompleteNamedReferences() {
+        assertEquals("&amp and &", EntityDecoder.decode("&amp and &"));
+        assertEquals("&;", EntityDecoder.decode("&;"));
+    }
+
+    @Test
+    void decodesAPartOfATextAsTheSubstring() {
+        String text = "<p>x &lt;y&gt; &#20013; z</p>";
+        StringBuilder part = new StringBuilder();
+        EntityDecoder.decode(text, 3, text.length() - 4, part);
+        assertEquals(EntityDecoder.decode(text.substring(3, text.length() - 4)), part.toString());
+    }
+
+    private static String legacyClean(String line) {
+        for (Map.Entry<String, String> entry : legacyEntities.entrySet()) {
+            line = line.replaceAll(entry.getKey(), entry.getValue());
+        }
+        return line;
+    }
+}